@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow;
+
+import com.github.joschi.jadconfig.Parameter;
+import com.github.joschi.jadconfig.validators.PositiveIntegerValidator;
+import org.graylog2.plugin.PluginConfigBean;
+
+/**
+ * Node wide settings of the NetFlow plugin, read from the Graylog server configuration file.
+ */
+public class NetFlowPluginConfiguration implements PluginConfigBean {
+    /**
+     * Name of the setting which limits how many NetFlow v9 templates are kept, both by each input and by the stores
+     * and caches shared by all inputs of the node.
+     */
+    public static final String MAX_TEMPLATES = "netflow_max_templates";
+    public static final int DEFAULT_MAX_TEMPLATES = 5000;
+
+    @Parameter(value = MAX_TEMPLATES, validator = PositiveIntegerValidator.class)
+    private int maxTemplates = DEFAULT_MAX_TEMPLATES;
+
+    public int getMaxTemplates() {
+        return maxTemplates;
+    }
+}
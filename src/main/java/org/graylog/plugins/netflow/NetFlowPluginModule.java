@@ -19,8 +19,13 @@
 */
 package org.graylog.plugins.netflow;
 
+import com.google.inject.multibindings.OptionalBinder;
+import org.graylog.plugins.netflow.codecs.InProcessTemplateStore;
 import org.graylog.plugins.netflow.codecs.NetFlowCodec;
+import org.graylog.plugins.netflow.codecs.TemplateStore;
+import org.graylog.plugins.netflow.inputs.NetFlowPcapInput;
 import org.graylog.plugins.netflow.inputs.NetFlowUdpInput;
+import org.graylog.plugins.netflow.transport.NetFlowPcapTransport;
 import org.graylog.plugins.netflow.transport.NetFlowUdpTransport;
 import org.graylog2.plugin.PluginConfigBean;
 import org.graylog2.plugin.PluginModule;
@@ -31,13 +36,19 @@ import java.util.Set;
 public class NetFlowPluginModule extends PluginModule {
     @Override
     public Set<? extends PluginConfigBean> getConfigBeans() {
-        return Collections.emptySet();
+        return Collections.singleton(new NetFlowPluginConfiguration());
     }
 
     @Override
     protected void configure() {
         addMessageInput(NetFlowUdpInput.class);
+        addMessageInput(NetFlowPcapInput.class);
         addCodec("netflow", NetFlowCodec.class);
         addTransport("netflow-udp", NetFlowUdpTransport.class);
+        addTransport("netflow-pcap", NetFlowPcapTransport.class);
+
+        // other plugins can share templates across the cluster by overriding this binding
+        OptionalBinder.newOptionalBinder(binder(), TemplateStore.class)
+                .setDefault().to(InProcessTemplateStore.class);
     }
 }
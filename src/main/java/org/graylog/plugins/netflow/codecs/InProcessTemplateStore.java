@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.net.InetSocketAddress;
+
+/**
+ * Shares templates between all NetFlow inputs of this node. This is the default {@link TemplateStore}, it doesn't
+ * reach other nodes.
+ */
+@Singleton
+public class InProcessTemplateStore implements TemplateStore {
+    private final Cache<TemplateKey, StoredTemplate> templates;
+
+    @Inject
+    public InProcessTemplateStore(@Named(NetFlowPluginConfiguration.MAX_TEMPLATES) int maxTemplates) {
+        this.templates = CacheBuilder.newBuilder().maximumSize(maxTemplates).build();
+    }
+
+    @Override
+    public void publish(StoredTemplate template) {
+        templates.put(template.key(), template);
+    }
+
+    @Nullable
+    @Override
+    public StoredTemplate lookup(InetSocketAddress exporter, long sourceId, int templateId) {
+        return templates.getIfPresent(new TemplateKey(exporter, sourceId, templateId));
+    }
+}
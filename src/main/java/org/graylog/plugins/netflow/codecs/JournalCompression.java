@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.graylog.plugins.netflow.flows.FlowException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LZ4 block compression of journal entries.
+ *
+ * A compressed entry consists of the {@link NetFlowCodec#LZ4_MARKER} byte, the length of the uncompressed entry as a
+ * 4 byte big endian integer and the LZ4 block of the uncompressed entry, including its own marker. Entries which are
+ * too small or don't compress well are journaled as they are.
+ *
+ * Entries are compressed straight from their buffers into a buffer of the given (pooled) allocator, without intermediate
+ * copies. The fast compressor trades some of the ratio for speed, so compressing doesn't slow down the transport.
+ */
+final class JournalCompression {
+    private static final int HEADER_LENGTH = 1 + Integer.BYTES;
+    // smaller entries hardly compress and aren't worth the CPU time
+    static final int MIN_COMPRESSED_LENGTH = 128;
+    // upper bound of sane uncompressed lengths, protects the codec from corrupt entries
+    private static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    // both are thread safe
+    // the library is relocated into the plugin's package, which rules out its native bindings
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestJavaInstance().fastCompressor();
+    private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4Factory.fastestJavaInstance().safeDecompressor();
+
+    private JournalCompression() {
+    }
+
+    /**
+     * Compresses the readable bytes of the entry. If the entry gets compressed, it is released and the compressed entry
+     * is returned, otherwise the entry itself is returned.
+     *
+     * @return the compressed entry or the entry, owned by the caller
+     */
+    static ByteBuf compress(ByteBufAllocator allocator, ByteBuf entry) {
+        final int length = entry.readableBytes();
+        if (length < MIN_COMPRESSED_LENGTH) {
+            return entry;
+        }
+
+        final int maxCompressedLength = COMPRESSOR.maxCompressedLength(length);
+        final ByteBuf compressed = allocator.buffer(HEADER_LENGTH + maxCompressedLength);
+        boolean written = false;
+        try {
+            // passthrough entries are composite buffers, these are merged into a single NIO buffer
+            final ByteBuffer source = entry.nioBuffer();
+            final ByteBuffer target = compressed.nioBuffer(0, HEADER_LENGTH + maxCompressedLength);
+            final int compressedLength = COMPRESSOR.compress(source, source.position(), length,
+                    target, target.position() + HEADER_LENGTH, maxCompressedLength);
+            if (HEADER_LENGTH + compressedLength >= length) {
+                return entry;
+            }
+
+            compressed.writeByte(NetFlowCodec.LZ4_MARKER);
+            compressed.writeInt(length);
+            compressed.writerIndex(HEADER_LENGTH + compressedLength);
+            entry.release();
+            written = true;
+            return compressed;
+        } finally {
+            if (!written) {
+                compressed.release();
+            }
+        }
+    }
+
+    /**
+     * Decompresses an entry whose marker has already been read.
+     *
+     * @return the uncompressed entry, starting with its own marker
+     */
+    static ByteBuf decompress(ByteBuf buffer) {
+        if (buffer.readableBytes() < Integer.BYTES) {
+            throw new FlowException("Compressed journal entry is truncated");
+        }
+        final int length = buffer.readInt();
+        if (length < 1 || length > MAX_UNCOMPRESSED_LENGTH) {
+            throw new FlowException("Invalid length of compressed journal entry: " + length);
+        }
+
+        // the decoded packets are views of the uncompressed entry, so it can't be reused for the next entry
+        final byte[] entry = new byte[length];
+        final ByteBuffer source = buffer.nioBuffer();
+        final int decompressedLength;
+        try {
+            decompressedLength = DECOMPRESSOR.decompress(source, source.position(), source.remaining(), ByteBuffer.wrap(entry), 0, length);
+        } catch (LZ4Exception e) {
+            throw new FlowException("Corrupt compressed journal entry: " + e.getMessage());
+        }
+        if (decompressedLength != length) {
+            throw new FlowException("Compressed journal entry has " + decompressedLength + " instead of " + length + " bytes");
+        }
+        buffer.skipBytes(buffer.readableBytes());
+        return Unpooled.wrappedBuffer(entry);
+    }
+}
@@ -17,14 +17,20 @@
 package org.graylog.plugins.netflow.codecs;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Maps;
 import com.google.inject.assistedinject.Assisted;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
 import org.graylog.plugins.netflow.flows.FlowException;
 import org.graylog.plugins.netflow.flows.NetFlowFormatter;
+import org.graylog.plugins.netflow.utils.ByteBufUtils;
 import org.graylog.plugins.netflow.v5.NetFlowV5Packet;
 import org.graylog.plugins.netflow.v5.NetFlowV5Parser;
 import org.graylog.plugins.netflow.v9.NetFlowV9FieldTypeRegistry;
@@ -38,7 +44,10 @@ import org.graylog2.plugin.Message;
 import org.graylog2.plugin.ResolvableInetSocketAddress;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
 import org.graylog2.plugin.inputs.annotations.Codec;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
@@ -55,13 +64,18 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 @Codec(name = "netflow", displayName = "NetFlow")
@@ -75,31 +89,120 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
      * It contains all necessary template flows before any data flows and can be completely parsed without a template cache.
      */
     public static final byte ORDERED_V9_MARKER = 0x01;
+    /**
+     * Marker byte which signals that the contained netflow v9 packet is structured like the {@link #ORDERED_V9_MARKER ordered}
+     * ones, but only references its templates by their fingerprint. The templates are resolved through the {@link TemplateDictionary}.
+     */
+    public static final byte TEMPLATE_REFERENCE_V9_MARKER = 0x02;
+    /**
+     * Marker byte which signals that the message is LZ4 compressed. The uncompressed message starts with one of the other markers.
+     */
+    public static final byte LZ4_MARKER = 0x03;
     @VisibleForTesting
     static final String CK_NETFLOW9_DEFINITION_PATH = "netflow9_definitions_Path";
+    @VisibleForTesting
+    static final String CK_BUFFER_SIZE = "netflow9_buffer_size";
+    @VisibleForTesting
+    static final String CK_BUFFER_SIZE_PER_EXPORTER = "netflow9_buffer_size_per_exporter";
+    @VisibleForTesting
+    static final String CK_BUFFER_TTL = "netflow9_buffer_ttl";
+    @VisibleForTesting
+    static final String CK_PERSIST_TEMPLATES = "netflow9_persist_templates";
+    @VisibleForTesting
+    static final String CK_SHARE_TEMPLATES = "netflow9_share_templates";
+    @VisibleForTesting
+    static final String CK_TEMPLATE_REFERENCES = "netflow9_journal_template_references";
+    @VisibleForTesting
+    static final String CK_BATCH_WINDOW = "netflow9_batch_window";
+    @VisibleForTesting
+    static final String CK_BATCH_SIZE = "netflow9_batch_size";
+    @VisibleForTesting
+    static final String CK_JOURNAL_COMPRESSION = "netflow_journal_compression";
+    @VisibleForTesting
+    static final String CK_RECORD_DECODING = "netflow9_record_decoding";
     private static final Logger LOG = LoggerFactory.getLogger(NetFlowCodec.class);
     private final NetFlowV9FieldTypeRegistry typeRegistry;
-    private final NetflowV9CodecAggregator netflowV9CodecAggregator;
+    // only the transport uses the aggregator, codecs which are created to decode journal entries never build it
+    private final Supplier<NetflowV9CodecAggregator> netflowV9CodecAggregator;
+    @Nullable
+    private final TemplateDictionary templateDictionary;
+    private final ParsedTemplateCache parsedTemplates;
+    // identifies the field definitions in the parsed template cache
+    private final String definitions;
+    private final NetFlowV9Parser.RecordDecoding recordDecoding;
 
     @Inject
-    protected NetFlowCodec(@Assisted Configuration configuration, NetflowV9CodecAggregator netflowV9CodecAggregator) throws IOException {
+    protected NetFlowCodec(@Assisted Configuration configuration, Provider<TemplateFile> templateFile, Provider<TemplateStore> templateStore,
+                           TemplateDictionary templateDictionary, ParsedTemplateCache parsedTemplates,
+                           @Named(NetFlowPluginConfiguration.MAX_TEMPLATES) int maxTemplates) throws IOException {
+        // the codec is created for every decoded journal entry, the aggregator is only built once the transport asks for it
+        this(configuration, Suppliers.memoize(() -> createAggregator(configuration, maxTemplates, templateFile, templateStore, templateDictionary)),
+                // entries which reference their templates are decoded even if the input doesn't write them anymore
+                templateDictionary, parsedTemplates);
+    }
+
+    @VisibleForTesting
+    NetFlowCodec(Configuration configuration, NetflowV9CodecAggregator netflowV9CodecAggregator) throws IOException {
+        this(configuration, netflowV9CodecAggregator, null);
+    }
+
+    @VisibleForTesting
+    NetFlowCodec(Configuration configuration, NetflowV9CodecAggregator netflowV9CodecAggregator,
+                 @Nullable TemplateDictionary templateDictionary) throws IOException {
+        this(configuration, netflowV9CodecAggregator, templateDictionary, new ParsedTemplateCache());
+    }
+
+    @VisibleForTesting
+    NetFlowCodec(Configuration configuration, NetflowV9CodecAggregator netflowV9CodecAggregator,
+                 @Nullable TemplateDictionary templateDictionary, ParsedTemplateCache parsedTemplates) throws IOException {
+        this(configuration, Suppliers.ofInstance(netflowV9CodecAggregator), templateDictionary, parsedTemplates);
+    }
+
+    private NetFlowCodec(Configuration configuration, Supplier<NetflowV9CodecAggregator> netflowV9CodecAggregator,
+                         @Nullable TemplateDictionary templateDictionary, ParsedTemplateCache parsedTemplates) throws IOException {
         super(configuration);
         this.netflowV9CodecAggregator = netflowV9CodecAggregator;
+        this.templateDictionary = templateDictionary;
+        this.parsedTemplates = parsedTemplates;
+        this.recordDecoding = NetFlowV9Parser.recordDecoding(configuration.getString(CK_RECORD_DECODING));
 
         final String netFlow9DefinitionsPath = configuration.getString(CK_NETFLOW9_DEFINITION_PATH);
         if (netFlow9DefinitionsPath == null || netFlow9DefinitionsPath.trim().isEmpty()) {
             this.typeRegistry = NetFlowV9FieldTypeRegistry.create();
+            this.definitions = "";
         } else {
             try (InputStream inputStream = new FileInputStream(netFlow9DefinitionsPath)) {
                 this.typeRegistry = NetFlowV9FieldTypeRegistry.create(inputStream);
             }
+            // templates parsed with an older version of the file must not be reused
+            this.definitions = netFlow9DefinitionsPath + '@' + new File(netFlow9DefinitionsPath).lastModified();
         }
     }
 
+    private static NetflowV9CodecAggregator createAggregator(Configuration configuration, int maxTemplates, Provider<TemplateFile> templateFile,
+                                                             Provider<TemplateStore> templateStore, TemplateDictionary templateDictionary) {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(
+                maxTemplates,
+                configuration.getInt(CK_BUFFER_SIZE, (int) NetflowV9CodecAggregator.DEFAULT_MAX_BUFFERED_BYTES),
+                configuration.getInt(CK_BUFFER_SIZE_PER_EXPORTER, (int) NetflowV9CodecAggregator.DEFAULT_MAX_BUFFERED_BYTES_PER_EXPORTER),
+                configuration.getInt(CK_BUFFER_TTL, (int) NetflowV9CodecAggregator.DEFAULT_BUFFERED_PACKETS_TTL_SECONDS),
+                TimeUnit.SECONDS,
+                configuration.getBoolean(CK_PERSIST_TEMPLATES, true) ? templateFile.get() : null,
+                configuration.getBoolean(CK_SHARE_TEMPLATES, false) ? templateStore.get() : null,
+                configuration.getBoolean(CK_TEMPLATE_REFERENCES, true) ? templateDictionary : null);
+        aggregator.setBatching(
+                configuration.getInt(CK_BATCH_WINDOW, (int) NetflowV9CodecAggregator.DEFAULT_BATCH_WINDOW_MILLIS),
+                TimeUnit.MILLISECONDS,
+                configuration.getInt(CK_BATCH_SIZE, NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES));
+        aggregator.setJournalCompression(configuration.getBoolean(CK_JOURNAL_COMPRESSION, false));
+        aggregator.loadPersistedTemplates();
+        return aggregator;
+    }
+
     @Nullable
     @Override
     public CodecAggregator getAggregator() {
-        return netflowV9CodecAggregator;
+        return netflowV9CodecAggregator.get();
     }
 
     @Nullable
@@ -122,8 +225,13 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
                 return null;
             }
 
-            final ByteBuf buffer = Unpooled.wrappedBuffer(payload);
-            switch (buffer.readByte()) {
+            ByteBuf buffer = Unpooled.wrappedBuffer(payload);
+            byte marker = buffer.readByte();
+            if (marker == LZ4_MARKER) {
+                buffer = JournalCompression.decompress(buffer);
+                marker = buffer.readByte();
+            }
+            switch (marker) {
                 case PASSTHROUGH_MARKER:
                     final NetFlowV5Packet netFlowV5Packet = NetFlowV5Parser.parsePacket(buffer);
 
@@ -132,7 +240,10 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
                             .collect(Collectors.toList());
                 case ORDERED_V9_MARKER:
                     // our "custom" netflow v9 that has all the templates in the same packet
-                    return decodeV9(sender, buffer);
+                    return decodeV9(sender, buffer, false);
+                case TEMPLATE_REFERENCE_V9_MARKER:
+                    // same as above, but the templates have to be looked up in the dictionary
+                    return decodeV9(sender, buffer, true);
                 default:
                     final List<RawMessage.SourceNode> sourceNodes = rawMessage.getSourceNodes();
                     final RawMessage.SourceNode sourceNode = sourceNodes.isEmpty() ? null : sourceNodes.get(sourceNodes.size() - 1);
@@ -153,8 +264,8 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
     }
 
     @VisibleForTesting
-    Collection<Message> decodeV9(InetSocketAddress sender, ByteBuf buffer) throws InvalidProtocolBufferException {
-        final List<NetFlowV9Packet> netFlowV9Packets = decodeV9Packets(buffer);
+    Collection<Message> decodeV9(InetSocketAddress sender, ByteBuf buffer, boolean templateReferences) throws InvalidProtocolBufferException {
+        final List<NetFlowV9Packet> netFlowV9Packets = decodeV9Packets(buffer, templateReferences);
 
         return netFlowV9Packets.stream().map(netFlowV9Packet -> netFlowV9Packet.records().stream()
                 .filter(record -> record instanceof NetFlowV9Record)
@@ -166,28 +277,65 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
 
     @VisibleForTesting
     List<NetFlowV9Packet> decodeV9Packets(ByteBuf buffer) throws InvalidProtocolBufferException {
-        byte[] v9JournalEntry = new byte[buffer.readableBytes()];
-        buffer.readBytes(v9JournalEntry);
-        final NetFlowV9Journal.RawNetflowV9 rawNetflowV9 = NetFlowV9Journal.RawNetflowV9.parseFrom(v9JournalEntry);
+        return decodeV9Packets(buffer, false);
+    }
 
-        // parse all templates used in the packet
+    @VisibleForTesting
+    List<NetFlowV9Packet> decodeV9Packets(ByteBuf buffer, boolean templateReferences) throws InvalidProtocolBufferException {
+        // parse the entry in place, aliasing makes the templates and packets views of the buffer instead of copies
+        final CodedInputStream input = CodedInputStream.newInstance(buffer.nioBuffer());
+        input.enableAliasing(true);
+        final NetFlowV9Journal.RawNetflowV9 rawNetflowV9 = NetFlowV9Journal.RawNetflowV9.parser().parseFrom(input);
+        buffer.skipBytes(buffer.readableBytes());
+
+        // look up all templates used in the packet, these are only parsed if no other entry has used them before
         final Map<Integer, NetFlowV9Template> templateMap = Maps.newHashMap();
         rawNetflowV9.getTemplatesMap().forEach((templateId, byteString) -> {
-            final NetFlowV9Template netFlowV9Template = NetFlowV9Parser.parseTemplate(
-                    Unpooled.wrappedBuffer(byteString.toByteArray()), typeRegistry);
+            final NetFlowV9Template netFlowV9Template = parsedTemplates.template(definitions, fingerprint(byteString, templateReferences),
+                    () -> NetFlowV9Parser.parseTemplate(template(byteString, templateReferences), typeRegistry));
             templateMap.put(templateId, netFlowV9Template);
         });
         final NetFlowV9OptionTemplate[] optionTemplate = {null};
         rawNetflowV9.getOptionTemplateMap().forEach((templateId, byteString) -> {
-            optionTemplate[0] = NetFlowV9Parser.parseOptionTemplate(Unpooled.wrappedBuffer(byteString.toByteArray()), typeRegistry);
+            optionTemplate[0] = parsedTemplates.optionTemplate(definitions, fingerprint(byteString, templateReferences),
+                    () -> NetFlowV9Parser.parseOptionTemplate(template(byteString, templateReferences), typeRegistry));
         });
 
         return rawNetflowV9.getPacketsList().stream()
-                .map(bytes -> Unpooled.wrappedBuffer(bytes.toByteArray()))
-                .map(buf -> NetFlowV9Parser.parsePacket(buf, typeRegistry, templateMap, optionTemplate[0]))
+                .map(NetFlowCodec::wrap)
+                .map(buf -> NetFlowV9Parser.parsePacket(buf, typeRegistry, templateMap, optionTemplate[0], recordDecoding, parsedTemplates.decoders()))
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @return the fingerprint of an embedded template, the same the aggregator computes, or the referenced fingerprint
+     */
+    private static long fingerprint(ByteString value, boolean templateReference) {
+        if (!templateReference) {
+            return ByteBufUtils.hash64(wrap(value), 0, value.size());
+        }
+        if (value.size() != Long.BYTES) {
+            throw new FlowException("Invalid NetFlow v9 template reference of " + value.size() + " bytes");
+        }
+        return value.asReadOnlyByteBuffer().getLong();
+    }
+
+    private ByteBuf template(ByteString value, boolean templateReference) {
+        if (!templateReference) {
+            return wrap(value);
+        }
+        final long fingerprint = fingerprint(value, true);
+        final byte[] bytes = templateDictionary == null ? null : templateDictionary.lookup(fingerprint);
+        if (bytes == null) {
+            throw new FlowException("Unknown NetFlow v9 template with fingerprint " + Long.toHexString(fingerprint));
+        }
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    private static ByteBuf wrap(ByteString byteString) {
+        return Unpooled.wrappedBuffer(byteString.asReadOnlyByteBuffer());
+    }
+
     @FactoryClass
     public interface Factory extends AbstractCodec.Factory<NetFlowCodec> {
         @Override
@@ -210,7 +358,25 @@ public class NetFlowCodec extends AbstractCodec implements MultiMessageCodec {
         public ConfigurationRequest getRequestedConfiguration() {
             final ConfigurationRequest configuration = super.getRequestedConfiguration();
             configuration.addField(new TextField(CK_NETFLOW9_DEFINITION_PATH, "Netflow 9 field definitions", "", "Path to the YAML file containing Netflow 9 field definitions", ConfigurationField.Optional.OPTIONAL));
+            configuration.addField(new NumberField(CK_BUFFER_SIZE, "Netflow 9 buffer size", (int) NetflowV9CodecAggregator.DEFAULT_MAX_BUFFERED_BYTES, "Memory in bytes for Netflow 9 data packets waiting for their templates, shared fairly by all exporters", ConfigurationField.Optional.OPTIONAL, NumberField.Attribute.ONLY_POSITIVE));
+            configuration.addField(new NumberField(CK_BUFFER_SIZE_PER_EXPORTER, "Netflow 9 buffer size per exporter", (int) NetflowV9CodecAggregator.DEFAULT_MAX_BUFFERED_BYTES_PER_EXPORTER, "Memory in bytes a single exporter may use for data packets waiting for their templates", ConfigurationField.Optional.OPTIONAL, NumberField.Attribute.ONLY_POSITIVE));
+            configuration.addField(new NumberField(CK_BUFFER_TTL, "Netflow 9 buffer TTL", (int) NetflowV9CodecAggregator.DEFAULT_BUFFERED_PACKETS_TTL_SECONDS, "Seconds to wait for the templates of buffered Netflow 9 data packets", ConfigurationField.Optional.OPTIONAL, NumberField.Attribute.ONLY_POSITIVE));
+            configuration.addField(new BooleanField(CK_PERSIST_TEMPLATES, "Persist Netflow 9 templates", true, "Store Netflow 9 templates in the data directory, so data packets can be decoded right after a restart"));
+            configuration.addField(new BooleanField(CK_SHARE_TEMPLATES, "Share Netflow 9 templates", false, "Share Netflow 9 templates with other inputs and nodes, so data packets can be decoded even if the exporter's templates were received elsewhere"));
+            configuration.addField(new NumberField(CK_BATCH_WINDOW, "Netflow 9 batch window", (int) NetflowV9CodecAggregator.DEFAULT_BATCH_WINDOW_MILLIS, "Milliseconds to collect consecutive Netflow 9 data packets of an exporter into one journal entry, 0 to journal every packet on its own", ConfigurationField.Optional.OPTIONAL));
+            configuration.addField(new NumberField(CK_BATCH_SIZE, "Netflow 9 batch size", NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES, "Bytes of Netflow 9 data packets after which a journal entry is written before the batch window has passed", ConfigurationField.Optional.OPTIONAL, NumberField.Attribute.ONLY_POSITIVE));
+            configuration.addField(new BooleanField(CK_TEMPLATE_REFERENCES, "Reference Netflow 9 templates in journal", true, "Journal Netflow 9 data packets with references to a template dictionary in the data directory instead of copies of their templates. Disable before downgrading to a version which can't read these entries"));
+            configuration.addField(new BooleanField(CK_JOURNAL_COMPRESSION, "Compress journal entries", false, "LZ4 compress NetFlow messages before writing them to the journal, which reduces the journal's disk I/O at the expense of some CPU time. Disable before downgrading to a version which can't read these entries"));
+            configuration.addField(new DropdownField(CK_RECORD_DECODING, "Netflow 9 record decoding", NetFlowV9Parser.RecordDecoding.INTERPRETED.name(), recordDecodings(), "How the records of Netflow 9 data packets are decoded. Compiled decoders are specialized for the fields of each template, lazy decoding only decodes the fields of a record when they are accessed", ConfigurationField.Optional.OPTIONAL));
             return configuration;
         }
+
+        private static Map<String, String> recordDecodings() {
+            final Map<String, String> decodings = new LinkedHashMap<>();
+            for (NetFlowV9Parser.RecordDecoding decoding : NetFlowV9Parser.RecordDecoding.values()) {
+                decodings.put(decoding.name(), decoding.name());
+            }
+            return decodings;
+        }
     }
 }
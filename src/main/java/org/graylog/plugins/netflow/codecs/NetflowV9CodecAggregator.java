@@ -15,15 +15,21 @@
  */
 package org.graylog.plugins.netflow.codecs;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
 import com.github.joschi.jadconfig.util.Size;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.protobuf.ByteString;
+import com.google.common.annotations.VisibleForTesting;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
-import org.graylog.plugins.netflow.v9.NetFlowV9Journal;
+import io.netty.channel.socket.DatagramPacket;
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
+import org.graylog.plugins.netflow.utils.ByteBufUtils;
 import org.graylog.plugins.netflow.v9.NetFlowV9Parser;
 import org.graylog.plugins.netflow.v9.RawNetFlowV9Packet;
 import org.graylog2.shared.utilities.ExceptionUtils;
@@ -31,46 +37,369 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * For Netflow v9 packets we want to prepend the corresponding flow template.
  * If we don't have that template yet, we consider the flow packet to be incomplete and continue to wait for the template.
- * TODO consider sharing seen templates between nodes in the cluster to minimize wait time
+ *
+ * The template and packet state is split into shards, selected by hashing the exporter address and source id. All packets
+ * of one exporter are handled by the same shard, which keeps its state in plain collections. Each shard is only ever
+ * entered by one thread at a time, so with exporter affine receive threads (e.g. one SO_REUSEPORT socket per thread)
+ * the shards are never contended and template lookup, buffering and release happen in packet order.
+ *
+ * Packets waiting for their templates are copied into a pooled direct memory ring per exporter, so a burst of unknown
+ * templates (e.g. after a restart) doesn't turn into a burst of short-lived heap garbage. Each ring grows on demand up to
+ * the per exporter limit and is given back to the pool as soon as the exporter has no more packets waiting.
+ *
+ * Templates can be shared with the other nodes of the cluster through a {@link TemplateStore}: new templates are published
+ * and templates which are missing locally are looked up before a data packet is buffered.
+ *
+ * With a {@link TemplateDictionary}, journal entries only reference their templates by fingerprint instead of embedding
+ * them, which keeps the entries of exporters with large templates small.
+ *
+ * With {@link #setBatching(long, TimeUnit, int) batching}, consecutive packets of an exporter are coalesced into one journal
+ * entry, so the journal, the process buffer and the codec handle one message per batch instead of one per datagram.
+ *
+ * With {@link #setJournalCompression(boolean) journal compression}, the entries are LZ4 compressed before they are written
+ * to the journal.
  */
 public class NetflowV9CodecAggregator implements RemoteAddressCodecAggregator {
     private static final Logger LOG = LoggerFactory.getLogger(NetflowV9CodecAggregator.class);
 
-    private static final ByteBuf PASSTHROUGH_MARKER = Unpooled.wrappedBuffer(new byte[]{NetFlowCodec.PASSTHROUGH_MARKER});
+    // unreleasable, because it becomes a component of every passthrough result which is released downstream
+    private static final ByteBuf PASSTHROUGH_MARKER = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{NetFlowCodec.PASSTHROUGH_MARKER}));
+
+    private static final ByteBufAllocator RING_ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+    // journal entries are released by the transport once they have been copied into the raw message
+    private static final ByteBufAllocator RESULT_ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = Size.megabytes(1).toBytes();
+    public static final long DEFAULT_MAX_BUFFERED_BYTES_PER_EXPORTER = Size.kilobytes(256).toBytes();
+    public static final long DEFAULT_BUFFERED_PACKETS_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(1);
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 0;
+    public static final int DEFAULT_MAX_BATCH_BYTES = (int) Size.kilobytes(64).toBytes();
+
+    /**
+     * Result of a V9 packet which has been added to its exporter's pending journal entry, as opposed to a packet which
+     * waits for its templates.
+     */
+    public static final Result BATCHED = new Result(null, true);
 
-    private final Cache<TemplateKey, TemplateBytes> templateCache;
-    private final Cache<TemplateKey, Queue<PacketBytes>> packetCache;
+    /**
+     * Why buffered packets have been dropped before their templates arrived.
+     */
+    public enum EvictionReason {
+        /** the templates didn't arrive in time */
+        EXPIRED,
+        /** the exporter has buffered more than its limit */
+        EXPORTER_LIMIT,
+        /** the buffer budget is exhausted and the exporter buffered more than others */
+        BUDGET
+    }
+
+    private final Shard[] shards;
+    @Nullable
+    private final TemplateFile templateFile;
+    private final long maxBufferedBytes;
+    // buffered bytes and exporters with buffered packets of all shards, the budget is shared by the whole input
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicInteger bufferingExporters = new AtomicInteger();
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final List<TemplateChangeListener> templateChangeListeners = new CopyOnWriteArrayList<>();
+    private volatile long batchWindowNanos = 0;
+    private volatile boolean journalCompression = false;
 
     @Inject
     public NetflowV9CodecAggregator() {
-        // TODO customize
-        this.templateCache = CacheBuilder.newBuilder()
-                .maximumSize(5000)
-                .removalListener(notification -> LOG.debug("Removed {} from template cache for reason {}", notification.getKey(), notification.getCause()))
-                .recordStats()
-                .build();
-        this.packetCache = CacheBuilder.newBuilder()
-                .expireAfterWrite(1, TimeUnit.MINUTES)
-                .maximumWeight(Size.megabytes(1).toBytes())
-                .removalListener((RemovalListener<TemplateKey, Queue<PacketBytes>>) notification -> LOG.debug("Removed {} from packet cache for reason {}", notification.getKey(), notification.getCause()))
-                .weigher((key, value) -> value.stream().map(PacketBytes::readableBytes).reduce(0, Integer::sum))
-                .recordStats()
-                .build();
+        this(DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_MAX_BUFFERED_BYTES_PER_EXPORTER, DEFAULT_BUFFERED_PACKETS_TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param maxBufferedBytes            memory budget for data packets waiting for their templates
+     * @param maxBufferedBytesPerExporter upper limit of the budget a single exporter can use
+     * @param bufferedPacketsTtl          how long to wait for the templates of buffered packets
+     */
+    public NetflowV9CodecAggregator(long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtl, TimeUnit ttlUnit) {
+        this(maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtl, ttlUnit, null, null);
+    }
+
+    /**
+     * @param maxBufferedBytes            memory budget for data packets waiting for their templates
+     * @param maxBufferedBytesPerExporter upper limit of the budget a single exporter can use
+     * @param bufferedPacketsTtl          how long to wait for the templates of buffered packets
+     * @param templateFile                file to load the templates from and to persist new templates to, {@code null} to keep templates in memory only
+     * @param templateStore               store to share templates with other nodes, {@code null} to not share templates
+     */
+    public NetflowV9CodecAggregator(long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtl, TimeUnit ttlUnit,
+                                    @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore) {
+        this(maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtl, ttlUnit, templateFile, templateStore, null);
+    }
+
+    /**
+     * @param maxBufferedBytes            memory budget for data packets waiting for their templates
+     * @param maxBufferedBytesPerExporter upper limit of the budget a single exporter can use
+     * @param bufferedPacketsTtl          how long to wait for the templates of buffered packets
+     * @param templateFile                file to load the templates from and to persist new templates to, {@code null} to keep templates in memory only
+     * @param templateStore               store to share templates with other nodes, {@code null} to not share templates
+     * @param templateDictionary          dictionary to reference the templates in journal entries by fingerprint, {@code null} to embed the templates
+     */
+    public NetflowV9CodecAggregator(long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtl, TimeUnit ttlUnit,
+                                    @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore,
+                                    @Nullable TemplateDictionary templateDictionary) {
+        this(NetFlowPluginConfiguration.DEFAULT_MAX_TEMPLATES, maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtl, ttlUnit,
+                templateFile, templateStore, templateDictionary);
+    }
+
+    /**
+     * @param maxTemplates                how many templates of all exporters are kept
+     * @param maxBufferedBytes            memory budget for data packets waiting for their templates
+     * @param maxBufferedBytesPerExporter upper limit of the budget a single exporter can use
+     * @param bufferedPacketsTtl          how long to wait for the templates of buffered packets
+     * @param templateFile                file to load the templates from and to persist new templates to, {@code null} to keep templates in memory only
+     * @param templateStore               store to share templates with other nodes, {@code null} to not share templates
+     * @param templateDictionary          dictionary to reference the templates in journal entries by fingerprint, {@code null} to embed the templates
+     */
+    public NetflowV9CodecAggregator(int maxTemplates, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtl,
+                                    TimeUnit ttlUnit, @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore,
+                                    @Nullable TemplateDictionary templateDictionary) {
+        this(defaultShardCount(), maxTemplates, maxBufferedBytes, maxBufferedBytesPerExporter, ttlUnit.toNanos(bufferedPacketsTtl),
+                templateFile, templateStore, templateDictionary);
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount) {
+        this(shardCount, DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_MAX_BUFFERED_BYTES_PER_EXPORTER, TimeUnit.SECONDS.toNanos(DEFAULT_BUFFERED_PACKETS_TTL_SECONDS));
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtlNanos) {
+        this(shardCount, maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtlNanos, null);
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtlNanos,
+                             @Nullable TemplateFile templateFile) {
+        this(shardCount, maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtlNanos, templateFile, null);
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtlNanos,
+                             @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore) {
+        this(shardCount, maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtlNanos, templateFile, templateStore, null);
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtlNanos,
+                             @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore,
+                             @Nullable TemplateDictionary templateDictionary) {
+        this(shardCount, NetFlowPluginConfiguration.DEFAULT_MAX_TEMPLATES, maxBufferedBytes, maxBufferedBytesPerExporter, bufferedPacketsTtlNanos,
+                templateFile, templateStore, templateDictionary);
+    }
+
+    @VisibleForTesting
+    NetflowV9CodecAggregator(int shardCount, int maxTemplates, long maxBufferedBytes, long maxBufferedBytesPerExporter, long bufferedPacketsTtlNanos,
+                             @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore,
+                             @Nullable TemplateDictionary templateDictionary) {
+        this.templateFile = templateFile;
+        final int count = ceilingPowerOfTwo(shardCount);
+        final Meter templateChanges = metricRegistry.meter("templateChanges");
+        final Histogram journalBatchSizes = metricRegistry.histogram("journalBatchSize");
+        final Meter[] evictions = new Meter[EvictionReason.values().length];
+        for (EvictionReason reason : EvictionReason.values()) {
+            evictions[reason.ordinal()] = metricRegistry.meter(MetricRegistry.name("bufferEvictions", reason.name().toLowerCase(Locale.ROOT)));
+        }
+
+        // every exporter is handled by exactly one shard, so the per exporter limit applies as is
+        this.maxBufferedBytes = Math.max(1L, maxBufferedBytes);
+        final long maxExporterBytes = Math.max(1L, Math.min(maxBufferedBytes, maxBufferedBytesPerExporter));
+        // exporters aren't spread evenly across the shards, so the template limit applies to all shards together
+        final AtomicInteger templateCount = new AtomicInteger();
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, maxTemplates, templateCount, bufferedBytes, bufferingExporters, maxExporterBytes, bufferedPacketsTtlNanos, evictions,
+                    templateFile, templateStore, templateDictionary, templateChanges, templateChangeListeners, journalBatchSizes);
+        }
+        metricRegistry.register("bufferedBytes", (Gauge<Long>) bufferedBytes::get);
+        metricRegistry.register("bufferedPackets", (Gauge<Long>) () -> {
+            long packets = 0;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    packets += shard.totalBufferedPackets;
+                }
+            }
+            return packets;
+        });
+        metricRegistry.register("bufferCapacity", (Gauge<Long>) () -> {
+            long capacity = 0;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    capacity += shard.bufferCapacity();
+                }
+            }
+            return capacity;
+        });
+    }
+
+    /**
+     * Registers a listener which is notified whenever an exporter redefines one of its templates, e.g. to invalidate
+     * caches of compiled templates. Listeners are called on the packet path while internal locks are held, they must
+     * return quickly and must not call back into the aggregator.
+     */
+    public void addTemplateChangeListener(TemplateChangeListener listener) {
+        templateChangeListeners.add(listener);
+    }
+
+    /**
+     * Drops all packets still waiting for their templates or in pending journal entries and gives their memory back to
+     * the pool. Should be called when the input stops, after {@link #flushBatches(boolean) flushing} the pending journal
+     * entries. Templates are kept.
+     */
+    public void releaseBufferedPackets() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.releaseBufferedPackets();
+            }
+        }
+    }
+
+    /**
+     * Coalesces the journal entries of consecutive V9 packets of an exporter which use compatible templates. Packets are
+     * collected until the entry reaches the size limit, the exporter sends a packet with conflicting templates or the
+     * transport {@link #flushBatches(boolean) flushes} the entry once the window has passed. Packets added to a pending
+     * entry yield the {@link #BATCHED} result. Should be called before the aggregator is used.
+     *
+     * @param batchWindow   how long to collect the packets of an exporter, 0 to journal every packet on its own
+     * @param maxBatchBytes size of the packets after which an entry is completed right away
+     */
+    public void setBatching(long batchWindow, TimeUnit unit, int maxBatchBytes) {
+        this.batchWindowNanos = Math.max(0, unit.toNanos(batchWindow));
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.batchWindowNanos = batchWindowNanos;
+                shard.maxBatchBytes = maxBatchBytes;
+            }
+        }
+    }
+
+    /**
+     * @return how long packets are collected into one journal entry, 0 if batching is disabled
+     */
+    public long getBatchWindowNanos() {
+        return batchWindowNanos;
+    }
+
+    /**
+     * Completes the pending journal entries whose window has passed. Transports have to call this periodically and
+     * pass the entries on like the messages of aggregation results.
+     *
+     * @param all whether to complete all pending entries regardless of their window, e.g. when the input stops
+     * @return the completed journal entries, owned by the caller
+     */
+    public List<CompletedBatch> flushBatches(boolean all) {
+        final List<CompletedBatch> completed = new ArrayList<>();
+        final long deadline = System.nanoTime() - batchWindowNanos;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.flushBatches(deadline, all, completed);
+            }
+        }
+        if (journalCompression) {
+            for (int i = 0; i < completed.size(); i++) {
+                final CompletedBatch batch = completed.get(i);
+                completed.set(i, new CompletedBatch(batch.exporter, JournalCompression.compress(RESULT_ALLOCATOR, batch.entry)));
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Compresses the journal entries with LZ4 before they are written to the journal, which reduces the journal's disk
+     * I/O at the expense of some CPU time on the transport. Entries which don't compress well are journaled as they are.
+     * Should be called before the aggregator is used.
+     */
+    public void setJournalCompression(boolean journalCompression) {
+        this.journalCompression = journalCompression;
+    }
+
+    private Result compress(Result result) {
+        final ByteBuf message = result.getMessage();
+        if (!journalCompression || message == null) {
+            return result;
+        }
+        return new Result(JournalCompression.compress(RESULT_ALLOCATOR, message), result.isValid());
+    }
+
+    /**
+     * Loads the templates persisted by earlier runs of the input, so the first data packets after a restart can be
+     * decoded right away. This reads the template file, so it is up to the transport side to call it once before the
+     * aggregator is used, the constructor doesn't. Does nothing without a template file.
+     */
+    public void loadPersistedTemplates() {
+        if (templateFile == null) {
+            return;
+        }
+        final List<StoredTemplate> templates = templateFile.templates();
+        for (StoredTemplate template : templates) {
+            final Shard shard = shardFor(template.getExporter(), template.getSourceId());
+            synchronized (shard) {
+                shard.putTemplate(template.getExporter(), template.getSourceId(),
+                        new TemplateBytes(template.getTemplateId(), template.getBytes(), template.isOptionTemplate()), TemplateOrigin.TEMPLATE_FILE);
+            }
+        }
+        LOG.debug("Loaded {} persisted NetFlow v9 templates", templates.size());
+    }
+
+    /**
+     * @return the buffer metrics of this aggregator, to be registered with the metrics of the input
+     */
+    public MetricSet getMetricSet() {
+        return metricRegistry;
+    }
+
+    private static int defaultShardCount() {
+        return ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    @VisibleForTesting
+    int shardCount() {
+        return shards.length;
+    }
+
+    private Shard shardFor(SocketAddress remoteAddress, long sourceId) {
+        int h = 31 * (remoteAddress == null ? 0 : remoteAddress.hashCode()) + Long.hashCode(sourceId);
+        // spread the bits, socket address hashes of a subnet tend to differ only in the low bits
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return shards[h & (shards.length - 1)];
     }
 
     @Nonnull
@@ -87,7 +416,7 @@ public class NetflowV9CodecAggregator implements RemoteAddressCodecAggregator {
 
             // only netflow v9 needs special treatment, everything else we just pass on
             if (netFlowVersion != 9) {
-                return new Result(Unpooled.copiedBuffer(PASSTHROUGH_MARKER, buf), true);
+                return compress(passthrough(buf));
             }
 
             // for NetFlow V9 we check that we have previously received template flows for each data flow.
@@ -102,22 +431,205 @@ public class NetflowV9CodecAggregator implements RemoteAddressCodecAggregator {
             // We then cache the raw bytes for template flows, keyed by remote ip and source id. These are used to reassemble the packet for the journal later.
             // For each netflow v9 packet that we do not have a matching template for yet, we put it into a queue.
             // Once the template flow arrives we go back through the queue and remove now matching packets for further processing.
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Received V9 packet:\n{}", ByteBufUtil.prettyHexDump(buf));
+            // the packet is parsed by the shard, which knows the exporter's templates and only copies new ones
+            final Shard shard = shardFor(remoteAddress, sourceId(buf));
+            final Result result;
+            synchronized (shard) {
+                result = shard.addV9Packet(buf, remoteAddress);
             }
-            final RawNetFlowV9Packet rawNetFlowV9Packet = NetFlowV9Parser.parsePacketShallow(buf);
-            final long sourceId = rawNetFlowV9Packet.header().sourceId();
+            enforceBudget();
+            return compress(result);
+        } catch (Exception e) {
+            LOG.error("Unexpected failure while aggregating NetFlowV9 packet, discarding packet.", ExceptionUtils.getRootCause(e));
+            return new Result(null, false);
+        }
+    }
+
+    /**
+     * Prepends the passthrough marker without copying the packet. The returned composite buffer holds its own reference
+     * to the packet, which is released together with the result, so the caller can release the datagram as usual.
+     */
+    private static Result passthrough(ByteBuf buf) {
+        return new Result(Unpooled.wrappedBuffer(PASSTHROUGH_MARKER.duplicate(), buf.retainedSlice()), true);
+    }
+
+    /**
+     * Aggregates a whole batch of datagrams. The V9 packets of the batch are grouped by shard, so every shard is only
+     * entered once per batch, and the packets of each exporter are still processed in the order they were received.
+     */
+    @Nonnull
+    @Override
+    public List<Result> addChunks(List<DatagramPacket> packets) {
+        final Result[] results = new Result[packets.size()];
+        final Map<Shard, List<Integer>> packetsByShard = new IdentityHashMap<>();
+
+        for (int i = 0; i < packets.size(); i++) {
+            final DatagramPacket packet = packets.get(i);
+            final ByteBuf buf = packet.content();
+            if (buf.readableBytes() < 2 || buf.getShort(0) != 9) {
+                results[i] = addChunk(buf, packet.sender());
+                continue;
+            }
+            final Shard shard = shardFor(packet.sender(), sourceId(buf));
+            packetsByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(i);
+        }
+
+        for (Map.Entry<Shard, List<Integer>> entry : packetsByShard.entrySet()) {
+            final Shard shard = entry.getKey();
+            synchronized (shard) {
+                for (int i : entry.getValue()) {
+                    final DatagramPacket packet = packets.get(i);
+                    try {
+                        results[i] = shard.addV9Packet(packet.content(), packet.sender());
+                    } catch (Exception e) {
+                        LOG.error("Unexpected failure while aggregating NetFlowV9 packet, discarding packet.", ExceptionUtils.getRootCause(e));
+                        results[i] = new Result(null, false);
+                    }
+                }
+            }
+            // compress outside of the shard's lock
+            for (int i : entry.getValue()) {
+                results[i] = compress(results[i]);
+            }
+        }
+        enforceBudget();
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Every exporter with buffered packets is entitled to an equal share of the budget. Once the budget is exhausted,
+     * exporters above their share give back their oldest packets, regardless of the shard they belong to. The shards
+     * are entered one after the other and never while holding another shard's monitor.
+     */
+    private void enforceBudget() {
+        while (bufferedBytes.get() > maxBufferedBytes) {
+            final long fairShare = maxBufferedBytes / Math.max(1, bufferingExporters.get());
+            boolean evicted = false;
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    evicted |= shard.evictAboveShare(fairShare, maxBufferedBytes);
+                }
+                if (bufferedBytes.get() <= maxBufferedBytes) {
+                    return;
+                }
+            }
+            if (!evicted) {
+                // the other threads have already made room or are about to
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int bufferedPacketCount(InetAddress exporterAddress) {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.bufferedPacketCount(exporterAddress);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the source id from the V9 header. Packets too short to have one are rejected by the parser later on.
+     */
+    private static long sourceId(ByteBuf buf) {
+        // version, count, system uptime, unix seconds and sequence number precede the source id
+        return buf.readableBytes() >= 20 ? buf.getUnsignedInt(buf.readerIndex() + 16) : 0;
+    }
+
+    private static RawNetFlowV9Packet parseV9PacketShallow(ByteBuf buf, NetFlowV9Parser.KnownTemplates knownTemplates) {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Received V9 packet:\n{}", ByteBufUtil.prettyHexDump(buf));
+        }
+        final RawNetFlowV9Packet rawNetFlowV9Packet = NetFlowV9Parser.parsePacketShallow(buf, knownTemplates);
+        LOG.trace("Incoming NetFlow V9 packet contains: {}", rawNetFlowV9Packet);
+        return rawNetFlowV9Packet;
+    }
+
+    /**
+     * Template and buffered packet state for the exporters that hash to this shard.
+     * None of the state is thread safe, callers must hold the shard's monitor.
+     */
+    private static class Shard implements NetFlowV9Parser.KnownTemplates {
+        private final int index;
+        private final TemplateTable templateCache;
+        private final LinkedHashMap<TemplateKey, BufferedPackets> packetCache = new LinkedHashMap<>();
+        // shared by all shards of the aggregator
+        private final AtomicLong bufferedBytes;
+        private final AtomicInteger bufferingExporters;
+        private final int maxExporterBytes;
+        private final long bufferedPacketsTtlNanos;
+        private final Meter[] evictions;
+        private long totalBufferedPackets = 0;
+        // scratch space for the address of the packet being processed, guarded by the shard's monitor like the rest
+        private final long[] addressBits = new long[2];
+        @Nullable
+        private final TemplateFile templateFile;
+        @Nullable
+        private final TemplateStore templateStore;
+        @Nullable
+        private final TemplateDictionary templateDictionary;
+        private final Meter templateChanges;
+        private final List<TemplateChangeListener> templateChangeListeners;
+        private final Histogram journalBatchSizes;
+        // pending journal entries by exporter, in the order they were started
+        private final PendingBatches pendingBatches = new PendingBatches();
+        private long batchWindowNanos = 0;
+        private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        // exporter of the packet being parsed, for looking up known templates
+        private long parsedAddressHigh;
+        private long parsedAddressLow;
+        private long parsedExporterId;
+
+        Shard(int index, int maxTemplates, AtomicInteger templateCount, AtomicLong bufferedBytes, AtomicInteger bufferingExporters,
+              long maxExporterBytes, long bufferedPacketsTtlNanos, Meter[] evictions,
+              @Nullable TemplateFile templateFile, @Nullable TemplateStore templateStore, @Nullable TemplateDictionary templateDictionary,
+              Meter templateChanges, List<TemplateChangeListener> templateChangeListeners, Histogram journalBatchSizes) {
+            this.index = index;
+            this.journalBatchSizes = journalBatchSizes;
+            this.templateChanges = templateChanges;
+            this.templateChangeListeners = templateChangeListeners;
+            this.templateFile = templateFile;
+            this.templateStore = templateStore;
+            this.templateDictionary = templateDictionary;
+            this.bufferedBytes = bufferedBytes;
+            this.bufferingExporters = bufferingExporters;
+            this.maxExporterBytes = (int) Math.min(Integer.MAX_VALUE, maxExporterBytes);
+            this.bufferedPacketsTtlNanos = bufferedPacketsTtlNanos;
+            this.evictions = evictions;
+            this.templateCache = new TemplateTable(maxTemplates, templateCount);
+        }
+
+        Result addV9Packet(ByteBuf buf, SocketAddress remoteAddress) {
+            final long sourceId = sourceId(buf);
+            expireBufferedPackets(System.nanoTime());
+
+            // the template cache is keyed by primitives, we don't want to allocate keys for every lookup
+            TemplateTable.addressBits(remoteAddress, addressBits);
+            final long addressHigh = addressBits[0];
+            final long addressLow = addressBits[1];
+            final long exporterId = TemplateTable.exporterId(remoteAddress, sourceId);
+
+            // only templates which are new or have changed are copied out of the packet
+            parsedAddressHigh = addressHigh;
+            parsedAddressLow = addressLow;
+            parsedExporterId = exporterId;
+            final RawNetFlowV9Packet rawNetFlowV9Packet = parseV9PacketShallow(buf, this);
 
-            LOG.trace("Incoming NetFlow V9 packet contains: {}", rawNetFlowV9Packet);
+            // the ids of the templates which arrived with this packet, buffered packets waiting for these might be complete now
+            final List<Integer> arrivedTemplates = new ArrayList<>();
 
             // register templates and check for buffered flows
             for (Map.Entry<Integer, byte[]> template : rawNetFlowV9Packet.templates().entrySet()) {
                 final int templateId = template.getKey();
                 final byte[] bytes = template.getValue();
 
-                final TemplateKey templateKey = new TemplateKey(remoteAddress, sourceId, templateId);
-                final TemplateBytes templateBytes = new TemplateBytes(bytes, false);
-                templateCache.put(templateKey, templateBytes);
+                final TemplateBytes templateBytes = new TemplateBytes(templateId, bytes, false);
+                putTemplate(remoteAddress, sourceId, addressHigh, addressLow, TemplateTable.id(exporterId, templateId), templateBytes, TemplateOrigin.EXPORTER);
+                arrivedTemplates.add(templateId);
             }
 
             final Map.Entry<Integer, byte[]> optionTemplate = rawNetFlowV9Packet.optionTemplate();
@@ -125,163 +637,624 @@ public class NetflowV9CodecAggregator implements RemoteAddressCodecAggregator {
                 final int templateId = optionTemplate.getKey();
                 final byte[] bytes = optionTemplate.getValue();
 
-                final TemplateKey templateKey = new TemplateKey(remoteAddress, sourceId, templateId);
-                final TemplateBytes templateBytes = new TemplateBytes(bytes, true);
+                final TemplateBytes templateBytes = new TemplateBytes(templateId, bytes, true);
 
-                templateCache.put(templateKey, templateBytes);
+                putTemplate(remoteAddress, sourceId, addressHigh, addressLow, TemplateTable.id(exporterId, templateId), templateBytes, TemplateOrigin.EXPORTER);
+                arrivedTemplates.add(templateId);
             }
 
-            // this list of flows to return in the result
-            // Using ByteBuf here to enable de-duplication with the hash set.
-            final Set<ByteBuf> packetsToSend = new HashSet<>();
+            // the flows to return in the result, in the order they have been received
+            final List<ByteBuf> packetsToSend = new ArrayList<>();
+            // buffered packets are retained slices of their exporter's ring, these have to be released once the result is built
+            final List<ByteBuf> releasedPackets = new ArrayList<>();
+            final Set<Integer> releasedTemplates = new HashSet<>();
 
-            // if we have new templates, figure out which buffered packets template requirements are now satisfied
-            if (!rawNetFlowV9Packet.templates().isEmpty() || rawNetFlowV9Packet.optionTemplate() != null) {
-                final Set<Integer> knownTemplateIds = new HashSet<>();
-                for (TemplateKey templateKey : templateCache.asMap().keySet()) {
-                    if (templateKey.getRemoteAddress() == remoteAddress && templateKey.getSourceId() == sourceId) {
-                        final Integer templateId = templateKey.getTemplateId();
-                        knownTemplateIds.add(templateId);
+            // other nodes might have seen the templates we are missing
+            if (templateStore != null && remoteAddress instanceof InetSocketAddress) {
+                for (int templateId : rawNetFlowV9Packet.usedTemplates()) {
+                    final long id = TemplateTable.id(exporterId, templateId);
+                    if (!templateCache.contains(addressHigh, addressLow, id)) {
+                        final StoredTemplate stored = templateStore.lookup((InetSocketAddress) remoteAddress, sourceId, templateId);
+                        if (stored != null) {
+                            LOG.debug("Found template {} of {} in the template store", templateId, remoteAddress);
+                            putTemplate(remoteAddress, sourceId, addressHigh, addressLow, id,
+                                    new TemplateBytes(templateId, stored.getBytes(), stored.isOptionTemplate()), TemplateOrigin.TEMPLATE_STORE);
+                            arrivedTemplates.add(templateId);
+                        }
                     }
                 }
+            }
 
-                final Queue<PacketBytes> bufferedPackets = packetCache.getIfPresent(TemplateKey.idForExporter(remoteAddress, sourceId));
+            // if we have new templates, figure out which buffered packets template requirements are now satisfied
+            if (!arrivedTemplates.isEmpty() && !packetCache.isEmpty()) {
+                final TemplateKey exporterKey = TemplateKey.idForExporter(remoteAddress, sourceId);
+                final BufferedPackets bufferedPackets = packetCache.get(exporterKey);
                 if (bufferedPackets != null) {
-                    final List<PacketBytes> tempQueue = new ArrayList<>(bufferedPackets.size());
-                    PacketBytes previousPacket;
-                    int addedPackets = 0;
-                    while (null != (previousPacket = bufferedPackets.poll())) {
-                        // are all templates the packet references there?
-                        if (knownTemplateIds.containsAll(previousPacket.getUsedTemplates())) {
-                            packetsToSend.add(Unpooled.wrappedBuffer(previousPacket.getBytes()));
-                            addedPackets++;
-                        } else {
-                            tempQueue.add(previousPacket);
-                        }
-                    }
-                    LOG.debug("Processing {} previously buffered packets, {} packets require more templates.", addedPackets, tempQueue.size());
-                    // if we couldn't process some of the buffered packets, add them back to the queue to wait for more templates to come in
-                    if (!tempQueue.isEmpty()) {
-                        bufferedPackets.addAll(tempQueue);
+                    final int packetCount = bufferedPackets.ring.size();
+                    // only the packets waiting for the arrived templates are checked, these are released in arrival order
+                    final long removedBytes = bufferedPackets.ring.removeSatisfied(arrivedTemplates,
+                            templateId -> templateCache.contains(addressHigh, addressLow, TemplateTable.id(exporterId, templateId)),
+                            (packet, usedTemplates) -> {
+                                releasedPackets.add(packet);
+                                releasedTemplates.addAll(usedTemplates);
+                            });
+                    bufferedBytes.addAndGet(-removedBytes);
+                    totalBufferedPackets -= packetCount - bufferedPackets.ring.size();
+                    packetsToSend.addAll(releasedPackets);
+                    LOG.debug("Processing {} previously buffered packets, {} packets require more templates.", releasedPackets.size(), bufferedPackets.ring.size());
+                    if (bufferedPackets.ring.isEmpty()) {
+                        bufferedPackets.ring.release();
+                        packetCache.remove(exporterKey);
+                        bufferingExporters.decrementAndGet();
                     }
                 }
             }
 
-            boolean packetBuffered = false;
+            try {
+                return buildResult(buf, remoteAddress, rawNetFlowV9Packet, addressHigh, addressLow, exporterId, packetsToSend, releasedTemplates);
+            } finally {
+                for (ByteBuf releasedPacket : releasedPackets) {
+                    releasedPacket.release();
+                }
+            }
+        }
 
-            // the list of template keys to return in the result
-            final Set<TemplateKey> templates = new HashSet<>();
+        private Result buildResult(ByteBuf buf, SocketAddress remoteAddress, RawNetFlowV9Packet rawNetFlowV9Packet,
+                                   long addressHigh, long addressLow, long exporterId, List<ByteBuf> packetsToSend, Set<Integer> releasedTemplates) {
+            final long sourceId = rawNetFlowV9Packet.header().sourceId();
+
+            // the templates to return in the result, by template id
+            final Map<Integer, TemplateBytes> templates = new LinkedHashMap<>();
+            List<Integer> missingTemplates = null;
 
             // find out which templates we need to include for the current packet
             for (int templateId : rawNetFlowV9Packet.usedTemplates()) {
-                final TemplateKey templateKey = new TemplateKey(remoteAddress, sourceId, templateId);
-                final TemplateBytes template = templateCache.getIfPresent(templateKey);
+                final TemplateBytes template = templateCache.get(addressHigh, addressLow, TemplateTable.id(exporterId, templateId));
 
                 if (template == null) {
                     // we don't have the template, this packet needs to be buffered until we receive the templates
-                    try {
-                        final TemplateKey newTemplateKey = TemplateKey.idForExporter(remoteAddress, sourceId);
-                        final Queue<PacketBytes> bufferedPackets = packetCache.get(newTemplateKey, ConcurrentLinkedQueue::new);
-                        final byte[] bytes = ByteBufUtil.getBytes(buf);
-                        bufferedPackets.add(new PacketBytes(bytes, rawNetFlowV9Packet.usedTemplates()));
-                        packetBuffered = true;
-                    } catch (ExecutionException ignored) {
-                        // the loader cannot fail, it only creates a new queue
+                    if (missingTemplates == null) {
+                        missingTemplates = new ArrayList<>();
                     }
+                    missingTemplates.add(templateId);
                 } else {
                     // include the template in our result
-                    templates.add(templateKey);
-
-                    // .slice is enough here, because we convert it into a byte array when creating the result below
-                    // no need to copy or retain anything, the buffer only lives as long as this method's scope
-                    final ByteBuf packet = buf.slice();
-                    packetsToSend.add(packet);
+                    templates.put(templateId, template);
                 }
             }
+            final boolean packetBuffered = missingTemplates != null;
 
-            // if we have buffered this packet, don't try to process it now. we still need all the templates for it
-            if (packetBuffered) {
-                return new Result(null, true);
+            // if we have to buffer this packet, don't try to process it now. we still need all the templates for it
+            if (!packetBuffered && !templates.isEmpty()) {
+                // .slice is enough here, because its bytes are copied into the result buffer below
+                // no need to copy or retain anything, the buffer only lives as long as this method's scope
+                packetsToSend.add(buf.slice());
+            } else {
+                templates.clear();
             }
 
-            // if we didn't buffer anything but also didn't have anything queued that can be processed, don't proceed.
+            // previously buffered packets need their templates as well, these might not be used by the current packet
+            for (int templateId : releasedTemplates) {
+                if (!templates.containsKey(templateId)) {
+                    final TemplateBytes template = templateCache.get(addressHigh, addressLow, TemplateTable.id(exporterId, templateId));
+                    if (template != null) {
+                        templates.put(templateId, template);
+                    }
+                }
+            }
+
+            final Result result;
             if (packetsToSend.isEmpty()) {
-                return new Result(null, true);
-            }
-
-            // add the used templates and option template to the journal message builder
-            final NetFlowV9Journal.RawNetflowV9.Builder builder = NetFlowV9Journal.RawNetflowV9.newBuilder();
-            for (TemplateKey templateKey : templates) {
-                final TemplateBytes templateBytes = templateCache.getIfPresent(templateKey);
-                if (templateBytes == null) {
-                    LOG.warn("Template {} expired while processing, discarding netflow packet", templateKey);
-                } else if (templateBytes.isOptionTemplate()) {
-                    LOG.debug("Writing options template flow {}", templateKey);
-                    final byte[] bytes = templateBytes.getBytes();
-                    builder.putOptionTemplate(1, ByteString.copyFrom(bytes));
+                // if we didn't buffer anything but also didn't have anything queued that can be processed, don't proceed.
+                result = new Result(null, true);
+            } else {
+                for (TemplateBytes templateBytes : templates.values()) {
+                    LOG.debug("Writing {} {}", templateBytes.isOptionTemplate() ? "options template flow" : "template", templateBytes.getTemplateId());
+                }
+                if (batchWindowNanos > 0) {
+                    result = addToBatch(remoteAddress, addressHigh, addressLow, exporterId, templates.values(), packetsToSend);
                 } else {
-                    LOG.debug("Writing template {}", templateKey);
-                    final byte[] bytes = templateBytes.getBytes();
-                    builder.putTemplates(templateKey.getTemplateId(), ByteString.copyFrom(bytes));
+                    // write the used templates, the option template and all packets straight into the journal entry
+                    final ByteBuf resultBuffer = RawNetflowV9Writer.write(RESULT_ALLOCATOR, templates.values(), packetsToSend, inDictionary(templates.values()));
+                    journalBatchSizes.update(packetsToSend.size());
+                    result = new Result(resultBuffer, true);
                 }
             }
 
-            // finally write out all the packets we had buffered as well as the current one
-            for (ByteBuf packetBuffer : packetsToSend) {
-                final byte[] bytes = ByteBufUtil.getBytes(packetBuffer);
-                final ByteString value = ByteString.copyFrom(bytes);
-                builder.addPackets(value);
+            // released packets are slices of the exporter's ring, whose space is free again. the packet may only be
+            // buffered once they have been copied into the result, otherwise it could overwrite them
+            if (packetBuffered) {
+                bufferPacket(TemplateKey.idForExporter(remoteAddress, sourceId), buf, rawNetFlowV9Packet.usedTemplates(), missingTemplates);
             }
+            return result;
+        }
 
-            final byte[] bytes = builder.build().toByteArray();
-            final ByteBuf resultBuffer = Unpooled.buffer(bytes.length + 1)
-                    .writeByte(NetFlowCodec.ORDERED_V9_MARKER)
-                    .writeBytes(bytes);
-            return new Result(resultBuffer, true);
+        /**
+         * Adds the packets to the exporter's pending journal entry, unless the entry is full or uses other templates.
+         * In that case the pending entry is completed and returned, and a new one is started with the packets.
+         */
+        private Result addToBatch(SocketAddress remoteAddress, long addressHigh, long addressLow, long exporterId,
+                                  Collection<TemplateBytes> templates, Collection<ByteBuf> packets) {
+            int bytes = 0;
+            for (ByteBuf packet : packets) {
+                bytes += packet.readableBytes();
+            }
 
-        } catch (Exception e) {
-            LOG.error("Unexpected failure while aggregating NetFlowV9 packet, discarding packet.", ExceptionUtils.getRootCause(e));
-            return new Result(null, false);
+            ByteBuf completed = null;
+            PendingBatch batch = pendingBatches.get(addressHigh, addressLow, exporterId);
+            if (batch != null && (batch.bytes + bytes > maxBatchBytes || !batch.accepts(templates))) {
+                pendingBatches.remove(batch);
+                completed = completeBatch(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new PendingBatch(remoteAddress, addressHigh, addressLow, exporterId,
+                        RawNetflowV9Writer.start(RESULT_ALLOCATOR, Math.min(maxBatchBytes, 2 * bytes) + 1024), System.nanoTime());
+                pendingBatches.add(batch);
+            }
+            batch.add(templates, packets, bytes);
+
+            if (completed == null && batch.bytes >= maxBatchBytes) {
+                pendingBatches.remove(batch);
+                completed = completeBatch(batch);
+            }
+            return completed == null ? BATCHED : new Result(completed, true);
+        }
+
+        private ByteBuf completeBatch(PendingBatch batch) {
+            journalBatchSizes.update(batch.packets);
+            final Collection<TemplateBytes> templates = batch.templates.values();
+            return RawNetflowV9Writer.finish(batch.entry, templates, inDictionary(templates));
+        }
+
+        /**
+         * Completes the pending journal entries which have been started before the deadline, or all of them.
+         */
+        private void flushBatches(long deadline, boolean all, List<CompletedBatch> completed) {
+            PendingBatch batch;
+            while ((batch = pendingBatches.eldest()) != null) {
+                // the entries are in the order they were started
+                if (!all && batch.started - deadline > 0) {
+                    break;
+                }
+                pendingBatches.remove(batch);
+                completed.add(new CompletedBatch(batch.exporter, completeBatch(batch)));
+            }
+        }
+
+        /**
+         * @return whether the journal entry can reference the templates instead of embedding them
+         */
+        private boolean inDictionary(Collection<TemplateBytes> templates) {
+            if (templateDictionary == null) {
+                return false;
+            }
+            for (TemplateBytes template : templates) {
+                if (!templateDictionary.add(template.getFingerprint(), template.isOptionTemplate(), template.getBytes())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void putTemplate(SocketAddress remoteAddress, long sourceId, TemplateBytes templateBytes, TemplateOrigin origin) {
+            TemplateTable.addressBits(remoteAddress, addressBits);
+            final long id = TemplateTable.id(TemplateTable.exporterId(remoteAddress, sourceId), templateBytes.getTemplateId());
+            putTemplate(remoteAddress, sourceId, addressBits[0], addressBits[1], id, templateBytes, origin);
+        }
+
+        private void putTemplate(SocketAddress remoteAddress, long sourceId, long addressHigh, long addressLow, long id,
+                                 TemplateBytes templateBytes, TemplateOrigin origin) {
+            // exporters resend their templates all the time, only new or changed templates have to be stored
+            final TemplateBytes previous = templateCache.get(addressHigh, addressLow, id);
+            if (previous != null && previous.matches(templateBytes)) {
+                return;
+            }
+
+            final TemplateBytes template;
+            if (previous == null) {
+                template = templateBytes;
+            } else {
+                template = templateBytes.withVersion(previous.getVersion() + 1);
+                LOG.debug("Template {} of {} (source id {}) changed, now at version {}", template.getTemplateId(), remoteAddress, sourceId, template.getVersion());
+                templateChanges.mark();
+                for (TemplateChangeListener listener : templateChangeListeners) {
+                    listener.templateChanged(remoteAddress, sourceId, template.getTemplateId(), previous.getFingerprint(), template.getFingerprint(), template.getVersion());
+                }
+            }
+
+            final boolean persist = templateFile != null && origin != TemplateOrigin.TEMPLATE_FILE;
+            final boolean publish = templateStore != null && origin == TemplateOrigin.EXPORTER;
+            if ((persist || publish) && remoteAddress instanceof InetSocketAddress) {
+                final StoredTemplate stored = new StoredTemplate((InetSocketAddress) remoteAddress, sourceId,
+                        template.getTemplateId(), template.isOptionTemplate(), template.getBytes());
+                if (persist) {
+                    templateFile.append(stored);
+                }
+                if (publish) {
+                    templateStore.publish(stored);
+                }
+            }
+            final TemplateBytes evicted = templateCache.put(addressHigh, addressLow, id, template);
+            if (evicted != null) {
+                LOG.debug("Removed template {} from template cache of shard {} for reason SIZE", evicted.getTemplateId(), index);
+            }
+        }
+
+        @Override
+        public boolean contains(int templateId, boolean optionTemplate, long fingerprint, int length) {
+            // marks the template as recently used, so templates which exporters keep resending aren't evicted
+            final TemplateBytes template = templateCache.get(parsedAddressHigh, parsedAddressLow, TemplateTable.id(parsedExporterId, templateId));
+            return template != null && template.matches(optionTemplate, fingerprint, length);
+        }
+
+        private int bufferedPacketCount(InetAddress exporterAddress) {
+            int count = 0;
+            for (Map.Entry<TemplateKey, BufferedPackets> entry : packetCache.entrySet()) {
+                final SocketAddress remoteAddress = entry.getKey().getRemoteAddress();
+                if (remoteAddress instanceof InetSocketAddress && exporterAddress.equals(((InetSocketAddress) remoteAddress).getAddress())) {
+                    count += entry.getValue().ring.size();
+                }
+            }
+            return count;
+        }
+
+        private long bufferCapacity() {
+            long capacity = 0;
+            for (BufferedPackets exporterPackets : packetCache.values()) {
+                capacity += exporterPackets.ring.capacity();
+            }
+            return capacity;
+        }
+
+        private void releaseBufferedPackets() {
+            for (BufferedPackets exporterPackets : packetCache.values()) {
+                bufferedBytes.addAndGet(-exporterPackets.ring.bytes());
+                exporterPackets.ring.release();
+            }
+            bufferingExporters.addAndGet(-packetCache.size());
+            packetCache.clear();
+            PendingBatch batch;
+            while ((batch = pendingBatches.eldest()) != null) {
+                pendingBatches.remove(batch);
+                batch.entry.release();
+            }
+            totalBufferedPackets = 0;
+        }
+
+        private void bufferPacket(TemplateKey exporterKey, ByteBuf packet, Set<Integer> usedTemplates, List<Integer> missingTemplates) {
+            if (packet.readableBytes() > maxExporterBytes) {
+                LOG.debug("Not buffering packet of {} in shard {} for reason {}", exporterKey, index, EvictionReason.EXPORTER_LIMIT);
+                evictions[EvictionReason.EXPORTER_LIMIT.ordinal()].mark();
+                return;
+            }
+
+            // re-inserting keeps the map in write order, which is the order in which the queues expire
+            BufferedPackets exporterPackets = packetCache.remove(exporterKey);
+            if (exporterPackets == null) {
+                exporterPackets = new BufferedPackets(new PacketRing(RING_ALLOCATOR, maxExporterBytes));
+                bufferingExporters.incrementAndGet();
+            }
+            // the ring is limited to the exporter's share, make room by dropping the exporter's oldest packets
+            while (!exporterPackets.ring.add(packet, usedTemplates, missingTemplates)) {
+                dropOldestPacket(exporterPackets, EvictionReason.EXPORTER_LIMIT);
+                LOG.debug("Removed packet of {} from packet cache of shard {} for reason {}", exporterKey, index, EvictionReason.EXPORTER_LIMIT);
+            }
+            exporterPackets.lastWrite = System.nanoTime();
+            bufferedBytes.addAndGet(packet.readableBytes());
+            totalBufferedPackets++;
+            packetCache.put(exporterKey, exporterPackets);
+        }
+
+        /**
+         * Drops the oldest packets of the exporters which buffer more than their share of the budget, until they are
+         * within their share or the budget isn't exhausted anymore.
+         *
+         * @return whether any packets have been dropped
+         */
+        private boolean evictAboveShare(long fairShare, long maxBufferedBytes) {
+            boolean evicted = false;
+            final Iterator<Map.Entry<TemplateKey, BufferedPackets>> iterator = packetCache.entrySet().iterator();
+            while (iterator.hasNext() && bufferedBytes.get() > maxBufferedBytes) {
+                final Map.Entry<TemplateKey, BufferedPackets> entry = iterator.next();
+                final BufferedPackets exporterPackets = entry.getValue();
+                while (exporterPackets.ring.bytes() > fairShare && bufferedBytes.get() > maxBufferedBytes) {
+                    dropOldestPacket(exporterPackets, EvictionReason.BUDGET);
+                    LOG.debug("Removed packet of {} from packet cache of shard {} for reason {}", entry.getKey(), index, EvictionReason.BUDGET);
+                    evicted = true;
+                }
+                if (exporterPackets.ring.isEmpty()) {
+                    exporterPackets.ring.release();
+                    iterator.remove();
+                    bufferingExporters.decrementAndGet();
+                }
+            }
+            return evicted;
+        }
+
+        private void dropOldestPacket(BufferedPackets exporterPackets, EvictionReason reason) {
+            bufferedBytes.addAndGet(-exporterPackets.ring.removeOldest());
+            totalBufferedPackets--;
+            evictions[reason.ordinal()].mark();
+        }
+
+        private void expireBufferedPackets(long now) {
+            final Iterator<Map.Entry<TemplateKey, BufferedPackets>> iterator = packetCache.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<TemplateKey, BufferedPackets> eldest = iterator.next();
+                final BufferedPackets exporterPackets = eldest.getValue();
+                if (now - exporterPackets.lastWrite < bufferedPacketsTtlNanos) {
+                    break;
+                }
+                LOG.debug("Removed {} from packet cache of shard {} for reason {}", eldest.getKey(), index, EvictionReason.EXPIRED);
+                bufferedBytes.addAndGet(-exporterPackets.ring.bytes());
+                totalBufferedPackets -= exporterPackets.ring.size();
+                evictions[EvictionReason.EXPIRED.ordinal()].mark(exporterPackets.ring.size());
+                exporterPackets.ring.release();
+                iterator.remove();
+                bufferingExporters.decrementAndGet();
+            }
         }
     }
 
-    private class TemplateBytes {
+    private enum TemplateOrigin {
+        EXPORTER, TEMPLATE_FILE, TEMPLATE_STORE
+    }
+
+    private static class BufferedPackets {
+        private final PacketRing ring;
+        private long lastWrite;
+
+        BufferedPackets(PacketRing ring) {
+            this.ring = ring;
+        }
+    }
+
+    /**
+     * Journal entry of an exporter which has been completed by {@link #flushBatches(boolean)}.
+     */
+    public static class CompletedBatch {
+        private final SocketAddress exporter;
+        private final ByteBuf entry;
+
+        CompletedBatch(SocketAddress exporter, ByteBuf entry) {
+            this.exporter = exporter;
+            this.entry = entry;
+        }
+
+        public SocketAddress getExporter() {
+            return exporter;
+        }
+
+        /**
+         * @return the journal entry, to be released by the caller
+         */
+        public ByteBuf getEntry() {
+            return entry;
+        }
+    }
+
+    /**
+     * Journal entry of an exporter which packets are still being added to.
+     */
+    private static class PendingBatch {
+        private final SocketAddress exporter;
+        private final long addressHigh;
+        private final long addressLow;
+        private final long exporterId;
+        private final ByteBuf entry;
+        private final long started;
+        // by template id, the templates used by the packets of the entry
+        private final Map<Integer, TemplateBytes> templates = new HashMap<>();
+        @Nullable
+        private TemplateBytes optionTemplate;
+        private int bytes = 0;
+        private int packets = 0;
+        // neighbours in the order the entries were started
+        @Nullable
+        private PendingBatch older;
+        @Nullable
+        private PendingBatch newer;
+
+        PendingBatch(SocketAddress exporter, long addressHigh, long addressLow, long exporterId, ByteBuf entry, long started) {
+            this.exporter = exporter;
+            this.addressHigh = addressHigh;
+            this.addressLow = addressLow;
+            this.exporterId = exporterId;
+            this.entry = entry;
+            this.started = started;
+        }
+
+        /**
+         * @return whether the templates don't conflict with the templates of the packets which have already been added
+         */
+        boolean accepts(Collection<TemplateBytes> newTemplates) {
+            for (TemplateBytes template : newTemplates) {
+                final TemplateBytes existing = templates.get(template.getTemplateId());
+                if (existing != null && !existing.matches(template)) {
+                    return false;
+                }
+                // an entry has room for only one option template
+                if (template.isOptionTemplate() && optionTemplate != null && optionTemplate.getTemplateId() != template.getTemplateId()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(Collection<TemplateBytes> newTemplates, Collection<ByteBuf> newPackets, int newBytes) {
+            for (TemplateBytes template : newTemplates) {
+                templates.put(template.getTemplateId(), template);
+                if (template.isOptionTemplate()) {
+                    optionTemplate = template;
+                }
+            }
+            for (ByteBuf packet : newPackets) {
+                RawNetflowV9Writer.appendPacket(entry, packet);
+            }
+            bytes += newBytes;
+            packets += newPackets.size();
+        }
+    }
+
+    /**
+     * Pending journal entries of a shard keyed by the primitives of their exporter's key, like {@link TemplateTable}, so
+     * that looking up the entry of a packet doesn't allocate. The entries are linked in the order they were started.
+     */
+    private static class PendingBatches {
+        private PendingBatch[] slots = new PendingBatch[16];
+        private int size = 0;
+        @Nullable
+        private PendingBatch eldest;
+        @Nullable
+        private PendingBatch youngest;
+
+        @Nullable
+        PendingBatch get(long addressHigh, long addressLow, long exporterId) {
+            final int mask = slots.length - 1;
+            int slot = TemplateTable.hash(addressHigh, addressLow, exporterId) & mask;
+            PendingBatch batch;
+            while ((batch = slots[slot]) != null) {
+                if (batch.exporterId == exporterId && batch.addressLow == addressLow && batch.addressHigh == addressHigh) {
+                    return batch;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        @Nullable
+        PendingBatch eldest() {
+            return eldest;
+        }
+
+        /**
+         * Adds the entry of an exporter which doesn't have a pending entry yet.
+         */
+        void add(PendingBatch batch) {
+            // at most half full, which keeps the probe sequences short
+            if (2 * (size + 1) > slots.length) {
+                final PendingBatch[] old = slots;
+                slots = new PendingBatch[old.length << 1];
+                for (PendingBatch existing : old) {
+                    if (existing != null) {
+                        insert(existing);
+                    }
+                }
+            }
+            insert(batch);
+            size++;
+
+            batch.older = youngest;
+            batch.newer = null;
+            if (youngest == null) {
+                eldest = batch;
+            } else {
+                youngest.newer = batch;
+            }
+            youngest = batch;
+        }
+
+        private void insert(PendingBatch batch) {
+            final int mask = slots.length - 1;
+            int slot = TemplateTable.hash(batch.addressHigh, batch.addressLow, batch.exporterId) & mask;
+            while (slots[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = batch;
+        }
+
+        void remove(PendingBatch batch) {
+            final int mask = slots.length - 1;
+            int hole = TemplateTable.hash(batch.addressHigh, batch.addressLow, batch.exporterId) & mask;
+            while (slots[hole] != batch) {
+                hole = (hole + 1) & mask;
+            }
+            // backward shift deletion, see TemplateTable
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                final PendingBatch moved = slots[next];
+                if (moved == null) {
+                    break;
+                }
+                final int home = TemplateTable.hash(moved.addressHigh, moved.addressLow, moved.exporterId) & mask;
+                final boolean homeBetweenHoleAndNext = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!homeBetweenHoleAndNext) {
+                    slots[hole] = moved;
+                    hole = next;
+                }
+            }
+            slots[hole] = null;
+            size--;
+
+            if (batch.older == null) {
+                eldest = batch.newer;
+            } else {
+                batch.older.newer = batch.newer;
+            }
+            if (batch.newer == null) {
+                youngest = batch.older;
+            } else {
+                batch.newer.older = batch.older;
+            }
+            batch.older = null;
+            batch.newer = null;
+        }
+    }
+
+    static class TemplateBytes {
+        private final int templateId;
         private final byte[] bytes;
         private final boolean optionTemplate;
+        private final long fingerprint;
+        private final int version;
+
+        public TemplateBytes(int templateId, byte[] bytes, boolean optionTemplate) {
+            this(templateId, bytes, optionTemplate, ByteBufUtils.hash64(Unpooled.wrappedBuffer(bytes), 0, bytes.length), 1);
+        }
 
-        public TemplateBytes(byte[] bytes, boolean optionTemplate) {
+        private TemplateBytes(int templateId, byte[] bytes, boolean optionTemplate, long fingerprint, int version) {
+            this.templateId = templateId;
             this.bytes = bytes;
             this.optionTemplate = optionTemplate;
+            this.fingerprint = fingerprint;
+            this.version = version;
         }
 
-        public byte[] getBytes() {
-            return bytes;
+        TemplateBytes withVersion(int version) {
+            return new TemplateBytes(templateId, bytes, optionTemplate, fingerprint, version);
         }
 
-        public boolean isOptionTemplate() {
-            return optionTemplate;
+        boolean matches(boolean optionTemplate, long fingerprint, int length) {
+            return this.optionTemplate == optionTemplate && this.fingerprint == fingerprint && bytes.length == length;
         }
-    }
 
-    public static class PacketBytes {
-        private final byte[] bytes;
-        private final Set<Integer> usedTemplates;
+        boolean matches(TemplateBytes other) {
+            return matches(other.optionTemplate, other.fingerprint, other.bytes.length);
+        }
 
-        public PacketBytes(byte[] bytes, Set<Integer> usedTemplates) {
-            this.bytes = bytes;
-            this.usedTemplates = usedTemplates;
+        public long getFingerprint() {
+            return fingerprint;
         }
 
-        public byte[] getBytes() {
-            return bytes;
+        /**
+         * @return how often the exporter has redefined the template id, starting at 1
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public int getTemplateId() {
+            return templateId;
         }
 
-        public Set<Integer> getUsedTemplates() {
-            return usedTemplates;
+        public byte[] getBytes() {
+            return bytes;
         }
 
-        public int readableBytes() {
-            return bytes.length;
+        public boolean isOptionTemplate() {
+            return optionTemplate;
         }
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * FIFO of the packets of a single exporter which wait for their templates, stored in a direct ring buffer.
+ *
+ * The ring is allocated from the given (pooled) allocator when the first packet is added, grows on demand up to its
+ * maximum capacity and must be {@link #release() released} once it isn't needed anymore. Packets are referenced by
+ * handles holding their position in the ring. Packets can be removed out of order; the space of such packets is only
+ * reused once all packets written before them have been removed as well.
+ *
+ * The packets are indexed by the ids of the templates they are missing, so the arrival of a template only touches the
+ * packets waiting for it instead of all packets of the exporter. Removed packets stay in the index until it is compacted.
+ *
+ * Not thread safe.
+ */
+final class PacketRing {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final Comparator<Handle> ARRIVAL_ORDER = Comparator.comparingLong(handle -> handle.position);
+
+    private final ByteBufAllocator allocator;
+    private final int maxCapacity;
+    // in the order the packets have been added, packets removed out of order stay until they reach the head
+    private final ArrayDeque<Handle> handles = new ArrayDeque<>();
+    // handles by the ids of the templates they are waiting for
+    private final Map<Integer, ArrayDeque<Handle>> waiting = new HashMap<>();
+    private int indexEntries = 0;
+    private int staleIndexEntries = 0;
+    private int size = 0;
+    private ByteBuf ring;
+    private int capacity = 0;
+    // positions grow monotonically, origin is the position stored at index 0 of the ring
+    private long origin = 0;
+    private long writePosition = 0;
+    private long bytes = 0;
+
+    PacketRing(ByteBufAllocator allocator, int maxCapacity) {
+        this.allocator = allocator;
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * Copies the readable bytes of a packet which is missing all of its templates into the ring.
+     *
+     * @return {@code false} if the ring doesn't have enough space left, even after growing to its maximum capacity
+     */
+    boolean add(ByteBuf packet, Set<Integer> usedTemplates) {
+        return add(packet, usedTemplates, usedTemplates);
+    }
+
+    /**
+     * Copies the readable bytes of the packet into the ring.
+     *
+     * @param missingTemplates the used templates which are unknown, the packet is indexed by these
+     * @return {@code false} if the ring doesn't have enough space left, even after growing to its maximum capacity
+     */
+    boolean add(ByteBuf packet, Set<Integer> usedTemplates, Collection<Integer> missingTemplates) {
+        final int length = packet.readableBytes();
+        final long used = writePosition - (handles.isEmpty() ? writePosition : handles.peekFirst().position);
+        if (used + length > maxCapacity) {
+            return false;
+        }
+        if (used + length > capacity) {
+            grow((int) (used + length));
+        }
+
+        final int index = index(writePosition);
+        final int firstPart = Math.min(length, capacity - index);
+        ring.setBytes(index, packet, packet.readerIndex(), firstPart);
+        if (firstPart < length) {
+            ring.setBytes(0, packet, packet.readerIndex() + firstPart, length - firstPart);
+        }
+
+        final Handle handle = new Handle(writePosition, length, usedTemplates);
+        handles.add(handle);
+        for (int templateId : missingTemplates) {
+            waitFor(handle, templateId);
+        }
+        writePosition += length;
+        bytes += length;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the oldest packet.
+     *
+     * @return the number of bytes of the removed packet
+     */
+    int removeOldest() {
+        final Handle handle = handles.remove();
+        remove(handle);
+        trimHandles();
+        return handle.length;
+    }
+
+    /**
+     * Removes the packets which aren't missing any templates anymore after the given templates have arrived, in the order
+     * they have been added. Only the packets waiting for one of the templates are checked. The consumer receives a retained
+     * buffer and the used templates of each removed packet and has to release the buffer. The space of the removed packets
+     * is reused by the next {@link #add}, so their buffers have to be copied before anything is added to the ring.
+     *
+     * @param arrivedTemplates the ids of the templates which have arrived
+     * @param knownTemplate    whether a template is known, templates known when a packet was added might have been evicted since
+     * @return the number of bytes of the removed packets
+     */
+    long removeSatisfied(Collection<Integer> arrivedTemplates, IntPredicate knownTemplate, BiConsumer<ByteBuf, Set<Integer>> consumer) {
+        List<Handle> satisfied = null;
+        for (int templateId : arrivedTemplates) {
+            final ArrayDeque<Handle> waitingHandles = waiting.remove(templateId);
+            if (waitingHandles == null) {
+                continue;
+            }
+            indexEntries -= waitingHandles.size();
+            for (Handle handle : waitingHandles) {
+                if (handle.removed) {
+                    staleIndexEntries--;
+                } else if (--handle.missing == 0) {
+                    if (satisfied == null) {
+                        satisfied = new ArrayList<>();
+                    }
+                    satisfied.add(handle);
+                }
+            }
+        }
+        if (satisfied == null) {
+            return 0;
+        }
+
+        // a packet waiting for several templates is in several queues
+        satisfied.sort(ARRIVAL_ORDER);
+        long removedBytes = 0;
+        for (Handle handle : satisfied) {
+            for (int templateId : handle.usedTemplates) {
+                if (!knownTemplate.test(templateId)) {
+                    waitFor(handle, templateId);
+                }
+            }
+            if (handle.missing == 0) {
+                consumer.accept(retainedBuffer(handle), handle.usedTemplates);
+                remove(handle);
+                removedBytes += handle.length;
+            }
+        }
+        trimHandles();
+        return removedBytes;
+    }
+
+    /**
+     * Removes all packets whose used templates are accepted by the filter, in the order they have been added.
+     * The consumer receives a retained buffer of each removed packet and has to release it.
+     *
+     * @return the number of bytes of the removed packets
+     */
+    long removeIf(Predicate<Set<Integer>> filter, Consumer<ByteBuf> consumer) {
+        long removedBytes = 0;
+        final Iterator<Handle> iterator = handles.iterator();
+        while (iterator.hasNext()) {
+            final Handle handle = iterator.next();
+            if (!handle.removed && filter.test(handle.usedTemplates)) {
+                consumer.accept(retainedBuffer(handle));
+                remove(handle);
+                removedBytes += handle.length;
+            }
+        }
+        trimHandles();
+        return removedBytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of bytes of the packets in the ring
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes of direct memory held by the ring
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Drops all packets and gives the ring's memory back to the allocator.
+     */
+    void release() {
+        handles.clear();
+        waiting.clear();
+        indexEntries = 0;
+        staleIndexEntries = 0;
+        size = 0;
+        bytes = 0;
+        if (ring != null) {
+            ring.release();
+            ring = null;
+            capacity = 0;
+        }
+    }
+
+    private void waitFor(Handle handle, int templateId) {
+        waiting.computeIfAbsent(templateId, id -> new ArrayDeque<>()).add(handle);
+        handle.missing++;
+        indexEntries++;
+    }
+
+    private void remove(Handle handle) {
+        handle.removed = true;
+        size--;
+        bytes -= handle.length;
+        // the index still references the handle for each template it was waiting for
+        staleIndexEntries += handle.missing;
+        if (staleIndexEntries > 64 && staleIndexEntries > indexEntries / 2) {
+            compactIndex();
+        }
+    }
+
+    /**
+     * Drops the removed handles at the head of the queue. Afterwards the head is a packet still in the ring, whose position
+     * marks the start of the used space.
+     */
+    private void trimHandles() {
+        while (!handles.isEmpty() && handles.peekFirst().removed) {
+            handles.removeFirst();
+        }
+    }
+
+    private void compactIndex() {
+        final Iterator<ArrayDeque<Handle>> iterator = waiting.values().iterator();
+        while (iterator.hasNext()) {
+            final ArrayDeque<Handle> waitingHandles = iterator.next();
+            waitingHandles.removeIf(handle -> handle.removed);
+            if (waitingHandles.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        indexEntries -= staleIndexEntries;
+        staleIndexEntries = 0;
+    }
+
+    private int index(long position) {
+        return (int) ((position - origin) % capacity);
+    }
+
+    private ByteBuf retainedBuffer(Handle handle) {
+        final int index = index(handle.position);
+        final int firstPart = Math.min(handle.length, capacity - index);
+        if (firstPart == handle.length) {
+            return ring.retainedSlice(index, handle.length);
+        }
+        return Unpooled.wrappedBuffer(ring.retainedSlice(index, firstPart), ring.retainedSlice(0, handle.length - firstPart));
+    }
+
+    private void grow(int required) {
+        final int newCapacity = Math.min(maxCapacity, Math.max(required, Math.max(INITIAL_CAPACITY, capacity * 2)));
+        final ByteBuf newRing = allocator.directBuffer(newCapacity, newCapacity);
+        final long start = handles.isEmpty() ? writePosition : handles.peekFirst().position;
+        final int used = (int) (writePosition - start);
+
+        // copy the used part of the old ring to the start of the new one
+        if (used > 0) {
+            final int index = index(start);
+            final int firstPart = Math.min(used, capacity - index);
+            newRing.setBytes(0, ring, index, firstPart);
+            if (firstPart < used) {
+                newRing.setBytes(firstPart, ring, 0, used - firstPart);
+            }
+        }
+        if (ring != null) {
+            // buffers of removed packets which are still in use hold their own reference to the old ring
+            ring.release();
+        }
+        ring = newRing;
+        capacity = newCapacity;
+        origin = start;
+    }
+
+    static final class Handle {
+        private final long position;
+        private final int length;
+        private final Set<Integer> usedTemplates;
+        // number of queues of the index the handle is waiting in
+        private int missing = 0;
+        private boolean removed = false;
+
+        private Handle(long position, int length, Set<Integer> usedTemplates) {
+            this.position = position;
+            this.length = length;
+            this.usedTemplates = usedTemplates;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
+import org.graylog.plugins.netflow.v9.NetFlowV9OptionTemplate;
+import org.graylog.plugins.netflow.v9.NetFlowV9RecordDecoders;
+import org.graylog.plugins.netflow.v9.NetFlowV9Template;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.function.Supplier;
+
+/**
+ * Parsed V9 templates shared by all codec instances and decoding threads of this node, so a template is only parsed once
+ * per version instead of once per journal entry.
+ *
+ * Templates are keyed by their fingerprint, which covers the template id and all field definitions, and by the field
+ * definitions of the input, which determine the parsed field types. Exporters sending the same template share the parsed
+ * template. Outdated versions are evicted once the cache is full. The compiled record decoders of the parsed templates are
+ * kept next to them and dropped together with their templates.
+ */
+@Singleton
+public class ParsedTemplateCache {
+    private final Cache<Key, Object> templates;
+    private final NetFlowV9RecordDecoders decoders = new NetFlowV9RecordDecoders();
+
+    @VisibleForTesting
+    ParsedTemplateCache() {
+        this(NetFlowPluginConfiguration.DEFAULT_MAX_TEMPLATES);
+    }
+
+    @Inject
+    public ParsedTemplateCache(@Named(NetFlowPluginConfiguration.MAX_TEMPLATES) int maxTemplates) {
+        this.templates = CacheBuilder.newBuilder().maximumSize(maxTemplates).build();
+    }
+
+    /**
+     * @param definitions the field definitions the template is parsed with, e.g. the path of the definitions file
+     * @param fingerprint the fingerprint of the template's bytes
+     * @param parser      parses the template if it isn't cached yet
+     */
+    public NetFlowV9Template template(String definitions, long fingerprint, Supplier<NetFlowV9Template> parser) {
+        return (NetFlowV9Template) get(new Key(definitions, fingerprint, false), parser);
+    }
+
+    /**
+     * @param definitions the field definitions the template is parsed with, e.g. the path of the definitions file
+     * @param fingerprint the fingerprint of the template's bytes
+     * @param parser      parses the template if it isn't cached yet
+     */
+    public NetFlowV9OptionTemplate optionTemplate(String definitions, long fingerprint, Supplier<NetFlowV9OptionTemplate> parser) {
+        return (NetFlowV9OptionTemplate) get(new Key(definitions, fingerprint, true), parser);
+    }
+
+    /**
+     * @return the compiled record decoders of the templates returned by this cache
+     */
+    public NetFlowV9RecordDecoders decoders() {
+        return decoders;
+    }
+
+    @VisibleForTesting
+    long size() {
+        return templates.size();
+    }
+
+    private Object get(Key key, Supplier<?> parser) {
+        final Object cached = templates.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        // threads racing for a new template parse it twice, which is cheaper than making every lookup wait for a loader
+        final Object parsed = parser.get();
+        templates.put(key, parsed);
+        return parsed;
+    }
+
+    private static final class Key {
+        private final String definitions;
+        private final long fingerprint;
+        private final boolean optionTemplate;
+
+        Key(String definitions, long fingerprint, boolean optionTemplate) {
+            this.definitions = definitions;
+            this.fingerprint = fingerprint;
+            this.optionTemplate = optionTemplate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return fingerprint == key.fingerprint && optionTemplate == key.optionTemplate && definitions.equals(key.definitions);
+        }
+
+        @Override
+        public int hashCode() {
+            // on the decoding path, avoids boxing the fields
+            return 31 * (31 * definitions.hashCode() + Long.hashCode(fingerprint)) + Boolean.hashCode(optionTemplate);
+        }
+    }
+}
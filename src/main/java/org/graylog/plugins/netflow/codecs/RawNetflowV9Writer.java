@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator.TemplateBytes;
+import org.graylog.plugins.netflow.v9.NetFlowV9Journal.RawNetflowV9;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Writes {@link RawNetflowV9} journal entries straight into a buffer of the given allocator, without building the
+ * protobuf message first.
+ *
+ * The templates are either embedded ({@link NetFlowCodec#ORDERED_V9_MARKER}) or referenced by their fingerprint as an
+ * 8 byte big endian value ({@link NetFlowCodec#TEMPLATE_REFERENCE_V9_MARKER}), which the codec resolves through the
+ * {@link TemplateDictionary}.
+ *
+ * Entries of several packets can also be written incrementally: packets are appended to a {@link #start(ByteBufAllocator, int)
+ * started} entry as they arrive and the templates are written when the entry is {@link #finish(ByteBuf, Collection, boolean)
+ * finished}. Protobuf doesn't require the fields to be in order, so the packets preceding the templates parse just the same.
+ *
+ * The size of the entry is computed up front, so the buffer is allocated once with its exact size and the bytes of the
+ * templates and packets are copied exactly once, from their buffers into the entry. The output is the same as
+ * serializing the equivalent {@link RawNetflowV9.Builder} message.
+ */
+final class RawNetflowV9Writer {
+    // map entries are embedded messages with the key as field 1 and the value as field 2
+    private static final int MAP_KEY = 1;
+    private static final int MAP_VALUE = 2;
+    // the key the option template is stored under, there is only one per exporter
+    static final int OPTION_TEMPLATE_KEY = 1;
+    private static final int PACKET_TAG = RawNetflowV9.PACKETS_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private RawNetflowV9Writer() {
+    }
+
+    /**
+     * @param templateReferences whether to write the fingerprints of the templates instead of the templates themselves
+     * @return a buffer containing the marker of the format followed by the serialized {@link RawNetflowV9} message, owned by the caller
+     */
+    static ByteBuf write(ByteBufAllocator allocator, Collection<TemplateBytes> templates, Collection<ByteBuf> packets, boolean templateReferences) {
+        final byte marker = templateReferences ? NetFlowCodec.TEMPLATE_REFERENCE_V9_MARKER : NetFlowCodec.ORDERED_V9_MARKER;
+        int size = 0;
+        for (TemplateBytes template : templates) {
+            size += templateSize(template, templateReferences);
+        }
+        for (ByteBuf packet : packets) {
+            size += CodedOutputStream.computeTagSize(RawNetflowV9.PACKETS_FIELD_NUMBER) + lengthDelimitedSize(packet.readableBytes());
+        }
+
+        final ByteBuf buffer = allocator.buffer(size + 1, size + 1);
+        boolean written = false;
+        try {
+            buffer.writeByte(marker);
+            final ByteBuffer target = buffer.nioBuffer(1, size);
+            final CodedOutputStream output = CodedOutputStream.newInstance(target);
+            // fields in the order of their numbers, like the generated code writes them
+            for (TemplateBytes template : templates) {
+                if (!template.isOptionTemplate()) {
+                    writeTemplate(output, template, templateReferences);
+                }
+            }
+            for (TemplateBytes template : templates) {
+                if (template.isOptionTemplate()) {
+                    writeTemplate(output, template, templateReferences);
+                }
+            }
+            for (ByteBuf packet : packets) {
+                output.writeTag(RawNetflowV9.PACKETS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeUInt32NoTag(packet.readableBytes());
+                // composite buffers, e.g. packets wrapping around the end of a ring, consist of several NIO buffers
+                for (ByteBuffer nioBuffer : packet.nioBuffers()) {
+                    output.write(nioBuffer);
+                }
+            }
+            output.flush();
+            output.checkNoSpaceLeft();
+            buffer.writerIndex(size + 1);
+            written = true;
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write NetFlow V9 journal entry", e);
+        } finally {
+            if (!written) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * @return an empty entry with room for the marker, owned by the caller
+     */
+    static ByteBuf start(ByteBufAllocator allocator, int initialCapacity) {
+        // the marker depends on the templates, it is written when the entry is finished
+        return allocator.buffer(initialCapacity).writeByte(0);
+    }
+
+    /**
+     * Copies the readable bytes of the packet to the end of the started entry.
+     */
+    static void appendPacket(ByteBuf entry, ByteBuf packet) {
+        final int length = packet.readableBytes();
+        entry.ensureWritable(CodedOutputStream.computeUInt32SizeNoTag(PACKET_TAG) + lengthDelimitedSize(length));
+        writeVarint(entry, PACKET_TAG);
+        writeVarint(entry, length);
+        entry.writeBytes(packet, packet.readerIndex(), length);
+    }
+
+    /**
+     * Writes the templates used by the appended packets and the marker of the format.
+     *
+     * @return the entry
+     */
+    static ByteBuf finish(ByteBuf entry, Collection<TemplateBytes> templates, boolean templateReferences) {
+        int size = 0;
+        for (TemplateBytes template : templates) {
+            size += templateSize(template, templateReferences);
+        }
+        entry.ensureWritable(size);
+        try {
+            final CodedOutputStream output = CodedOutputStream.newInstance(entry.nioBuffer(entry.writerIndex(), size));
+            for (TemplateBytes template : templates) {
+                writeTemplate(output, template, templateReferences);
+            }
+            output.flush();
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write NetFlow V9 journal entry", e);
+        }
+        entry.writerIndex(entry.writerIndex() + size);
+        entry.setByte(0, templateReferences ? NetFlowCodec.TEMPLATE_REFERENCE_V9_MARKER : NetFlowCodec.ORDERED_V9_MARKER);
+        return entry;
+    }
+
+    private static void writeVarint(ByteBuf buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    private static int templateSize(TemplateBytes template, boolean templateReferences) {
+        final int fieldNumber = template.isOptionTemplate() ? RawNetflowV9.OPTIONTEMPLATE_FIELD_NUMBER : RawNetflowV9.TEMPLATES_FIELD_NUMBER;
+        return CodedOutputStream.computeTagSize(fieldNumber) + lengthDelimitedSize(entrySize(template, templateReferences));
+    }
+
+    private static int entrySize(TemplateBytes template, boolean templateReferences) {
+        final int valueLength = templateReferences ? Long.BYTES : template.getBytes().length;
+        return CodedOutputStream.computeUInt32Size(MAP_KEY, key(template))
+                + CodedOutputStream.computeTagSize(MAP_VALUE) + lengthDelimitedSize(valueLength);
+    }
+
+    private static void writeTemplate(CodedOutputStream output, TemplateBytes template, boolean templateReferences) throws IOException {
+        final int fieldNumber = template.isOptionTemplate() ? RawNetflowV9.OPTIONTEMPLATE_FIELD_NUMBER : RawNetflowV9.TEMPLATES_FIELD_NUMBER;
+        output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(entrySize(template, templateReferences));
+        output.writeUInt32(MAP_KEY, key(template));
+        if (templateReferences) {
+            output.writeTag(MAP_VALUE, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(Long.BYTES);
+            // fixed64 is little endian
+            output.writeFixed64NoTag(Long.reverseBytes(template.getFingerprint()));
+        } else {
+            output.writeByteArray(MAP_VALUE, template.getBytes());
+        }
+    }
+
+    private static int key(TemplateBytes template) {
+        return template.isOptionTemplate() ? OPTION_TEMPLATE_KEY : template.getTemplateId();
+    }
+
+    private static int lengthDelimitedSize(int length) {
+        return CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+    }
+}
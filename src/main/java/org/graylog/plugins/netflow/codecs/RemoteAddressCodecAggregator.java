@@ -16,11 +16,15 @@
 package org.graylog.plugins.netflow.codecs;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.socket.DatagramPacket;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.net.InetAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface RemoteAddressCodecAggregator extends CodecAggregator {
 
@@ -32,4 +36,26 @@ public interface RemoteAddressCodecAggregator extends CodecAggregator {
 
     @Nonnull
     Result addChunk(ByteBuf buf, @Nullable SocketAddress remoteAddress);
+
+    /**
+     * Aggregates a batch of datagrams, e.g. all datagrams of one read loop.
+     *
+     * @param packets the received datagrams, the caller retains ownership of their buffers
+     * @return one result per datagram, in the same order as {@code packets}
+     */
+    @Nonnull
+    default List<Result> addChunks(List<DatagramPacket> packets) {
+        final List<Result> results = new ArrayList<>(packets.size());
+        for (DatagramPacket packet : packets) {
+            results.add(addChunk(packet.content(), packet.sender()));
+        }
+        return results;
+    }
+
+    /**
+     * @return the number of packets of the given exporter which are waiting for their templates to arrive
+     */
+    default int bufferedPacketCount(InetAddress exporterAddress) {
+        return 0;
+    }
 }
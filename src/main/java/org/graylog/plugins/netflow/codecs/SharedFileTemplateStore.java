@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * {@link TemplateStore} for nodes which share a directory, mostly meant for testing multi-node setups on one host.
+ *
+ * Every node appends its templates to its own {@link TemplateFile} in the directory and follows the files of the other
+ * nodes through read-only memory mappings. On a lookup miss the other files are checked for new records, at most once
+ * every {@value #REFRESH_INTERVAL_MILLIS} milliseconds, so a template published by one node is visible to the others
+ * almost immediately.
+ */
+public class SharedFileTemplateStore implements TemplateStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedFileTemplateStore.class);
+
+    private static final long REFRESH_INTERVAL_MILLIS = 10;
+    private static final String FILE_SUFFIX = ".dat";
+
+    private final Path directory;
+    private final Path ownFile;
+    private final TemplateFile templateFile;
+    private final ConcurrentMap<TemplateKey, StoredTemplate> templates = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<Path, Tail> tails = new HashMap<>();
+    private volatile long nextRefresh = 0;
+
+    public SharedFileTemplateStore(Path directory, String nodeId) {
+        this(directory, nodeId, NetFlowPluginConfiguration.DEFAULT_MAX_TEMPLATES);
+    }
+
+    public SharedFileTemplateStore(Path directory, String nodeId, int maxTemplates) {
+        this.directory = directory;
+        this.ownFile = directory.resolve(nodeId + FILE_SUFFIX);
+        this.templateFile = new TemplateFile(ownFile, maxTemplates);
+        for (StoredTemplate template : templateFile.templates()) {
+            templates.put(template.key(), template);
+        }
+    }
+
+    @Override
+    public void publish(StoredTemplate template) {
+        templateFile.append(template);
+        templates.put(template.key(), template);
+    }
+
+    @Nullable
+    @Override
+    public StoredTemplate lookup(InetSocketAddress exporter, long sourceId, int templateId) {
+        final TemplateKey key = new TemplateKey(exporter, sourceId, templateId);
+        final StoredTemplate template = templates.get(key);
+        if (template != null || !refresh()) {
+            return template;
+        }
+        return templates.get(key);
+    }
+
+    /**
+     * Reads the records the other nodes have written since the last refresh.
+     *
+     * @return {@code false} if the files have been checked too recently
+     */
+    private synchronized boolean refresh() {
+        final long now = System.nanoTime();
+        if (now - nextRefresh < 0) {
+            return false;
+        }
+        nextRefresh = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_INTERVAL_MILLIS);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(ownFile)) {
+                    tails.computeIfAbsent(file, Tail::new).poll(template -> templates.put(template.key(), template));
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to read shared NetFlow templates from {}", directory, e);
+        }
+        return true;
+    }
+
+    /**
+     * Follows the template file of another node.
+     */
+    private static class Tail {
+        private final Path path;
+        private MappedByteBuffer mapped;
+        private Object fileKey;
+        private int position;
+
+        Tail(Path path) {
+            this.path = path;
+        }
+
+        void poll(Consumer<StoredTemplate> consumer) throws IOException {
+            final BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return;
+            }
+            // compaction replaces the file, growing it makes it larger than the mapping
+            final boolean replaced = mapped == null || !Objects.equals(fileKey, attributes.fileKey()) || attributes.size() < mapped.capacity();
+            if (replaced || attributes.size() > mapped.capacity()) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(Integer.MAX_VALUE, channel.size()));
+                }
+                fileKey = attributes.fileKey();
+                if (replaced) {
+                    position = TemplateFile.HEADER_LENGTH;
+                }
+            }
+            if (TemplateFile.hasMagic(mapped)) {
+                position = TemplateFile.readRecords(mapped, position, consumer);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.base.MoreObjects;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * A raw NetFlow v9 template flow together with the exporter it belongs to, as persisted by {@link TemplateFile} and
+ * exchanged through a {@link TemplateStore}.
+ */
+public class StoredTemplate {
+    private final InetSocketAddress exporter;
+    private final long sourceId;
+    private final int templateId;
+    private final boolean optionTemplate;
+    private final byte[] bytes;
+
+    public StoredTemplate(InetSocketAddress exporter, long sourceId, int templateId, boolean optionTemplate, byte[] bytes) {
+        this.exporter = exporter;
+        this.sourceId = sourceId;
+        this.templateId = templateId;
+        this.optionTemplate = optionTemplate;
+        this.bytes = bytes;
+    }
+
+    public InetSocketAddress getExporter() {
+        return exporter;
+    }
+
+    public long getSourceId() {
+        return sourceId;
+    }
+
+    public int getTemplateId() {
+        return templateId;
+    }
+
+    public boolean isOptionTemplate() {
+        return optionTemplate;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public TemplateKey key() {
+        return new TemplateKey(exporter, sourceId, templateId);
+    }
+
+    /**
+     * @return whether the other template has the same kind and contents, regardless of the exporter
+     */
+    public boolean sameAs(StoredTemplate other) {
+        return optionTemplate == other.optionTemplate && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("exporter", exporter)
+                .add("sourceId", sourceId)
+                .add("templateId", templateId)
+                .add("optionTemplate", optionTemplate)
+                .add("length", bytes.length)
+                .toString();
+    }
+}
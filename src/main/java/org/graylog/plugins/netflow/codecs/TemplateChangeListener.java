@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import java.net.SocketAddress;
+
+/**
+ * Notified by the {@link NetflowV9CodecAggregator} when an exporter redefines a template id with different contents.
+ * Templates which are resent unchanged don't trigger a notification.
+ */
+public interface TemplateChangeListener {
+    /**
+     * @param previousFingerprint fingerprint of the replaced template
+     * @param fingerprint         fingerprint of the new template
+     * @param version             version of the new template, incremented with every redefinition of the template id
+     */
+    void templateChanged(SocketAddress exporter, long sourceId, int templateId, long previousFingerprint, long fingerprint, int version);
+}
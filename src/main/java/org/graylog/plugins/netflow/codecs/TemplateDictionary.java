@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Memory-mapped dictionary of NetFlow v9 templates keyed by their fingerprint, kept next to the journal of this node.
+ *
+ * Journal entries only reference their templates by fingerprint (see {@link NetFlowCodec#TEMPLATE_REFERENCE_V9_MARKER})
+ * once the aggregator has {@link #add(long, boolean, byte[]) added} the templates here, and the codec {@link #lookup(long)
+ * resolves} the references when it decodes the entries. A template has to stay in the dictionary as long as journal
+ * entries referencing it may not have been processed yet. To avoid writing on every reference, the record of a template
+ * is only rewritten once it is older than half of the retention time, and records expire after the retention time. So
+ * templates are kept for at least half of the retention time after they have last been referenced.
+ *
+ * Records are made visible by writing their length last, just like in the {@link TemplateFile}. Expired and rewritten
+ * records are compacted away when the file is opened and before it grows.
+ *
+ * Failing to read or write the file is logged and disables the dictionary, the aggregator then embeds the templates in
+ * the journal entries again.
+ */
+@Singleton
+public class TemplateDictionary {
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateDictionary.class);
+
+    static final String FILE_NAME = "netflow-v9-template-dictionary.dat";
+    // journal entries referencing a template can be processed at least a week after they were written
+    static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    // "NFD1"
+    private static final int MAGIC = 0x4e464431;
+    private static final int HEADER_LENGTH = 4;
+    // length, fingerprint, last reference, flags
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 1;
+    private static final int MIN_MAPPED_SIZE = 256 * 1024;
+    private static final byte FLAG_OPTION_TEMPLATE = 0x01;
+
+    private final Path path;
+    private final long retentionMillis;
+    private final LongSupplier clock;
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int writePosition;
+    private int records;
+    private volatile boolean failed = false;
+
+    @Inject
+    public TemplateDictionary(@Named("data_dir") Path dataDirectory) {
+        this(dataDirectory.resolve("netflow").resolve(FILE_NAME), DEFAULT_RETENTION_MILLIS, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    TemplateDictionary(Path path, long retentionMillis, LongSupplier clock) {
+        this.path = path;
+        this.retentionMillis = retentionMillis;
+        this.clock = clock;
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            fail("Unable to open NetFlow template dictionary " + path + ", journal entries will embed their templates", e);
+        }
+    }
+
+    /**
+     * Makes sure the template can be looked up by its fingerprint until the retention time has passed.
+     *
+     * @return {@code false} if journal entries can't reference the template, because the dictionary is unavailable or
+     * holds a different template with the same fingerprint
+     */
+    public boolean add(long fingerprint, boolean optionTemplate, byte[] bytes) {
+        if (failed) {
+            return false;
+        }
+        final long now = clock.getAsLong();
+        final Entry entry = entries.get(fingerprint);
+        if (entry != null && now - entry.lastReference < retentionMillis / 2) {
+            return entry.sameAs(optionTemplate, bytes);
+        }
+        synchronized (this) {
+            if (failed) {
+                return false;
+            }
+            final Entry existing = entries.get(fingerprint);
+            if (existing != null) {
+                if (!existing.sameAs(optionTemplate, bytes)) {
+                    return false;
+                }
+                if (now - existing.lastReference < retentionMillis / 2) {
+                    return true;
+                }
+            }
+            final Entry added = new Entry(fingerprint, optionTemplate, existing == null ? bytes : existing.bytes, now);
+            try {
+                append(added);
+            } catch (IOException | RuntimeException e) {
+                fail("Unable to write NetFlow template dictionary " + path + ", journal entries will embed their templates", e);
+                return false;
+            }
+            entries.put(fingerprint, added);
+            return true;
+        }
+    }
+
+    /**
+     * @return the bytes of the template with the fingerprint or {@code null} if it is unknown
+     */
+    @Nullable
+    public byte[] lookup(long fingerprint) {
+        final Entry entry = entries.get(fingerprint);
+        return entry == null ? null : entry.bytes;
+    }
+
+    @VisibleForTesting
+    synchronized int records() {
+        return records;
+    }
+
+    private void append(Entry entry) throws IOException {
+        final int recordLength = RECORD_OVERHEAD + entry.bytes.length;
+        if (writePosition + recordLength + 4 > mapped.capacity()) {
+            removeExpiredEntries();
+            if (records + 1 > 2 * (entries.size() + 1)) {
+                // rather reclaim the space of rewritten and expired records than growing the file
+                entries.put(entry.fingerprint, entry);
+                compact();
+                return;
+            }
+            map(Math.max(2L * mapped.capacity(), (long) writePosition + recordLength + 4));
+        }
+        writeRecord(mapped, writePosition, entry);
+        writePosition += recordLength;
+        records++;
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(channel.size());
+
+        if (channel.size() == 0 || mapped.getInt(0) == 0) {
+            mapped.putInt(0, MAGIC);
+            writePosition = HEADER_LENGTH;
+            return;
+        }
+        if (mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a NetFlow template dictionary");
+        }
+
+        int position = HEADER_LENGTH;
+        while (position + 4 <= mapped.capacity() && mapped.getInt(position) != 0) {
+            final Entry entry = readRecord(mapped, position);
+            if (entry == null) {
+                LOG.warn("Ignoring corrupt record at offset {} of NetFlow template dictionary {} and all following records", position, path);
+                break;
+            }
+            entries.put(entry.fingerprint, entry);
+            records++;
+            position += RECORD_OVERHEAD + entry.bytes.length;
+        }
+        writePosition = position;
+
+        final boolean complete = position + 4 > mapped.capacity() || mapped.getInt(position) == 0;
+        final boolean expired = removeExpiredEntries();
+        if (!complete || expired || records > entries.size()) {
+            compact();
+        }
+        LOG.debug("Loaded {} NetFlow v9 templates from dictionary {}", entries.size(), path);
+    }
+
+    private boolean removeExpiredEntries() {
+        final long now = clock.getAsLong();
+        boolean removed = false;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastReference >= retentionMillis) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Nullable
+    private static Entry readRecord(ByteBuffer buffer, int position) {
+        final int length = buffer.getInt(position);
+        if (length < RECORD_OVERHEAD - 4 || position + 4L + length > buffer.capacity()) {
+            return null;
+        }
+        final long fingerprint = buffer.getLong(position + 4);
+        final long lastReference = buffer.getLong(position + 12);
+        final boolean optionTemplate = (buffer.get(position + 20) & FLAG_OPTION_TEMPLATE) != 0;
+        final byte[] bytes = new byte[length - (RECORD_OVERHEAD - 4)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(position + RECORD_OVERHEAD + i);
+        }
+        return new Entry(fingerprint, optionTemplate, bytes, lastReference);
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int position, Entry entry) {
+        final ByteBuffer record = buffer.duplicate();
+        record.position(position + 4);
+        record.putLong(entry.fingerprint)
+                .putLong(entry.lastReference)
+                .put(entry.optionTemplate ? FLAG_OPTION_TEMPLATE : 0)
+                .put(entry.bytes);
+        // the length is written last, until then the record is invisible
+        buffer.putInt(position, record.position() - position - 4);
+    }
+
+    /**
+     * Rewrites the file with only the current entries and replaces the old file atomically.
+     */
+    private void compact() throws IOException {
+        int length = HEADER_LENGTH;
+        for (Entry entry : entries.values()) {
+            length += RECORD_OVERHEAD + entry.bytes.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+        buffer.putInt(0, MAGIC);
+        int position = HEADER_LENGTH;
+        for (Entry entry : entries.values()) {
+            writeRecord(buffer, position, entry);
+            position += RECORD_OVERHEAD + entry.bytes.length;
+        }
+
+        final Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(position + 4);
+        writePosition = position;
+        records = entries.size();
+    }
+
+    private void map(long size) throws IOException {
+        final long mappedSize = Math.max(MIN_MAPPED_SIZE, size);
+        if (mappedSize > Integer.MAX_VALUE) {
+            throw new IOException("NetFlow template dictionary " + path + " is too large");
+        }
+        // mapping beyond the end of the file grows it, the new part reads as zeros
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+    }
+
+    private void fail(String message, Exception e) {
+        LOG.warn(message, e);
+        // entries which are already known stay resolvable, so the journal can still be drained
+        failed = true;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class Entry {
+        private final long fingerprint;
+        private final boolean optionTemplate;
+        private final byte[] bytes;
+        private final long lastReference;
+
+        Entry(long fingerprint, boolean optionTemplate, byte[] bytes, long lastReference) {
+            this.fingerprint = fingerprint;
+            this.optionTemplate = optionTemplate;
+            this.bytes = bytes;
+            this.lastReference = lastReference;
+        }
+
+        boolean sameAs(boolean optionTemplate, byte[] bytes) {
+            return this.optionTemplate == optionTemplate && (this.bytes == bytes || Arrays.equals(this.bytes, bytes));
+        }
+    }
+}
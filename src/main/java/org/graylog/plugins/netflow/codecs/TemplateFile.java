@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.netflow.NetFlowPluginConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Append-only, memory-mapped file of the NetFlow v9 templates seen by this node, so that templates survive restarts of
+ * the input or the server and the first data packets after a restart can be decoded right away.
+ *
+ * Each record holds the exporter's address and port, the source id, the template id, whether it is an option template
+ * and the raw template flow. A record is made visible by writing its length after its contents, so a torn write leaves
+ * the previous records intact. Later records replace earlier ones with the same key; the garbage is compacted away when
+ * the file is opened and before it grows. Only the most recently written templates are kept.
+ *
+ * Failing to read or write the file is logged and disables persistence, it never affects the processing of packets.
+ */
+@Singleton
+public class TemplateFile {
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateFile.class);
+
+    static final String FILE_NAME = "netflow-v9-templates.dat";
+
+    // "NFT1"
+    private static final int MAGIC = 0x4e465431;
+    static final int HEADER_LENGTH = 4;
+    private static final int MIN_MAPPED_SIZE = 1024 * 1024;
+    private static final byte FLAG_OPTION_TEMPLATE = 0x01;
+
+    private final Path path;
+    private final int maxTemplates;
+    // in write order, the eldest template is dropped once there are more than maxTemplates
+    private final LinkedHashMap<TemplateKey, StoredTemplate> templates = new LinkedHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private int writePosition;
+    private int records;
+    private boolean failed = false;
+
+    @Inject
+    public TemplateFile(@Named("data_dir") Path dataDirectory, @Named(NetFlowPluginConfiguration.MAX_TEMPLATES) int maxTemplates) {
+        this(dataDirectory.resolve("netflow").resolve(FILE_NAME), maxTemplates);
+    }
+
+    @VisibleForTesting
+    TemplateFile(Path path, int maxTemplates) {
+        this.path = path;
+        this.maxTemplates = maxTemplates;
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            fail("Unable to open NetFlow template file " + path + ", templates will not survive restarts", e);
+        }
+    }
+
+    /**
+     * @return the persisted templates, from the least to the most recently written one
+     */
+    public synchronized List<StoredTemplate> templates() {
+        return new ArrayList<>(templates.values());
+    }
+
+    /**
+     * Persists a template unless the same template is already stored for the exporter.
+     */
+    public synchronized void append(StoredTemplate template) {
+        if (failed) {
+            return;
+        }
+        final TemplateKey key = template.key();
+        final StoredTemplate existing = templates.get(key);
+        if (existing != null && existing.sameAs(template)) {
+            return;
+        }
+
+        templates.remove(key);
+        templates.put(key, template);
+        dropEldestTemplates();
+
+        try {
+            final int recordLength = recordLength(template);
+            if (writePosition + recordLength > mapped.capacity()) {
+                if (records + 1 > 2 * templates.size()) {
+                    // rather reclaim the space of replaced templates than growing the file, this writes the new one as well
+                    compact();
+                    return;
+                }
+                map(Math.max(2L * mapped.capacity(), (long) writePosition + recordLength));
+            }
+            writeRecord(mapped, writePosition, template);
+            writePosition += recordLength;
+            records++;
+        } catch (IOException | RuntimeException e) {
+            fail("Unable to write NetFlow template file " + path + ", templates will not survive restarts", e);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int records() {
+        return records;
+    }
+
+    private boolean dropEldestTemplates() {
+        boolean dropped = false;
+        final Iterator<StoredTemplate> iterator = templates.values().iterator();
+        while (templates.size() > maxTemplates && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            dropped = true;
+        }
+        return dropped;
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(channel.size());
+
+        if (channel.size() == 0 || mapped.getInt(0) == 0) {
+            mapped.putInt(0, MAGIC);
+            writePosition = HEADER_LENGTH;
+            return;
+        }
+        if (mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a NetFlow template file");
+        }
+
+        writePosition = readRecords(mapped, HEADER_LENGTH, template -> {
+            final TemplateKey key = template.key();
+            templates.remove(key);
+            templates.put(key, template);
+            records++;
+        });
+        final boolean complete = isEnd(mapped, writePosition);
+        if (!complete) {
+            LOG.warn("Ignoring corrupt record at offset {} of NetFlow template file {} and all following records", writePosition, path);
+        }
+        final boolean dropped = dropEldestTemplates();
+        if (!complete || dropped || records > templates.size()) {
+            compact();
+        }
+        LOG.debug("Loaded {} NetFlow v9 templates from {}", templates.size(), path);
+    }
+
+    static boolean hasMagic(ByteBuffer buffer) {
+        return buffer.capacity() >= HEADER_LENGTH && buffer.getInt(0) == MAGIC;
+    }
+
+    /**
+     * @return whether there are no more records at the position, i.e. the file ends or the next record hasn't been written yet
+     */
+    static boolean isEnd(ByteBuffer buffer, int position) {
+        return position + 4 > buffer.capacity() || buffer.getInt(position) == 0;
+    }
+
+    /**
+     * Reads the records from the position on until the end of the written part of the file or the first corrupt record.
+     *
+     * @return the position after the last record which has been read
+     */
+    static int readRecords(ByteBuffer buffer, int position, Consumer<StoredTemplate> consumer) {
+        while (!isEnd(buffer, position)) {
+            final int length = buffer.getInt(position);
+            final StoredTemplate template = length > 0 && position + 4L + length <= buffer.capacity() ? readRecord(buffer, position + 4, length) : null;
+            if (template == null) {
+                break;
+            }
+            consumer.accept(template);
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    @Nullable
+    private static StoredTemplate readRecord(ByteBuffer buffer, int position, int length) {
+        // flags, address length, address, port, source id, template id
+        final int addressLength = length >= 2 ? buffer.get(position + 1) : 0;
+        if (addressLength != 4 && addressLength != 16 || length < 2 + addressLength + 8) {
+            return null;
+        }
+        final boolean optionTemplate = (buffer.get(position) & FLAG_OPTION_TEMPLATE) != 0;
+        final byte[] address = new byte[addressLength];
+        int offset = position + 2;
+        for (int i = 0; i < addressLength; i++) {
+            address[i] = buffer.get(offset++);
+        }
+        final int port = buffer.getShort(offset) & 0xffff;
+        final long sourceId = buffer.getInt(offset + 2) & 0xffffffffL;
+        final int templateId = buffer.getShort(offset + 6) & 0xffff;
+        offset += 8;
+        final byte[] bytes = new byte[position + length - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        try {
+            return new StoredTemplate(new InetSocketAddress(InetAddress.getByAddress(address), port), sourceId, templateId, optionTemplate, bytes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int recordLength(StoredTemplate template) {
+        return 4 + 2 + template.getExporter().getAddress().getAddress().length + 8 + template.getBytes().length;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, int position, StoredTemplate template) {
+        final byte[] address = template.getExporter().getAddress().getAddress();
+        final ByteBuffer record = buffer.duplicate();
+        record.position(position + 4);
+        record.put(template.isOptionTemplate() ? FLAG_OPTION_TEMPLATE : 0)
+                .put((byte) address.length)
+                .put(address)
+                .putShort((short) template.getExporter().getPort())
+                .putInt((int) template.getSourceId())
+                .putShort((short) template.getTemplateId())
+                .put(template.getBytes());
+        // the length is written last, until then the record is invisible
+        buffer.putInt(position, record.position() - position - 4);
+    }
+
+    /**
+     * Rewrites the file with only the current templates and replaces the old file atomically.
+     */
+    private void compact() throws IOException {
+        int length = HEADER_LENGTH;
+        for (StoredTemplate template : templates.values()) {
+            length += recordLength(template);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+        buffer.putInt(0, MAGIC);
+        int position = HEADER_LENGTH;
+        for (StoredTemplate template : templates.values()) {
+            writeRecord(buffer, position, template);
+            position += recordLength(template);
+        }
+
+        final Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(position + 4);
+        writePosition = position;
+        records = templates.size();
+    }
+
+    private void map(long size) throws IOException {
+        final long mappedSize = Math.max(MIN_MAPPED_SIZE, size);
+        if (mappedSize > Integer.MAX_VALUE) {
+            throw new IOException("NetFlow template file " + path + " is too large");
+        }
+        // mapping beyond the end of the file grows it, the new part reads as zeros
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+    }
+
+    private void fail(String message, Exception e) {
+        LOG.warn(message, e);
+        failed = true;
+        templates.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
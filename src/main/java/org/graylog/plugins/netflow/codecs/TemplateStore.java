@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+
+/**
+ * Shares NetFlow v9 templates between the aggregators of a cluster, so data packets which arrive at a node that hasn't
+ * seen the exporter's templates itself can be decoded without waiting for the exporter to resend them.
+ *
+ * The aggregator publishes every template that is new or changed and looks up templates it is missing. Lookups happen
+ * on the packet path, implementations should answer them from local state and must be thread safe.
+ * Plugins can provide their own implementation by overriding the optional binding of this interface.
+ *
+ * @see InProcessTemplateStore
+ * @see SharedFileTemplateStore
+ */
+public interface TemplateStore {
+    /**
+     * Makes a template available to the other aggregators.
+     */
+    void publish(StoredTemplate template);
+
+    /**
+     * @return the most recently published template of the exporter or {@code null} if it isn't known
+     */
+    @Nullable
+    StoredTemplate lookup(InetSocketAddress exporter, long sourceId, int templateId);
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator.TemplateBytes;
+
+import javax.annotation.Nullable;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Size bounded, access ordered template cache keyed by primitives, so that looking up templates doesn't allocate.
+ *
+ * A key consists of the exporter's address as 128 bits (IPv4 addresses are mapped into the IPv6 address space) and a
+ * long made up of the source id, the exporter's port and the template id. Entries live in an open addressing table with
+ * linear probing, the access order is kept in a doubly linked list over the slot indices. The table grows on demand.
+ *
+ * The limit applies to all tables sharing the same counter, e.g. the tables of all shards of an aggregator. Once they
+ * hold more than the configured number of templates together, the table adding a template evicts its least recently
+ * used one.
+ *
+ * Not thread safe.
+ */
+final class TemplateTable {
+    private static final int NIL = -1;
+    private static final long IPV4_MAPPED_PREFIX = 0xffff_0000_0000L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxSize;
+    private final AtomicInteger totalSize;
+    private int mask;
+    private long[] addressHighs;
+    private long[] addressLows;
+    private long[] ids;
+    private TemplateBytes[] values;
+    private int[] before;
+    private int[] after;
+    private int head = NIL;
+    private int tail = NIL;
+    private int size = 0;
+
+    TemplateTable(int maxSize) {
+        this(maxSize, new AtomicInteger());
+    }
+
+    /**
+     * @param maxSize   how many templates all tables sharing {@code totalSize} may hold together
+     * @param totalSize number of templates in all tables sharing the limit
+     */
+    TemplateTable(int maxSize, AtomicInteger totalSize) {
+        this.maxSize = maxSize;
+        this.totalSize = totalSize;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        this.mask = capacity - 1;
+        this.addressHighs = new long[capacity];
+        this.addressLows = new long[capacity];
+        this.ids = new long[capacity];
+        this.values = new TemplateBytes[capacity];
+        this.before = new int[capacity];
+        this.after = new int[capacity];
+        Arrays.fill(before, NIL);
+        Arrays.fill(after, NIL);
+    }
+
+    /**
+     * Writes the two halves of the remote address' 128 bit representation to {@code bits}.
+     * Only IPv6 addresses allocate, because {@link InetAddress} doesn't expose their bytes otherwise.
+     */
+    static void addressBits(@Nullable SocketAddress remoteAddress, long[] bits) {
+        final InetAddress address = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress() : null;
+        if (address instanceof Inet4Address) {
+            // the hash code of an IPv4 address is the address itself
+            bits[0] = 0;
+            bits[1] = IPV4_MAPPED_PREFIX | (address.hashCode() & 0xffffffffL);
+        } else if (address instanceof Inet6Address) {
+            final byte[] bytes = address.getAddress();
+            bits[0] = readLong(bytes, 0);
+            bits[1] = readLong(bytes, 8);
+        } else {
+            // unresolved or unknown addresses, these don't occur for received datagrams
+            bits[0] = Long.MIN_VALUE;
+            bits[1] = remoteAddress == null ? 0 : remoteAddress.hashCode();
+        }
+    }
+
+    /**
+     * @return the key bits of an exporter's port and source id, to be combined with a template id by {@link #id(long, int)}
+     */
+    static long exporterId(@Nullable SocketAddress remoteAddress, long sourceId) {
+        final int port = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getPort() : 0;
+        return (sourceId & 0xffffffffL) << 32 | (port & 0xffffL) << 16;
+    }
+
+    static long id(long exporterId, int templateId) {
+        return exporterId | (templateId & 0xffffL);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xffL);
+        }
+        return value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Looks up a template and marks it as recently used.
+     */
+    @Nullable
+    TemplateBytes get(long addressHigh, long addressLow, long id) {
+        final int slot = indexOf(addressHigh, addressLow, id);
+        if (slot == NIL) {
+            return null;
+        }
+        moveToTail(slot);
+        return values[slot];
+    }
+
+    /**
+     * Checks for a template without changing the access order.
+     */
+    boolean contains(long addressHigh, long addressLow, long id) {
+        return indexOf(addressHigh, addressLow, id) != NIL;
+    }
+
+    /**
+     * Adds or replaces a template, evicting the least recently used template of this table if the tables sharing the
+     * limit are full. The new template itself is never evicted, so a table which only holds the new template leaves the
+     * eviction to the next table adding a template.
+     *
+     * @return the evicted template or {@code null}
+     */
+    @Nullable
+    TemplateBytes put(long addressHigh, long addressLow, long id, TemplateBytes value) {
+        int slot = hash(addressHigh, addressLow, id) & mask;
+        while (values[slot] != null) {
+            if (ids[slot] == id && addressLows[slot] == addressLow && addressHighs[slot] == addressHigh) {
+                values[slot] = value;
+                moveToTail(slot);
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        insert(slot, addressHigh, addressLow, id, value);
+        size++;
+        final boolean full = totalSize.incrementAndGet() > maxSize;
+        if (full && head != tail) {
+            final TemplateBytes eldest = values[head];
+            remove(head);
+            return eldest;
+        }
+        // at most half full, which keeps the probe sequences short
+        if (2 * size > values.length) {
+            grow();
+        }
+        return null;
+    }
+
+    private void insert(int slot, long addressHigh, long addressLow, long id, TemplateBytes value) {
+        addressHighs[slot] = addressHigh;
+        addressLows[slot] = addressLow;
+        ids[slot] = id;
+        values[slot] = value;
+        linkLast(slot);
+    }
+
+    private void grow() {
+        final long[] oldAddressHighs = addressHighs;
+        final long[] oldAddressLows = addressLows;
+        final long[] oldIds = ids;
+        final TemplateBytes[] oldValues = values;
+        final int[] oldAfter = after;
+        final int oldHead = head;
+
+        allocate(oldValues.length << 1);
+        head = NIL;
+        tail = NIL;
+        // re-inserting in access order keeps the order
+        for (int old = oldHead; old != NIL; old = oldAfter[old]) {
+            int slot = hash(oldAddressHighs[old], oldAddressLows[old], oldIds[old]) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            insert(slot, oldAddressHighs[old], oldAddressLows[old], oldIds[old], oldValues[old]);
+        }
+    }
+
+    private int indexOf(long addressHigh, long addressLow, long id) {
+        int slot = hash(addressHigh, addressLow, id) & mask;
+        while (values[slot] != null) {
+            if (ids[slot] == id && addressLows[slot] == addressLow && addressHighs[slot] == addressHigh) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NIL;
+    }
+
+    static int hash(long addressHigh, long addressLow, long id) {
+        long h = addressHigh * 0x9e3779b97f4a7c15L ^ addressLow;
+        h = (h ^ (h >>> 31)) * 0xbf58476d1ce4e5b9L ^ id;
+        h = (h ^ (h >>> 29)) * 0x94d049bb133111ebL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void remove(int slot) {
+        unlink(slot);
+        size--;
+        totalSize.decrementAndGet();
+
+        // backward shift deletion, moves later entries of the probe sequence into the hole so lookups still find them
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (values[next] == null) {
+                break;
+            }
+            final int home = hash(addressHighs[next], addressLows[next], ids[next]) & mask;
+            final boolean homeBetweenHoleAndNext = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+            if (!homeBetweenHoleAndNext) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        values[hole] = null;
+        before[hole] = NIL;
+        after[hole] = NIL;
+    }
+
+    private void move(int from, int to) {
+        addressHighs[to] = addressHighs[from];
+        addressLows[to] = addressLows[from];
+        ids[to] = ids[from];
+        values[to] = values[from];
+        before[to] = before[from];
+        after[to] = after[from];
+        if (before[to] == NIL) {
+            head = to;
+        } else {
+            after[before[to]] = to;
+        }
+        if (after[to] == NIL) {
+            tail = to;
+        } else {
+            before[after[to]] = to;
+        }
+    }
+
+    private void linkLast(int slot) {
+        before[slot] = tail;
+        after[slot] = NIL;
+        if (tail == NIL) {
+            head = slot;
+        } else {
+            after[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (before[slot] == NIL) {
+            head = after[slot];
+        } else {
+            after[before[slot]] = after[slot];
+        }
+        if (after[slot] == NIL) {
+            tail = before[slot];
+        } else {
+            before[after[slot]] = before[slot];
+        }
+        before[slot] = NIL;
+        after[slot] = NIL;
+    }
+
+    private void moveToTail(int slot) {
+        if (slot != tail) {
+            unlink(slot);
+            linkLast(slot);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package org.graylog.plugins.netflow.flows;
 
-import com.google.common.collect.ImmutableMap;
 import org.graylog.plugins.netflow.utils.ByteBufUtils;
 import org.graylog.plugins.netflow.utils.Protocol;
 import org.graylog.plugins.netflow.v5.NetFlowV5Header;
@@ -13,7 +12,6 @@ import org.joda.time.DateTimeZone;
 
 import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
-import java.util.Map;
 
 public class NetFlowFormatter {
     private static final String MF_VERSION = "nf_version";
@@ -50,14 +48,13 @@ public class NetFlowFormatter {
     }
 
     private static String toMessageString(NetFlowV9BaseRecord record) {
-        final ImmutableMap<String, Object> fields = record.fields();
-        final long packetCount = (long) fields.get("in_pkts");
-        final long octetCount = (long) fields.get("in_bytes");
-        final String srcAddr = (String) fields.get("ipv4_src_addr");
-        final String dstAddr = (String) fields.get("ipv4_dst_addr");
-        final Integer srcPort = (Integer) fields.get("l4_src_port");
-        final Integer dstPort = (Integer) fields.get("l4_dst_port");
-        final Short protocol = (Short) fields.get("protocol");
+        final long packetCount = (long) record.get("in_pkts");
+        final long octetCount = (long) record.get("in_bytes");
+        final String srcAddr = (String) record.get("ipv4_src_addr");
+        final String dstAddr = (String) record.get("ipv4_dst_addr");
+        final Integer srcPort = (Integer) record.get("l4_src_port");
+        final Integer dstPort = (Integer) record.get("l4_dst_port");
+        final Short protocol = (Short) record.get("protocol");
 
         return String.format("NetFlowV9 [%s]:%d <> [%s]:%d proto:%d pkts:%d bytes:%d",
                 srcAddr, srcPort,
@@ -118,23 +115,22 @@ public class NetFlowFormatter {
         final long timestamp = header.unixSecs() * 1000L;
         final Message message = new Message(toMessageString(record), source, new DateTime(timestamp, DateTimeZone.UTC));
 
-        final Map<String, Object> fields = record.fields();
-
         message.addField(MF_VERSION, 9);
-        fields.forEach((key, value) -> message.addField("nf_" + key, value));
+        // doesn't build the field map of lazily decoded records, the names of the message fields are precomputed
+        record.forEachMessageField(message::addField);
 
-        final String srcAddr = (String) fields.get("ipv4_src_addr");
-        final String dstAddr = (String) fields.get("ipv4_dst_addr");
-        final Object srcPort = fields.get("l4_src_port");
-        final Object dstPort = fields.get("l4_dst_port");
-        final String ipv4NextHop = (String) fields.get("ipv4_next_hop");
-        final Long first = (Long) fields.get("first_switched");
-        final Long last = (Long) fields.get("last_switched");
+        final String srcAddr = (String) record.get("ipv4_src_addr");
+        final String dstAddr = (String) record.get("ipv4_dst_addr");
+        final Object srcPort = record.get("l4_src_port");
+        final Object dstPort = record.get("l4_dst_port");
+        final String ipv4NextHop = (String) record.get("ipv4_next_hop");
+        final long first = record.getLong("first_switched", 0L);
+        final long last = record.getLong("last_switched", 0L);
 
         message.addField(MF_FLOW_PACKET_ID, header.sequence());
-        message.addField(MF_TOS, fields.get("ip_tos"));
-        message.addField(MF_SRC_TOS, fields.get("ip_src_tos"));
-        message.addField(MF_DST_TOS, fields.get("ip_dst_tos"));
+        message.addField(MF_TOS, record.get("ip_tos"));
+        message.addField(MF_SRC_TOS, record.get("ip_src_tos"));
+        message.addField(MF_DST_TOS, record.get("ip_dst_tos"));
         message.addField(MF_SRC, srcAddr + ":" + srcPort);
         message.addField(MF_SRC_ADDRESS, srcAddr);
         message.addField(MF_DST, dstAddr + ":" + dstPort);
@@ -144,11 +140,11 @@ public class NetFlowFormatter {
         }
         message.addField(MF_SRC_PORT, srcPort);
         message.addField(MF_DST_PORT, dstPort);
-        message.addField(MF_SRC_MASK, fields.get("src_mask"));
-        message.addField(MF_DST_MASK, fields.get("dst_mask"));
-        message.addField(MF_SRC_AS, fields.get("src_as"));
-        message.addField(MF_DST_AS, fields.get("dst_as"));
-        final Object protocol = fields.get("protocol");
+        message.addField(MF_SRC_MASK, record.get("src_mask"));
+        message.addField(MF_DST_MASK, record.get("dst_mask"));
+        message.addField(MF_SRC_AS, record.get("src_as"));
+        message.addField(MF_DST_AS, record.get("dst_as"));
+        final Object protocol = record.get("protocol");
         if (protocol != null) {
             message.addField(MF_PROTO, protocol);
             short protocolNumber = ((Number) protocol).shortValue();
@@ -157,20 +153,20 @@ public class NetFlowFormatter {
                 message.addField(MF_PROTO_NAME, protocolInfo.getAlias());
             }
         }
-        message.addField(MF_TCP_FLAGS, fields.get("tcp_flags"));
+        message.addField(MF_TCP_FLAGS, record.get("tcp_flags"));
 
-        if (first != null && first > 0) {
+        if (first > 0) {
             long start = timestamp - (header.sysUptime() - first);
             message.addField(MF_START, new DateTime(start, DateTimeZone.UTC));
         }
-        if (last != null && last > 0) {
+        if (last > 0) {
             long stop = timestamp - (header.sysUptime() - last);
             message.addField(MF_STOP, new DateTime(stop, DateTimeZone.UTC));
         }
-        message.addField(MF_BYTES, fields.get("in_bytes"));
-        message.addField(MF_PKTS, fields.get("in_pkts"));
-        message.addField(MF_SNMP_INPUT, fields.get("input_snmp"));
-        message.addField(MF_SNMP_OUTPUT, fields.get("output_snmp"));
+        message.addField(MF_BYTES, record.get("in_bytes"));
+        message.addField(MF_PKTS, record.get("in_pkts"));
+        message.addField(MF_SNMP_INPUT, record.get("input_snmp"));
+        message.addField(MF_SNMP_OUTPUT, record.get("output_snmp"));
 
         return message;
     }
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.buffer.ByteBuf;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator;
+import org.graylog.plugins.netflow.codecs.RemoteAddressCodecAggregator;
+import org.graylog.plugins.netflow.v9.NetFlowV9Parser;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Per exporter metrics with bounded cardinality.
+ *
+ * Up to a configured number of exporters get their own set of metrics, named {@code exporters.<address>.<metric>}.
+ * All other exporters are accounted for in {@code exporters.other.<metric>}.
+ *
+ * Once the limit is reached, the packets of untracked exporters are counted in a count-min sketch, which is updated
+ * without locking. The busiest untracked exporters of the current interval are kept as candidates in a min-heap by
+ * their estimated count, there are as many candidates as tracked exporters. Only an exporter whose estimate exceeds the
+ * quietest candidate takes the lock to replace it. Every few seconds the candidates which sent more packets than the
+ * quietest tracked exporters replace them, so the metrics follow the busiest exporters. Exporters which have been idle
+ * for a while are dropped together with their metrics.
+ */
+public class ExporterMetrics {
+    private static final Logger LOG = LoggerFactory.getLogger(ExporterMetrics.class);
+
+    private static final String PREFIX = "exporters";
+    private static final String OTHER = "other";
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+    private static final long REBALANCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MetricRegistry metricRegistry;
+    private final Supplier<? extends RemoteAddressCodecAggregator> aggregator;
+    private final int maxTrackedExporters;
+    private final ConcurrentMap<InetAddress, Exporter> trackedExporters = new ConcurrentHashMap<>();
+    // packets of the untracked exporters in the current interval
+    private final CountMinSketch untrackedPackets;
+    // the busiest untracked exporters of the current interval, only modified while holding the lock of this
+    private final ConcurrentMap<InetAddress, Candidate> candidates = new ConcurrentHashMap<>();
+    // the candidates by their estimated count, the quietest first, guarded by this
+    private final PriorityQueue<Candidate> quietestCandidate = new PriorityQueue<>(Comparator.comparingLong((Candidate candidate) -> candidate.estimate));
+    private final Exporter other;
+    // untracked exporters with a lower estimate can't become candidates, is never higher than the quietest candidate's estimate
+    private volatile long candidateFloor = 0;
+    private volatile long nextRebalance;
+    private final AtomicBoolean rebalancing = new AtomicBoolean();
+
+    public ExporterMetrics(MetricRegistry metricRegistry,
+                           Supplier<? extends RemoteAddressCodecAggregator> aggregator,
+                           int maxTrackedExporters) {
+        this.metricRegistry = metricRegistry;
+        this.aggregator = aggregator;
+        this.maxTrackedExporters = maxTrackedExporters;
+        this.untrackedPackets = new CountMinSketch(8 * maxTrackedExporters);
+        this.other = new Exporter(OTHER);
+        this.nextRebalance = System.nanoTime() + REBALANCE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Records the outcome of aggregating a single packet.
+     */
+    public void record(@Nullable SocketAddress sender, ByteBuf packet, CodecAggregator.Result result, long aggregationNanos) {
+        final Exporter exporter = exporterFor(sender);
+        final int readableBytes = packet.readableBytes();
+
+        exporter.lastSeen = System.nanoTime();
+        exporter.intervalPackets.increment();
+        exporter.packets.mark();
+        exporter.bytes.mark(readableBytes);
+        exporter.aggregationTime.update(aggregationNanos, TimeUnit.NANOSECONDS);
+        if (readableBytes >= 4) {
+            // the header's count is the number of records for v5 and v9 alike
+            exporter.records.mark(packet.getUnsignedShort(packet.readerIndex() + 2));
+        }
+
+        if (!result.isValid()) {
+            exporter.invalid.mark();
+        } else if (result.getMessage() == null && result != NetflowV9CodecAggregator.BATCHED && isV9DataPacket(packet)) {
+            // a v9 packet without templates only yields no message if it has been buffered or added to a pending journal entry
+            exporter.templateMisses.mark();
+        }
+    }
+
+    private static boolean isV9DataPacket(ByteBuf packet) {
+        return packet.readableBytes() >= 2
+                && packet.getUnsignedShort(packet.readerIndex()) == 9
+                && !NetFlowV9Parser.containsTemplates(packet);
+    }
+
+    @VisibleForTesting
+    Exporter exporterFor(@Nullable SocketAddress sender) {
+        if (!(sender instanceof InetSocketAddress) || ((InetSocketAddress) sender).getAddress() == null) {
+            return other;
+        }
+        final InetAddress address = ((InetSocketAddress) sender).getAddress();
+        final Exporter exporter = trackedExporters.get(address);
+        if (exporter != null) {
+            return exporter;
+        }
+        return untracked(address);
+    }
+
+    private Exporter untracked(InetAddress address) {
+        if (trackedExporters.size() < maxTrackedExporters) {
+            synchronized (this) {
+                final Exporter existing = trackedExporters.get(address);
+                if (existing != null) {
+                    return existing;
+                }
+                if (trackedExporters.size() < maxTrackedExporters) {
+                    return track(address);
+                }
+            }
+        }
+
+        final long estimate = untrackedPackets.increment(address);
+        if (!candidates.containsKey(address) && estimate > candidateFloor) {
+            addCandidate(address, estimate);
+        }
+
+        final long now = System.nanoTime();
+        if (now - nextRebalance >= 0 && rebalancing.compareAndSet(false, true)) {
+            try {
+                rebalance();
+            } finally {
+                rebalancing.set(false);
+            }
+            final Exporter promoted = trackedExporters.get(address);
+            if (promoted != null) {
+                return promoted;
+            }
+        }
+        return other;
+    }
+
+    /**
+     * Makes the exporter a candidate, replacing the quietest candidate once there are as many as tracked exporters.
+     */
+    private synchronized void addCandidate(InetAddress address, long estimate) {
+        if (candidates.containsKey(address)) {
+            return;
+        }
+        if (candidates.size() >= maxTrackedExporters) {
+            // the estimates in the heap are those at the time the candidates were added, refresh them lazily
+            Candidate quietest = quietestCandidate.poll();
+            while (quietest != null) {
+                final long current = untrackedPackets.estimate(quietest.address);
+                if (current <= quietest.estimate) {
+                    break;
+                }
+                quietest.estimate = current;
+                quietestCandidate.add(quietest);
+                quietest = quietestCandidate.poll();
+            }
+            if (quietest == null) {
+                return;
+            }
+            if (quietest.estimate >= estimate) {
+                quietestCandidate.add(quietest);
+                candidateFloor = quietest.estimate;
+                return;
+            }
+            candidates.remove(quietest.address);
+        }
+        final Candidate candidate = new Candidate(address, estimate);
+        candidates.put(address, candidate);
+        quietestCandidate.add(candidate);
+        if (candidates.size() >= maxTrackedExporters) {
+            candidateFloor = quietestCandidate.peek().estimate;
+        }
+    }
+
+    private Exporter track(InetAddress address) {
+        final Exporter exporter = new Exporter(address.getHostAddress());
+        metricRegistry.register(name(PREFIX, exporter.name, "bufferedPackets"),
+                (Gauge<Integer>) () -> aggregator.get().bufferedPacketCount(address));
+        trackedExporters.put(address, exporter);
+        LOG.debug("Tracking metrics of NetFlow exporter {}", exporter.name);
+        return exporter;
+    }
+
+    private void untrack(InetAddress address, String reason) {
+        final Exporter exporter = trackedExporters.remove(address);
+        if (exporter != null) {
+            metricRegistry.removeMatching((metricName, metric) -> metricName.startsWith(name(PREFIX, exporter.name) + "."));
+            LOG.debug("No longer tracking metrics of {} NetFlow exporter {}", reason, exporter.name);
+        }
+    }
+
+    /**
+     * Drops idle exporters and replaces the quietest tracked exporters by candidates which sent more packets in the past
+     * interval, then starts a new interval.
+     */
+    @VisibleForTesting
+    synchronized void rebalance() {
+        final long now = System.nanoTime();
+        nextRebalance = now + REBALANCE_INTERVAL_NANOS;
+
+        final List<Map.Entry<InetAddress, Exporter>> quietest = new ArrayList<>();
+        for (Map.Entry<InetAddress, Exporter> entry : trackedExporters.entrySet()) {
+            if (now - entry.getValue().lastSeen > IDLE_NANOS) {
+                untrack(entry.getKey(), "idle");
+            } else {
+                quietest.add(entry);
+            }
+        }
+        quietest.sort(Comparator.comparingLong(entry -> entry.getValue().intervalPackets.sum()));
+        final List<Candidate> busiest = new ArrayList<>(candidates.values());
+        for (Candidate candidate : busiest) {
+            candidate.estimate = untrackedPackets.estimate(candidate.address);
+        }
+        busiest.sort(Comparator.comparingLong((Candidate candidate) -> candidate.estimate).reversed());
+
+        int replaced = 0;
+        for (Candidate candidate : busiest) {
+            if (trackedExporters.size() < maxTrackedExporters) {
+                track(candidate.address);
+            } else if (replaced < quietest.size()
+                    && candidate.estimate > quietest.get(replaced).getValue().intervalPackets.sum()) {
+                untrack(quietest.get(replaced).getKey(), "quiet");
+                replaced++;
+                track(candidate.address);
+            } else {
+                break;
+            }
+        }
+
+        // packets counted concurrently with the reset are lost, which only makes the next interval's counts a bit lower
+        candidates.clear();
+        quietestCandidate.clear();
+        candidateFloor = 0;
+        untrackedPackets.clear();
+        for (Exporter exporter : trackedExporters.values()) {
+            exporter.intervalPackets.reset();
+        }
+    }
+
+    @VisibleForTesting
+    int trackedExporterCount() {
+        return trackedExporters.size();
+    }
+
+    @VisibleForTesting
+    class Exporter {
+        final String name;
+        final Meter packets;
+        final Meter bytes;
+        final Meter records;
+        final Meter invalid;
+        final Meter templateMisses;
+        final Timer aggregationTime;
+        // packets in the current interval, compared with the counts of the untracked exporters
+        final LongAdder intervalPackets = new LongAdder();
+        volatile long lastSeen;
+
+        Exporter(String name) {
+            this.name = name;
+            this.packets = metricRegistry.meter(name(PREFIX, name, "packets"));
+            this.bytes = metricRegistry.meter(name(PREFIX, name, "bytes"));
+            this.records = metricRegistry.meter(name(PREFIX, name, "records"));
+            this.invalid = metricRegistry.meter(name(PREFIX, name, "invalidPackets"));
+            this.templateMisses = metricRegistry.meter(name(PREFIX, name, "templateMisses"));
+            this.aggregationTime = metricRegistry.timer(name(PREFIX, name, "aggregationTime"));
+            this.lastSeen = System.nanoTime();
+        }
+    }
+
+    private static class Candidate {
+        private final InetAddress address;
+        // estimated packets of the exporter, as of the last time the heap has been updated
+        private long estimate;
+
+        Candidate(InetAddress address, long estimate) {
+            this.address = address;
+            this.estimate = estimate;
+        }
+    }
+
+    /**
+     * Count-min sketch of packet counts by exporter address. Estimates are never lower than the actual count and exceed
+     * it by a small fraction of all counted packets at most, with high probability.
+     */
+    private static class CountMinSketch {
+        private static final int DEPTH = 4;
+
+        private final AtomicLongArray counters;
+        private final int mask;
+
+        CountMinSketch(int minWidth) {
+            final int width = Math.max(1024, Integer.highestOneBit(Math.max(1, minWidth - 1)) << 1);
+            this.counters = new AtomicLongArray(DEPTH * width);
+            this.mask = width - 1;
+        }
+
+        /**
+         * @return the estimated count of the address including this packet
+         */
+        long increment(InetAddress address) {
+            final int hash = address.hashCode();
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.incrementAndGet(index(hash, row)));
+            }
+            return estimate;
+        }
+
+        long estimate(InetAddress address) {
+            final int hash = address.hashCode();
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.get(index(hash, row)));
+            }
+            return estimate;
+        }
+
+        void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0L);
+            }
+        }
+
+        private int index(int hash, int row) {
+            // a different multiplicative hash for every row
+            long h = (hash & 0xffffffffL) * (0x9E3779B97F4A7C15L + 2L * row);
+            h ^= h >>> 29;
+            return row * (mask + 1) + (int) (h & mask);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.unix.UnixChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Watches the kernel's drop counters of the receive sockets and optionally grows their receive buffers when datagrams
+ * are being dropped.
+ *
+ * Netty doesn't expose {@code SO_RXQ_OVFL}, so the counters are read from {@code /proc/net/udp} and {@code /proc/net/udp6},
+ * which list the number of datagrams each socket dropped because its receive buffer was full. The sockets of the watched
+ * channels are identified by their inodes, which {@code /proc/self/fd} yields for their file descriptors, so sockets of
+ * other processes or inputs bound to the same port aren't counted. On systems without those files the monitor does
+ * nothing.
+ */
+public class KernelDropMonitor {
+    private static final Logger LOG = LoggerFactory.getLogger(KernelDropMonitor.class);
+
+    private static final List<Path> PROC_FILES = ImmutableList.of(Paths.get("/proc/net/udp"), Paths.get("/proc/net/udp6"));
+    private static final Path PROC_SELF_FD = Paths.get("/proc/self/fd");
+    private static final Pattern SOCKET_LINK = Pattern.compile("socket:\\[(\\d+)]");
+    private static final long POLL_INTERVAL_SECONDS = 10;
+
+    private final List<Path> procFiles;
+    private final int recvBufferCeiling;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final Meter droppedPackets;
+    private volatile long drops = 0;
+    private volatile int recvBufferSize = 0;
+    private long lastDrops = 0;
+    private boolean tuningCapped = false;
+    private ScheduledExecutorService executor;
+
+    public KernelDropMonitor(MetricRegistry metricRegistry, int recvBufferCeiling) {
+        this(metricRegistry, recvBufferCeiling, PROC_FILES);
+    }
+
+    @VisibleForTesting
+    KernelDropMonitor(MetricRegistry metricRegistry, int recvBufferCeiling, List<Path> procFiles) {
+        this.procFiles = procFiles;
+        this.recvBufferCeiling = recvBufferCeiling;
+        this.droppedPackets = metricRegistry.meter("kernelDroppedPackets");
+        metricRegistry.register("kernelDrops", (Gauge<Long>) () -> drops);
+        metricRegistry.register("receiveBufferSize", (Gauge<Integer>) () -> recvBufferSize);
+    }
+
+    /**
+     * @return a handler which makes the monitor watch the channel it is added to
+     */
+    public ChannelHandler newChannelHandler() {
+        return new ChannelRegistrationHandler();
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        if (procFiles.stream().noneMatch(Files::isReadable)) {
+            LOG.debug("Cannot read the kernel's UDP socket statistics from {}, not monitoring kernel drops.", procFiles);
+            return;
+        }
+        lastDrops = 0;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("netflow-drop-monitor-%d")
+                .setDaemon(true)
+                .build());
+        executor.scheduleWithFixedDelay(this::pollSafely, POLL_INTERVAL_SECONDS, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        channels.clear();
+    }
+
+    private void pollSafely() {
+        try {
+            poll();
+        } catch (Exception e) {
+            LOG.warn("Unable to read kernel drop counters", e);
+        }
+    }
+
+    @VisibleForTesting
+    void poll() throws IOException {
+        final Set<Long> inodes = new HashSet<>();
+        // of the channels which don't expose their file descriptor
+        final Set<Integer> ports = new HashSet<>();
+        for (Channel channel : channels) {
+            final long inode = channel instanceof UnixChannel ? socketInode(((UnixChannel) channel).fd().intValue()) : -1L;
+            final SocketAddress localAddress = channel.localAddress();
+            if (inode >= 0) {
+                inodes.add(inode);
+            } else if (localAddress instanceof InetSocketAddress) {
+                ports.add(((InetSocketAddress) localAddress).getPort());
+            }
+        }
+        if (inodes.isEmpty() && ports.isEmpty()) {
+            return;
+        }
+
+        final List<List<String>> tables = new ArrayList<>();
+        for (Path procFile : procFiles) {
+            if (Files.isReadable(procFile)) {
+                tables.add(Files.readAllLines(procFile, StandardCharsets.US_ASCII));
+            }
+        }
+        if (!ports.isEmpty()) {
+            // NIO channels hide their descriptors, their sockets are the ones of this process bound to their ports
+            final Set<Long> processSockets = processSocketInodes();
+            for (List<String> lines : tables) {
+                inodes.addAll(socketsOnPorts(lines, ports, processSockets));
+            }
+        }
+
+        long currentDrops = 0;
+        for (List<String> lines : tables) {
+            currentDrops += parseDrops(lines, inodes);
+        }
+        // the counters belong to the sockets, they start over when the sockets are re-created
+        final long newDrops = currentDrops >= lastDrops ? currentDrops - lastDrops : currentDrops;
+        lastDrops = currentDrops;
+        drops = currentDrops;
+        recvBufferSize = currentRecvBufferSize();
+
+        if (newDrops > 0) {
+            droppedPackets.mark(newDrops);
+            LOG.debug("Kernel dropped {} NetFlow datagrams on sockets {} since the last check", newDrops, inodes);
+            growRecvBuffers();
+        }
+    }
+
+    /**
+     * Sums up the {@code drops} column of the sockets with the given inodes.
+     */
+    @VisibleForTesting
+    static long parseDrops(List<String> lines, Set<Long> inodes) {
+        long drops = 0;
+        for (String[] columns : sockets(lines)) {
+            if (inodes.contains(Long.parseLong(columns[9]))) {
+                drops += Long.parseLong(columns[12]);
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * @return the inodes of the sockets which are bound to one of the given local ports and belong to this process
+     */
+    @VisibleForTesting
+    static Set<Long> socketsOnPorts(List<String> lines, Set<Integer> ports, Set<Long> processSockets) {
+        final Set<Long> inodes = new HashSet<>();
+        for (String[] columns : sockets(lines)) {
+            final String localAddress = columns[1];
+            final int port = Integer.parseInt(localAddress.substring(localAddress.lastIndexOf(':') + 1), 16);
+            final long inode = Long.parseLong(columns[9]);
+            if (ports.contains(port) && processSockets.contains(inode)) {
+                inodes.add(inode);
+            }
+        }
+        return inodes;
+    }
+
+    private static List<String[]> sockets(List<String> lines) {
+        final List<String[]> sockets = new ArrayList<>();
+        // the first line is the header
+        for (int i = 1; i < lines.size(); i++) {
+            // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+            final String[] columns = lines.get(i).trim().split("\\s+");
+            if (columns.length >= 13) {
+                sockets.add(columns);
+            }
+        }
+        return sockets;
+    }
+
+    /**
+     * @return the inode of the socket behind the file descriptor, -1 if it can't be determined
+     */
+    private static long socketInode(int fd) {
+        try {
+            return socketInode(Files.readSymbolicLink(PROC_SELF_FD.resolve(Integer.toString(fd))).toString());
+        } catch (IOException | UnsupportedOperationException e) {
+            return -1L;
+        }
+    }
+
+    @VisibleForTesting
+    static long socketInode(String link) {
+        final Matcher matcher = SOCKET_LINK.matcher(link);
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1L;
+    }
+
+    private static Set<Long> processSocketInodes() {
+        final Set<Long> inodes = new HashSet<>();
+        try (DirectoryStream<Path> descriptors = Files.newDirectoryStream(PROC_SELF_FD)) {
+            for (Path descriptor : descriptors) {
+                try {
+                    final long inode = socketInode(Files.readSymbolicLink(descriptor).toString());
+                    if (inode >= 0) {
+                        inodes.add(inode);
+                    }
+                } catch (IOException e) {
+                    // closed in the meantime
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Unable to list the file descriptors of this process in {}", PROC_SELF_FD, e);
+        }
+        return inodes;
+    }
+
+    private int currentRecvBufferSize() {
+        for (Channel channel : channels) {
+            final Integer size = channel.config().getOption(ChannelOption.SO_RCVBUF);
+            if (size != null) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    private void growRecvBuffers() {
+        if (recvBufferCeiling <= 0 || tuningCapped) {
+            return;
+        }
+        for (Channel channel : channels) {
+            final Integer current = channel.config().getOption(ChannelOption.SO_RCVBUF);
+            if (current == null || current >= recvBufferCeiling) {
+                continue;
+            }
+            final int grown = (int) Math.min(recvBufferCeiling, current * 2L);
+            channel.config().setOption(ChannelOption.SO_RCVBUF, grown);
+
+            final Integer effective = channel.config().getOption(ChannelOption.SO_RCVBUF);
+            if (effective == null || effective <= current) {
+                LOG.warn("Unable to grow receive buffer of {} beyond {} bytes, check net.core.rmem_max.", channel, current);
+                tuningCapped = true;
+                return;
+            }
+            LOG.info("Kernel dropped NetFlow datagrams, grew receive buffer of {} from {} to {} bytes.", channel, current, effective);
+        }
+        recvBufferSize = currentRecvBufferSize();
+    }
+
+    @ChannelHandler.Sharable
+    private class ChannelRegistrationHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            // the channel group removes closed channels by itself
+            channels.add(ctx.channel());
+            super.handlerAdded(ctx);
+        }
+    }
+}
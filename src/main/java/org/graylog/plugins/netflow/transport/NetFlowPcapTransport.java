@@ -0,0 +1,298 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.assistedinject.Assisted;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator;
+import org.graylog.plugins.netflow.codecs.RemoteAddressCodecAggregator;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.graylog2.plugin.inputs.transports.Transport;
+import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays NetFlow datagrams from pcap files through the aggregator and codec, either as fast as possible or paced by
+ * the timestamps of the capture. Useful to backfill outages from captures and to load test a setup.
+ *
+ * The path can either be a single file or a directory, in which case all {@code *.pcap} files in it are replayed in
+ * the order of their names. Once all files have been replayed the input stays idle until it is restarted.
+ */
+public class NetFlowPcapTransport implements Transport {
+    private static final Logger LOG = LoggerFactory.getLogger(NetFlowPcapTransport.class);
+
+    static final String CK_PCAP_PATH = "netflow_pcap_path";
+    static final String CK_PCAP_PACING = "netflow_pcap_pacing";
+    static final String CK_PCAP_SPEEDUP = "netflow_pcap_speedup";
+    static final String CK_PCAP_PORT = "netflow_pcap_port";
+
+    public enum Pacing {
+        MAXIMUM, ORIGINAL;
+
+        public static Pacing fromString(String pacing) {
+            if (pacing == null || pacing.trim().isEmpty()) {
+                return MAXIMUM;
+            }
+            return valueOf(pacing.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final LocalMetricRegistry localRegistry;
+    private final String path;
+    private final Pacing pacing;
+    private final int speedup;
+    private final int port;
+    private final Meter replayedPackets;
+    private final Meter skippedPackets;
+    private final Meter invalidPackets;
+    private final Timer aggregationTimer;
+    private RemoteAddressCodecAggregator aggregator;
+    private ExecutorService executor;
+
+    @Inject
+    public NetFlowPcapTransport(@Assisted Configuration configuration, LocalMetricRegistry localRegistry) {
+        this.localRegistry = localRegistry;
+        this.path = configuration.getString(CK_PCAP_PATH);
+        this.pacing = Pacing.fromString(configuration.getString(CK_PCAP_PACING));
+        this.speedup = Math.max(1, configuration.getInt(CK_PCAP_SPEEDUP, 1));
+        this.port = configuration.getInt(CK_PCAP_PORT, 0);
+        this.replayedPackets = localRegistry.meter("replayedPackets");
+        this.skippedPackets = localRegistry.meter("skippedPackets");
+        this.invalidPackets = localRegistry.meter("invalidMessages");
+        this.aggregationTimer = localRegistry.timer("aggregationTime");
+    }
+
+    @Override
+    public void setMessageAggregator(CodecAggregator aggregator) {
+        this.aggregator = (RemoteAddressCodecAggregator) aggregator;
+        if (aggregator instanceof NetflowV9CodecAggregator) {
+            localRegistry.registerAll(((NetflowV9CodecAggregator) aggregator).getMetricSet());
+        }
+    }
+
+    @Override
+    public void launch(MessageInput input) throws MisfireException {
+        if (path == null || path.trim().isEmpty()) {
+            throw new MisfireException("No pcap file or directory configured");
+        }
+        final List<Path> files;
+        try {
+            files = listFiles(Paths.get(path));
+        } catch (IOException e) {
+            throw new MisfireException("Unable to read pcap files from " + path, e);
+        }
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("netflow-pcap-replay-%d")
+                .setDaemon(true)
+                .build());
+        executor.submit(() -> replay(input, files));
+    }
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        NetFlowUdpTransport.releaseBufferedPackets(aggregator);
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        return localRegistry;
+    }
+
+    static List<Path> listFiles(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            if (!Files.isReadable(path)) {
+                throw new IOException("Cannot read " + path);
+            }
+            return Collections.singletonList(path);
+        }
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(path, "*.pcap")) {
+            for (Path file : directoryStream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private void replay(MessageInput input, List<Path> files) {
+        for (Path file : files) {
+            LOG.info("Replaying NetFlow packets from {}", file);
+            try (PcapReader reader = new PcapReader(file)) {
+                replayFile(input, reader);
+                flushBatches(input, true);
+            } catch (InterruptedException e) {
+                LOG.info("Stopped replaying NetFlow packets from {}", file);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.error("Unable to replay NetFlow packets from " + file, e);
+            }
+        }
+        LOG.info("Finished replaying NetFlow packets from {} file(s)", files.size());
+    }
+
+    private void replayFile(MessageInput input, PcapReader reader) throws IOException, InterruptedException {
+        long firstTimestamp = -1;
+        long replayStart = 0;
+        final long batchWindowNanos = aggregator instanceof NetflowV9CodecAggregator ? ((NetflowV9CodecAggregator) aggregator).getBatchWindowNanos() : 0;
+        long nextFlush = System.nanoTime() + batchWindowNanos;
+        PcapReader.Packet packet;
+        while ((packet = reader.next()) != null) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            if (port != 0 && packet.getDestinationPort() != port) {
+                skippedPackets.mark();
+                continue;
+            }
+
+            if (pacing == Pacing.ORIGINAL) {
+                if (firstTimestamp < 0) {
+                    firstTimestamp = packet.getTimestampNanos();
+                    replayStart = System.nanoTime();
+                }
+                final long due = replayStart + (packet.getTimestampNanos() - firstTimestamp) / speedup;
+                final long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+
+            final CodecAggregator.Result result;
+            try (Timer.Context ignored = aggregationTimer.time()) {
+                result = aggregator.addChunk(packet.getPayload(), packet.getSender());
+            }
+            replayedPackets.mark();
+
+            final ByteBuf message = result.getMessage();
+            if (message != null) {
+                process(input, message, packet.getSender());
+            } else if (!result.isValid()) {
+                invalidPackets.mark();
+            }
+
+            if (batchWindowNanos > 0 && System.nanoTime() - nextFlush >= 0) {
+                flushBatches(input, false);
+                nextFlush = System.nanoTime() + batchWindowNanos / 2;
+            }
+        }
+    }
+
+    private void flushBatches(MessageInput input, boolean all) {
+        if (aggregator instanceof NetflowV9CodecAggregator) {
+            for (NetflowV9CodecAggregator.CompletedBatch batch : ((NetflowV9CodecAggregator) aggregator).flushBatches(all)) {
+                final SocketAddress exporter = batch.getExporter();
+                process(input, batch.getEntry(), exporter instanceof InetSocketAddress ? (InetSocketAddress) exporter : null);
+            }
+        }
+    }
+
+    private static void process(MessageInput input, ByteBuf message, @Nullable InetSocketAddress sender) {
+        try {
+            input.processRawMessage(new RawMessage(ByteBufUtil.getBytes(message), sender));
+        } finally {
+            message.release();
+        }
+    }
+
+    @FactoryClass
+    public interface Factory extends Transport.Factory<NetFlowPcapTransport> {
+        @Override
+        NetFlowPcapTransport create(Configuration configuration);
+
+        @Override
+        NetFlowPcapTransport.Config getConfig();
+    }
+
+    @ConfigClass
+    public static class Config implements Transport.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = new ConfigurationRequest();
+            r.addField(new TextField(
+                    CK_PCAP_PATH,
+                    "Pcap path",
+                    "",
+                    "Pcap file or directory of *.pcap files to replay. The files must be readable by the Graylog server.",
+                    ConfigurationField.Optional.NOT_OPTIONAL));
+            r.addField(new DropdownField(
+                    CK_PCAP_PACING,
+                    "Pacing",
+                    Pacing.MAXIMUM.name(),
+                    ImmutableMap.of(
+                            Pacing.MAXIMUM.name(), "Maximum speed",
+                            Pacing.ORIGINAL.name(), "Original timestamps"),
+                    "Whether to replay the packets as fast as possible or paced by the timestamps of the capture.",
+                    ConfigurationField.Optional.OPTIONAL));
+            r.addField(new NumberField(
+                    CK_PCAP_SPEEDUP,
+                    "Speedup",
+                    1,
+                    "Factor by which the replay is faster than the capture when pacing by the original timestamps.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new NumberField(
+                    CK_PCAP_PORT,
+                    "Destination port",
+                    0,
+                    "Only replay UDP datagrams sent to this port. 0 replays all UDP datagrams.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            return r;
+        }
+    }
+}
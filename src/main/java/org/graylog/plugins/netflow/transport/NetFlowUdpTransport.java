@@ -15,23 +15,51 @@
  */
 package org.graylog.plugins.netflow.transport;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.inject.assistedinject.Assisted;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator;
 import org.graylog.plugins.netflow.codecs.RemoteAddressCodecAggregator;
 import org.graylog2.inputs.transports.NettyTransportConfiguration;
 import org.graylog2.inputs.transports.UdpTransport;
 import org.graylog2.inputs.transports.netty.EventLoopGroupFactory;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.inputs.transports.Transport;
 import org.graylog2.plugin.inputs.util.ThroughputCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This UDP transport is largely identical to its superclass, but replaces the codec aggregator and its handler with custom
@@ -40,9 +68,35 @@ import java.util.concurrent.Callable;
  * Without the remote address the NetFlow V9 code cannot distinguish between flows from different exporters and thus might
  * handle template flows incorrectly should they differ between exporters.
  *
+ * When more than one receive socket is configured and the native epoll transport is available, the transport binds that
+ * many sockets to the same port using {@code SO_REUSEPORT}. Each socket is served by its own event loop and handler
+ * pipeline, and the kernel distributes exporters across the sockets by hashing their address.
+ *
  * @see <a href="https://tools.ietf.org/html/rfc3954#section-5.1">RFC 3953 - Source ID</a>
  */
 public class NetFlowUdpTransport extends UdpTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(NetFlowUdpTransport.class);
+
+    static final String CK_RECEIVE_SOCKETS = "netflow_receive_sockets";
+    static final String CK_RECEIVE_BATCH_SIZE = "netflow_receive_batch_size";
+    static final String CK_SHEDDING_MODE = "netflow_shedding_mode";
+    static final String CK_SHEDDING_PERCENTAGE = "netflow_shedding_percentage";
+    static final String CK_OVERLOAD_THRESHOLD = "netflow_overload_threshold_ms";
+    static final String CK_TRACKED_EXPORTERS = "netflow_tracked_exporters";
+    static final String CK_RECV_BUFFER_CEILING = "netflow_recv_buffer_ceiling";
+
+    // largest possible UDP payload, NetFlow datagrams are never fragmented into multiple reads
+    private static final int MAX_DATAGRAM_SIZE = 65535;
+
+    private final int receiveSockets;
+    private final int receiveBatchSize;
+    private final NetflowLoadShedder loadShedder;
+    @Nullable
+    private final ExporterMetrics exporterMetrics;
+    private final KernelDropMonitor kernelDropMonitor;
+    private final ChannelGroup receiveChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private EventLoopGroup receiveEventLoopGroup;
+
     @Inject
     public NetFlowUdpTransport(@Assisted Configuration configuration,
                                EventLoopGroupFactory eventLoopGroupFactory,
@@ -50,20 +104,126 @@ public class NetFlowUdpTransport extends UdpTransport {
                                ThroughputCounter throughputCounter,
                                LocalMetricRegistry localRegistry) {
         super(configuration, eventLoopGroupFactory, nettyTransportConfiguration, throughputCounter, localRegistry);
+        this.receiveSockets = Math.max(1, configuration.getInt(CK_RECEIVE_SOCKETS, 1));
+        this.receiveBatchSize = Math.max(1, configuration.getInt(CK_RECEIVE_BATCH_SIZE, 1));
+        this.loadShedder = new NetflowLoadShedder(
+                NetflowLoadShedder.Mode.fromString(configuration.getString(CK_SHEDDING_MODE)),
+                configuration.getInt(CK_SHEDDING_PERCENTAGE, 10),
+                configuration.getInt(CK_OVERLOAD_THRESHOLD, 10),
+                TimeUnit.MILLISECONDS,
+                localRegistry);
+        final int trackedExporters = configuration.getInt(CK_TRACKED_EXPORTERS, 0);
+        this.exporterMetrics = trackedExporters > 0
+                ? new ExporterMetrics(localRegistry, () -> (RemoteAddressCodecAggregator) getAggregator(), trackedExporters)
+                : null;
+        this.kernelDropMonitor = new KernelDropMonitor(localRegistry, configuration.getInt(CK_RECV_BUFFER_CEILING, 0));
+    }
+
+    @Override
+    public void setMessageAggregator(CodecAggregator aggregator) {
+        super.setMessageAggregator(aggregator);
+        if (aggregator instanceof NetflowV9CodecAggregator) {
+            localRegistry.registerAll(((NetflowV9CodecAggregator) aggregator).getMetricSet());
+        }
     }
 
     @Override
     protected LinkedHashMap<String, Callable<? extends ChannelHandler>> getChannelHandlers(MessageInput input) {
-        final LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers = new LinkedHashMap<>(super.getChannelHandlers(input));
+        final LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers = new LinkedHashMap<>();
+        handlers.put("kernel-drop-monitor", kernelDropMonitor::newChannelHandler);
+        handlers.putAll(super.getChannelHandlers(input));
 
         // Replace the default "codec-aggregator" handler with one that passes the remote address
         final RemoteAddressCodecAggregator aggregator = (RemoteAddressCodecAggregator) getAggregator();
-        handlers.replace("codec-aggregator", () -> new NetflowMessageAggregationHandler(aggregator, localRegistry));
+        if (receiveBatchSize > 1) {
+            handlers.replace("codec-aggregator", () -> new NetflowBatchAggregationHandler(aggregator, localRegistry, loadShedder, exporterMetrics, receiveBatchSize));
+        } else {
+            handlers.replace("codec-aggregator", () -> new NetflowMessageAggregationHandler(aggregator, localRegistry, loadShedder, exporterMetrics));
+        }
         handlers.remove("udp-datagram");
 
         return handlers;
     }
 
+    @Override
+    public void launch(MessageInput input) throws MisfireException {
+        if (!isMultiSocketMode()) {
+            super.launch(input);
+            kernelDropMonitor.start();
+            return;
+        }
+
+        try {
+            final int recvBufferSize = (int) getRecvBufferSize();
+            LOG.debug("Binding {} receive sockets with SO_REUSEPORT to {}", receiveSockets, socketAddress);
+
+            // one event loop per socket, the bootstrap registers each new channel with the next event loop of the group
+            receiveEventLoopGroup = new EpollEventLoopGroup(receiveSockets, new DefaultThreadFactory("netflow-receiver"));
+            final Bootstrap bootstrap = new Bootstrap()
+                    .group(receiveEventLoopGroup)
+                    .channel(EpollDatagramChannel.class)
+                    .option(EpollChannelOption.SO_REUSEPORT, true)
+                    .option(ChannelOption.SO_RCVBUF, recvBufferSize)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE))
+                    .handler(getReceiveChannelInitializer(getChannelHandlers(input)));
+
+            for (int i = 0; i < receiveSockets; i++) {
+                final Channel channel = bootstrap.bind(socketAddress).syncUninterruptibly().channel();
+                receiveChannels.add(channel);
+                LOG.debug("Receive socket {} bound to {}", channel, channel.localAddress());
+            }
+            kernelDropMonitor.start();
+        } catch (Exception e) {
+            stop();
+            throw new MisfireException(e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        kernelDropMonitor.stop();
+        if (receiveEventLoopGroup == null) {
+            super.stop();
+        } else {
+            receiveChannels.close().syncUninterruptibly();
+            receiveEventLoopGroup.shutdownGracefully();
+            receiveEventLoopGroup = null;
+        }
+        releaseBufferedPackets(getAggregator());
+    }
+
+    static void releaseBufferedPackets(CodecAggregator aggregator) {
+        // packets waiting for templates live in pooled direct memory, nothing would ever release them otherwise
+        if (aggregator instanceof NetflowV9CodecAggregator) {
+            ((NetflowV9CodecAggregator) aggregator).releaseBufferedPackets();
+        }
+    }
+
+    private boolean isMultiSocketMode() {
+        if (receiveSockets <= 1) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            LOG.warn("Native epoll transport is not available, ignoring {} receive sockets and using a single socket.",
+                    receiveSockets, Epoll.unavailabilityCause());
+            return false;
+        }
+        return true;
+    }
+
+    private ChannelInitializer<Channel> getReceiveChannelInitializer(LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                // every socket gets its own instances of the handlers, they are not shared across event loops
+                final ChannelPipeline pipeline = ch.pipeline();
+                for (Map.Entry<String, Callable<? extends ChannelHandler>> handler : handlers.entrySet()) {
+                    pipeline.addLast(handler.getKey(), handler.getValue().call());
+                }
+            }
+        };
+    }
+
     @FactoryClass
     public interface Factory extends Transport.Factory<NetFlowUdpTransport> {
         @Override
@@ -75,5 +235,62 @@ public class NetFlowUdpTransport extends UdpTransport {
 
     @ConfigClass
     public static class Config extends UdpTransport.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            r.addField(new NumberField(
+                    CK_RECEIVE_SOCKETS,
+                    "Receive sockets",
+                    1,
+                    "Number of sockets bound to the port with SO_REUSEPORT, each with its own event loop. Requires the native epoll transport, values greater than 1 are ignored otherwise.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new NumberField(
+                    CK_RECEIVE_BATCH_SIZE,
+                    "Receive batch size",
+                    1,
+                    "Maximum number of datagrams read per socket read loop and handed to the aggregator as one batch. 1 disables batching.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new DropdownField(
+                    CK_SHEDDING_MODE,
+                    "Overload shedding",
+                    NetflowLoadShedder.Mode.DISABLED.name(),
+                    ImmutableMap.of(
+                            NetflowLoadShedder.Mode.DISABLED.name(), "Disabled",
+                            NetflowLoadShedder.Mode.EXPORTER.name(), "Drop by exporter",
+                            NetflowLoadShedder.Mode.SAMPLE.name(), "Drop by packet hash"),
+                    "How data packets are dropped while the input is overloaded. Template packets are never dropped.",
+                    ConfigurationField.Optional.OPTIONAL));
+            r.addField(new NumberField(
+                    CK_SHEDDING_PERCENTAGE,
+                    "Overload shedding percentage",
+                    10,
+                    "Percentage of the data packets which are dropped while the input is overloaded.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new NumberField(
+                    CK_OVERLOAD_THRESHOLD,
+                    "Overload threshold (ms)",
+                    10,
+                    "Average time in milliseconds it may take to hand a message to the input buffer before the input is considered overloaded.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new NumberField(
+                    CK_TRACKED_EXPORTERS,
+                    "Exporters with own metrics",
+                    0,
+                    "Number of the busiest exporters which get their own throughput and latency metrics. All other exporters share one set of metrics. 0 disables per exporter metrics.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            r.addField(new NumberField(
+                    CK_RECV_BUFFER_CEILING,
+                    "Receive buffer ceiling",
+                    0,
+                    "Largest receive buffer size in bytes the input grows its sockets to when the kernel drops datagrams. The effective size is also limited by net.core.rmem_max. 0 disables growing the receive buffers.",
+                    ConfigurationField.Optional.OPTIONAL,
+                    NumberField.Attribute.ONLY_POSITIVE));
+            return r;
+        }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.MaxMessagesRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import org.graylog.plugins.netflow.codecs.RemoteAddressCodecAggregator;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects all datagrams of one channel read loop and hands them to the aggregator as one batch once the read loop
+ * completes (or the batch is full). The aggregation time is measured once per batch instead of once per datagram.
+ */
+public class NetflowBatchAggregationHandler extends NetflowMessageAggregationHandler {
+    private final int maxBatchSize;
+    private final List<DatagramPacket> batch;
+    private final Histogram batchSizes;
+
+    public NetflowBatchAggregationHandler(RemoteAddressCodecAggregator aggregator,
+                                          MetricRegistry metricRegistry,
+                                          @Nullable NetflowLoadShedder loadShedder,
+                                          @Nullable ExporterMetrics exporterMetrics,
+                                          int maxBatchSize) {
+        super(aggregator, metricRegistry, loadShedder, exporterMetrics);
+        this.maxBatchSize = maxBatchSize;
+        this.batch = new ArrayList<>(maxBatchSize);
+        this.batchSizes = metricRegistry.histogram("aggregationBatchSize");
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        // let the channel read as many datagrams per read loop as we are willing to batch
+        final RecvByteBufAllocator allocator = ctx.channel().config().getRecvByteBufAllocator();
+        if (allocator instanceof MaxMessagesRecvByteBufAllocator) {
+            ((MaxMessagesRecvByteBufAllocator) allocator).maxMessagesPerRead(maxBatchSize);
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!acceptInboundMessage(msg)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        final DatagramPacket packet = (DatagramPacket) msg;
+        if (overloadDetector != null && overloadDetector.shouldShed(packet.content(), packet.sender())) {
+            packet.release();
+            return;
+        }
+
+        batch.add(packet);
+        if (batch.size() >= maxBatchSize) {
+            processBatch(ctx);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        processBatch(ctx);
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releaseBatch();
+        super.handlerRemoved(ctx);
+    }
+
+    private void processBatch(ChannelHandlerContext ctx) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            final List<CodecAggregator.Result> results;
+            final long start = System.nanoTime();
+            try (Timer.Context ignored = aggregationTimer.time()) {
+                results = aggregator.addChunks(batch);
+            }
+            batchSizes.update(batch.size());
+            if (exporterMetrics != null) {
+                // the aggregation time of a batch is attributed evenly to its packets
+                final long nanosPerPacket = (System.nanoTime() - start) / batch.size();
+                for (int i = 0; i < batch.size(); i++) {
+                    final DatagramPacket packet = batch.get(i);
+                    exporterMetrics.record(packet.sender(), packet.content(), results.get(i), nanosPerPacket);
+                }
+            }
+            for (CodecAggregator.Result result : results) {
+                forwardResult(ctx, result);
+            }
+        } finally {
+            releaseBatch();
+        }
+    }
+
+    private void releaseBatch() {
+        for (DatagramPacket packet : batch) {
+            packet.release();
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import io.netty.buffer.ByteBuf;
+import org.graylog.plugins.netflow.v9.NetFlowV9Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deterministically drops NetFlow data packets while the input is overloaded.
+ *
+ * Overload is detected per channel from the time it takes to hand a complete message to the rest of the pipeline:
+ * the downstream handler publishes into the input buffer, which blocks once the buffer (and thus the journal or the
+ * process buffer behind it) has fallen behind. The moving average of that time decays while no messages are forwarded,
+ * which is the case once most data packets are dropped. While a channel is overloaded, a fixed share of the data packets is
+ * dropped, chosen either by exporter or by hashing the packet's sequence number. Packets containing templates or
+ * option templates are never dropped, otherwise we would have to buffer the data packets of that exporter for minutes.
+ */
+public class NetflowLoadShedder {
+    private static final Logger LOG = LoggerFactory.getLogger(NetflowLoadShedder.class);
+
+    // weight of a new forward time sample in the moving average
+    private static final double EWMA_ALPHA = 0.05;
+    // time constant of the decay of the moving average while no messages are forwarded
+    private static final double DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Mode {
+        DISABLED, EXPORTER, SAMPLE;
+
+        public static Mode fromString(@Nullable String mode) {
+            if (mode == null || mode.trim().isEmpty()) {
+                return DISABLED;
+            }
+            try {
+                return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Unknown NetFlow load shedding mode {}, using {}", mode, DISABLED);
+                return DISABLED;
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final int percentage;
+    private final long thresholdNanos;
+    private final Meter shedPackets;
+    private final Meter shedBytes;
+    private final AtomicInteger overloadedChannels = new AtomicInteger();
+
+    public NetflowLoadShedder(Mode mode, int percentage, long threshold, TimeUnit thresholdUnit, MetricRegistry metricRegistry) {
+        this.mode = mode;
+        this.percentage = Math.max(0, Math.min(100, percentage));
+        this.thresholdNanos = thresholdUnit.toNanos(threshold);
+        this.shedPackets = metricRegistry.meter("shedPackets");
+        this.shedBytes = metricRegistry.meter("shedBytes");
+        metricRegistry.register("overloadedChannels", (Gauge<Integer>) overloadedChannels::get);
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.DISABLED && percentage > 0;
+    }
+
+    /**
+     * @return new overload detection state for a single channel, it must only be used from that channel's event loop
+     */
+    public Detector newDetector() {
+        return new Detector();
+    }
+
+    private boolean isSheddable(ByteBuf packet, @Nullable SocketAddress sender) {
+        if (packet.readableBytes() < 2) {
+            return false;
+        }
+        final int version = packet.getUnsignedShort(packet.readerIndex());
+        if (version == 9 && NetFlowV9Parser.containsTemplates(packet)) {
+            return false;
+        }
+
+        final int h;
+        if (mode == Mode.EXPORTER) {
+            h = exporterHash(sender);
+        } else {
+            h = 31 * exporterHash(sender) + sequenceNumber(packet, version);
+        }
+        return bucket(h) < percentage;
+    }
+
+    private static int exporterHash(@Nullable SocketAddress sender) {
+        if (sender instanceof InetSocketAddress && ((InetSocketAddress) sender).getAddress() != null) {
+            return ((InetSocketAddress) sender).getAddress().hashCode();
+        }
+        return sender == null ? 0 : sender.hashCode();
+    }
+
+    private static int sequenceNumber(ByteBuf packet, int version) {
+        // v5: flow_sequence at offset 16, v9: package_sequence at offset 12
+        final int offset = version == 5 ? 16 : 12;
+        if (packet.readableBytes() < offset + 4) {
+            return 0;
+        }
+        return packet.getInt(packet.readerIndex() + offset);
+    }
+
+    private static int bucket(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % 100;
+    }
+
+    public class Detector {
+        private double averageForwardNanos = 0;
+        private long lastUpdateNanos = System.nanoTime();
+        private boolean overloaded = false;
+
+        /**
+         * Records how long it took to pass a complete message downstream.
+         */
+        public void recordForwardTime(long nanos) {
+            recordForwardTime(nanos, System.nanoTime());
+        }
+
+        @VisibleForTesting
+        void recordForwardTime(long nanos, long now) {
+            averageForwardNanos += EWMA_ALPHA * (nanos - averageForwardNanos);
+            lastUpdateNanos = now;
+            updateOverloaded();
+        }
+
+        /**
+         * @return {@code true} if the packet should be dropped, the drop has already been accounted for in the metrics
+         */
+        public boolean shouldShed(ByteBuf packet, @Nullable SocketAddress sender) {
+            return shouldShed(packet, sender, System.nanoTime());
+        }
+
+        @VisibleForTesting
+        boolean shouldShed(ByteBuf packet, @Nullable SocketAddress sender, long now) {
+            if (overloaded) {
+                // while packets are shed, few or no messages are forwarded and sampled. without decaying the average
+                // over time, the channel could stay overloaded long after the rest of the pipeline has caught up
+                averageForwardNanos *= Math.exp(-(now - lastUpdateNanos) / DECAY_NANOS);
+                lastUpdateNanos = now;
+                updateOverloaded();
+            }
+            if (!overloaded || !isSheddable(packet, sender)) {
+                return false;
+            }
+            shedPackets.mark();
+            shedBytes.mark(packet.readableBytes());
+            return true;
+        }
+
+        private void updateOverloaded() {
+            if (!overloaded && averageForwardNanos > thresholdNanos) {
+                overloaded = true;
+                overloadedChannels.incrementAndGet();
+                LOG.info("NetFlow input is overloaded, dropping {}% of the data packets by {}.", percentage, mode.name().toLowerCase(Locale.ROOT));
+            } else if (overloaded && averageForwardNanos < thresholdNanos / 2) {
+                // hysteresis, otherwise we would flip between both states on every other message
+                overloaded = false;
+                overloadedChannels.decrementAndGet();
+                LOG.info("NetFlow input has recovered from overload, no longer dropping data packets.");
+            }
+        }
+
+        /**
+         * Must be called when the channel goes away, so the overload gauge stays accurate.
+         */
+        public void close() {
+            if (overloaded) {
+                overloaded = false;
+                overloadedChannels.decrementAndGet();
+            }
+        }
+    }
+}
@@ -22,38 +22,116 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator;
 import org.graylog.plugins.netflow.codecs.RemoteAddressCodecAggregator;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
+import javax.annotation.Nullable;
 import java.net.SocketAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class NetflowMessageAggregationHandler extends SimpleChannelInboundHandler<DatagramPacket> {
     private static final Logger LOG = LoggerFactory.getLogger(NetflowMessageAggregationHandler.class);
 
-    private final RemoteAddressCodecAggregator aggregator;
-    private final Timer aggregationTimer;
+    protected final RemoteAddressCodecAggregator aggregator;
+    protected final Timer aggregationTimer;
     private final Meter invalidChunksMeter;
+    @Nullable
+    protected final NetflowLoadShedder.Detector overloadDetector;
+    @Nullable
+    protected final ExporterMetrics exporterMetrics;
+    @Nullable
+    private ScheduledFuture<?> batchFlush;
 
     public NetflowMessageAggregationHandler(RemoteAddressCodecAggregator aggregator, MetricRegistry metricRegistry) {
+        this(aggregator, metricRegistry, null, null);
+    }
+
+    public NetflowMessageAggregationHandler(RemoteAddressCodecAggregator aggregator,
+                                            MetricRegistry metricRegistry,
+                                            @Nullable NetflowLoadShedder loadShedder,
+                                            @Nullable ExporterMetrics exporterMetrics) {
         this.aggregator = aggregator;
+        this.exporterMetrics = exporterMetrics;
         aggregationTimer = metricRegistry.timer("aggregationTime");
         invalidChunksMeter = metricRegistry.meter("invalidMessages");
+        overloadDetector = loadShedder != null && loadShedder.isEnabled() ? loadShedder.newDetector() : null;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (aggregator instanceof NetflowV9CodecAggregator) {
+            final long batchWindowNanos = ((NetflowV9CodecAggregator) aggregator).getBatchWindowNanos();
+            if (batchWindowNanos > 0) {
+                // checking twice per window keeps entries from waiting much longer than the window
+                final long period = Math.max(1L, batchWindowNanos / 2);
+                batchFlush = ctx.executor().scheduleAtFixedRate(() -> flushBatches(ctx, false), period, period, TimeUnit.NANOSECONDS);
+            }
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // pass the pending journal entries on while the pipeline is still intact
+        if (batchFlush != null) {
+            flushBatches(ctx, true);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (batchFlush != null) {
+            batchFlush.cancel(false);
+            batchFlush = null;
+        }
+        if (overloadDetector != null) {
+            overloadDetector.close();
+        }
+        super.handlerRemoved(ctx);
+    }
+
+    private void flushBatches(ChannelHandlerContext ctx, boolean all) {
+        // every channel's handler flushes the entries of all exporters, which end up in the same input anyway
+        for (NetflowV9CodecAggregator.CompletedBatch batch : ((NetflowV9CodecAggregator) aggregator).flushBatches(all)) {
+            forwardResult(ctx, new CodecAggregator.Result(batch.getEntry(), true));
+        }
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
         final SocketAddress remoteAddress = msg.sender();
+        if (overloadDetector != null && overloadDetector.shouldShed(msg.content(), remoteAddress)) {
+            LOG.debug("Dropping data packet from {} due to overload", remoteAddress);
+            return;
+        }
         final CodecAggregator.Result result;
+        final long start = System.nanoTime();
         try (Timer.Context ignored = aggregationTimer.time()) {
             result = aggregator.addChunk(msg.content(), remoteAddress);
         }
+        if (exporterMetrics != null) {
+            exporterMetrics.record(remoteAddress, msg.content(), result, System.nanoTime() - start);
+        }
+        forwardResult(ctx, result);
+    }
+
+    protected void forwardResult(ChannelHandlerContext ctx, CodecAggregator.Result result) {
         final ByteBuf completeMessage = result.getMessage();
         if (completeMessage != null) {
             LOG.debug("Message aggregation completion, forwarding {}", completeMessage);
-            ctx.fireChannelRead(completeMessage);
+            if (overloadDetector == null) {
+                ctx.fireChannelRead(completeMessage);
+            } else {
+                // passing the message on blocks when the input buffer is full, which is how we detect overload
+                final long start = System.nanoTime();
+                ctx.fireChannelRead(completeMessage);
+                overloadDetector.recordForwardTime(System.nanoTime() - start);
+            }
         } else if (result.isValid()) {
             LOG.debug("More chunks necessary to complete this message");
         } else {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Minimal reader for UDP datagrams in classic pcap files.
+ *
+ * The file is memory-mapped in windows and the returned payloads are wrapped slices of the mapping, no packet data is
+ * copied. Supported link types are Ethernet (with VLAN tags), Linux cooked capture, BSD loopback and raw IP, carrying
+ * IPv4 or IPv6. Everything that isn't an unfragmented UDP datagram is skipped.
+ */
+public class PcapReader implements Closeable {
+    private static final int GLOBAL_HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int MAGIC_NANOS = 0xa1b23c4d;
+
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW_BSD = 12;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86dd;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88a8;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    private final boolean swapped;
+    private final boolean nanos;
+    private final int linkType;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    public PcapReader(Path path) throws IOException {
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.fileSize = fileChannel.size();
+            this.position = 0;
+            if (!ensureMapped(GLOBAL_HEADER_LENGTH)) {
+                throw new IOException("File " + path + " is too short to be a pcap file");
+            }
+            final int magic = window.getInt(0);
+            if (magic == MAGIC_MICROS || magic == MAGIC_NANOS) {
+                swapped = false;
+            } else if (Integer.reverseBytes(magic) == MAGIC_MICROS || Integer.reverseBytes(magic) == MAGIC_NANOS) {
+                swapped = true;
+            } else {
+                throw new IOException("File " + path + " is not a pcap file, unknown magic number " + Integer.toHexString(magic));
+            }
+            this.nanos = (swapped ? Integer.reverseBytes(magic) : magic) == MAGIC_NANOS;
+            this.linkType = headerInt(20);
+            this.position = GLOBAL_HEADER_LENGTH;
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next UDP datagram or {@code null} at the end of the file
+     */
+    @Nullable
+    public Packet next() throws IOException {
+        while (ensureMapped(RECORD_HEADER_LENGTH)) {
+            final long seconds = headerInt(0) & 0xffffffffL;
+            final long fraction = headerInt(4) & 0xffffffffL;
+            final int capturedLength = headerInt(8);
+            if (capturedLength < 0) {
+                throw new IOException("Corrupt pcap record at offset " + position);
+            }
+            position += RECORD_HEADER_LENGTH;
+            if (!ensureMapped(capturedLength)) {
+                // truncated capture
+                return null;
+            }
+
+            final int offset = (int) (position - windowStart);
+            position += capturedLength;
+            final long timestampNanos = seconds * 1_000_000_000L + (nanos ? fraction : fraction * 1000L);
+            final Packet packet = parseLinkLayer(offset, capturedLength, timestampNanos);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    private int headerInt(int relativeOffset) {
+        final int value = window.getInt((int) (position - windowStart) + relativeOffset);
+        return swapped ? Integer.reverseBytes(value) : value;
+    }
+
+    private boolean ensureMapped(int length) throws IOException {
+        if (position + length > fileSize) {
+            return false;
+        }
+        if (window != null && position >= windowStart && position + length <= windowStart + window.capacity()) {
+            return true;
+        }
+        final long size = Math.min(fileSize - position, Math.max(WINDOW_SIZE, length));
+        // slices of the previous window stay valid, the mapping lives as long as they are referenced
+        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        window.order(ByteOrder.BIG_ENDIAN);
+        windowStart = position;
+        return true;
+    }
+
+    @Nullable
+    private Packet parseLinkLayer(int offset, int length, long timestampNanos) throws IOException {
+        final int end = offset + length;
+        int etherType;
+        switch (linkType) {
+            case LINKTYPE_ETHERNET:
+                if (length < 14) {
+                    return null;
+                }
+                etherType = window.getShort(offset + 12) & 0xffff;
+                offset += 14;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && offset + 4 <= end) {
+                    etherType = window.getShort(offset + 2) & 0xffff;
+                    offset += 4;
+                }
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (length < 16) {
+                    return null;
+                }
+                etherType = window.getShort(offset + 14) & 0xffff;
+                offset += 16;
+                break;
+            case LINKTYPE_NULL:
+                // the address family is in the byte order of the capturing host, just look at the IP version below
+                offset += 4;
+                etherType = -1;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_RAW_BSD:
+                etherType = -1;
+                break;
+            default:
+                throw new IOException("Unsupported pcap link type " + linkType);
+        }
+        if (offset >= end) {
+            return null;
+        }
+        if (etherType == -1) {
+            final int version = (window.get(offset) & 0xf0) >> 4;
+            etherType = version == 4 ? ETHERTYPE_IPV4 : version == 6 ? ETHERTYPE_IPV6 : 0;
+        }
+
+        if (etherType == ETHERTYPE_IPV4) {
+            return parseIpv4(offset, end, timestampNanos);
+        } else if (etherType == ETHERTYPE_IPV6) {
+            return parseIpv6(offset, end, timestampNanos);
+        }
+        return null;
+    }
+
+    @Nullable
+    private Packet parseIpv4(int offset, int end, long timestampNanos) throws IOException {
+        if (offset + 20 > end) {
+            return null;
+        }
+        final int headerLength = (window.get(offset) & 0x0f) * 4;
+        final int flagsAndFragmentOffset = window.getShort(offset + 6) & 0xffff;
+        final boolean fragmented = (flagsAndFragmentOffset & 0x3fff) != 0;
+        if (window.get(offset + 9) != PROTOCOL_UDP || fragmented || headerLength < 20) {
+            return null;
+        }
+        final byte[] source = new byte[4];
+        getBytes(offset + 12, source);
+        return parseUdp(offset + headerLength, end, InetAddress.getByAddress(source), timestampNanos);
+    }
+
+    @Nullable
+    private Packet parseIpv6(int offset, int end, long timestampNanos) throws IOException {
+        if (offset + 40 > end || window.get(offset + 6) != PROTOCOL_UDP) {
+            // extension headers are not supported
+            return null;
+        }
+        final byte[] source = new byte[16];
+        getBytes(offset + 8, source);
+        return parseUdp(offset + 40, end, InetAddress.getByAddress(source), timestampNanos);
+    }
+
+    @Nullable
+    private Packet parseUdp(int offset, int end, InetAddress sourceAddress, long timestampNanos) {
+        if (offset + 8 > end) {
+            return null;
+        }
+        final int sourcePort = window.getShort(offset) & 0xffff;
+        final int destinationPort = window.getShort(offset + 2) & 0xffff;
+        final int udpLength = window.getShort(offset + 4) & 0xffff;
+        // the UDP length might be larger than what was captured (snaplen) or smaller than the frame (Ethernet padding)
+        final int payloadEnd = udpLength >= 8 ? Math.min(end, offset + udpLength) : end;
+
+        final ByteBuffer payload = window.duplicate();
+        payload.position(offset + 8).limit(payloadEnd);
+        return new Packet(timestampNanos, new InetSocketAddress(sourceAddress, sourcePort), destinationPort,
+                Unpooled.wrappedBuffer(payload.slice()));
+    }
+
+    private void getBytes(int offset, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = window.get(offset + i);
+        }
+    }
+
+    public static class Packet {
+        private final long timestampNanos;
+        private final InetSocketAddress sender;
+        private final int destinationPort;
+        private final ByteBuf payload;
+
+        Packet(long timestampNanos, InetSocketAddress sender, int destinationPort, ByteBuf payload) {
+            this.timestampNanos = timestampNanos;
+            this.sender = sender;
+            this.destinationPort = destinationPort;
+            this.payload = payload;
+        }
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public InetSocketAddress getSender() {
+            return sender;
+        }
+
+        public int getDestinationPort() {
+            return destinationPort;
+        }
+
+        /**
+         * @return the UDP payload, backed by the file mapping
+         */
+        public ByteBuf getPayload() {
+            return payload;
+        }
+    }
+}
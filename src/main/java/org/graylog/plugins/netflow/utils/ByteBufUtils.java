@@ -25,6 +25,39 @@ import java.net.UnknownHostException;
 public class ByteBufUtils {
     public static final InetAddress DEFAULT_INET_ADDRESS = InetAddresses.forString("0.0.0.0");
 
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * 64 bit hash of a region of the buffer, suitable for fingerprinting but not for cryptographic purposes.
+     * Uses the xxHash64 rounds on a single lane, so it doesn't produce the same values as xxHash64 for inputs of 32 bytes or more.
+     */
+    public static long hash64(final ByteBuf buf, final int offset, final int length) {
+        final int end = offset + length;
+        long hash = PRIME64_5 + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            final long k = Long.rotateLeft(buf.getLong(i) * PRIME64_2, 31) * PRIME64_1;
+            hash = Long.rotateLeft(hash ^ k, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (i + 4 <= end) {
+            hash = Long.rotateLeft(hash ^ buf.getUnsignedInt(i) * PRIME64_1, 23) * PRIME64_2 + PRIME64_3;
+            i += 4;
+        }
+        for (; i < end; i++) {
+            hash = Long.rotateLeft(hash ^ buf.getUnsignedByte(i) * PRIME64_5, 11) * PRIME64_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
     public static long getUnsignedInteger(final ByteBuf buf, final int offset, final int length) {
         switch (length) {
             case 1:
@@ -2,6 +2,41 @@ package org.graylog.plugins.netflow.v9;
 
 import com.google.common.collect.ImmutableMap;
 
+import javax.annotation.Nullable;
+import java.util.function.BiConsumer;
+
 public interface NetFlowV9BaseRecord {
     ImmutableMap<String, Object> fields();
+
+    /**
+     * @return the value of the field or {@code null} if the record doesn't have it
+     */
+    @Nullable
+    default Object get(String key) {
+        return fields().get(key);
+    }
+
+    /**
+     * @return the value of a numeric field or the default value if the record doesn't have the field or it isn't a number
+     */
+    default long getLong(String key, long defaultValue) {
+        final Object value = get(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    /**
+     * Passes every field to the action in the order of the template, without building the field map if the record
+     * doesn't have one yet.
+     */
+    default void forEachField(BiConsumer<String, Object> action) {
+        fields().forEach(action);
+    }
+
+    /**
+     * Like {@link #forEachField(BiConsumer)}, but passes the {@link NetFlowV9FieldType#messageField(String) message field}
+     * of every field instead of its key.
+     */
+    default void forEachMessageField(BiConsumer<String, Object> action) {
+        forEachField((key, value) -> action.accept(NetFlowV9FieldType.messageField(key), value));
+    }
 }
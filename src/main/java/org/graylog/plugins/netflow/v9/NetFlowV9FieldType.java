@@ -20,9 +20,25 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.auto.value.AutoValue;
 
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 @JsonAutoDetect
 @AutoValue
 public abstract class NetFlowV9FieldType {
+    /**
+     * Prefix of the message fields of record fields.
+     */
+    public static final String MESSAGE_FIELD_PREFIX = "nf_";
+
+    // bounded by the names of the registry and the generated names of unknown field types
+    private static final ConcurrentMap<String, String> MESSAGE_FIELDS = new ConcurrentHashMap<>();
+
+    // derived from the name on first use, not properties of the field type
+    private volatile String key;
+    private volatile String messageField;
+
     @JsonProperty("id")
     public abstract int id();
 
@@ -39,6 +55,38 @@ public abstract class NetFlowV9FieldType {
         return new AutoValue_NetFlowV9FieldType(id, valueType, name);
     }
 
+    /**
+     * @return the interned key of the field in records, the lower case name
+     */
+    public String key() {
+        String k = key;
+        if (k == null) {
+            k = name().toLowerCase(Locale.ROOT).intern();
+            key = k;
+        }
+        return k;
+    }
+
+    /**
+     * @return the interned name of the message field of the field in records
+     */
+    public String messageField() {
+        String field = messageField;
+        if (field == null) {
+            field = messageField(key());
+            messageField = field;
+        }
+        return field;
+    }
+
+    /**
+     * @return the interned name of the message field of a record field with the given key
+     */
+    public static String messageField(String key) {
+        final String field = MESSAGE_FIELDS.get(key);
+        return field != null ? field : MESSAGE_FIELDS.computeIfAbsent(key, k -> (MESSAGE_FIELD_PREFIX + k).intern());
+    }
+
     public enum ValueType {
         UINT8(1), INT8(1), UINT16(2), INT16(2), UINT24(3), INT24(3),
         UINT32(4), INT32(4), UINT64(8), INT64(8), IPV4(4), IPV6(16),
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.v9;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Data record which references its bytes in the packet's buffer and only decodes a field when it is accessed, using the
+ * offsets and readers of its template's {@link NetFlowV9RecordDecoder decoder}. Decoded values are kept, so every field
+ * is decoded at most once. Records which are dropped without looking at their fields cost little more than the object.
+ *
+ * Numeric fields are kept unboxed in a {@code long[]} indexed by the field's slot and only boxed when they are accessed
+ * as objects, {@link #getLong(String, long)} doesn't box at all. Addresses, strings and other values are kept in an
+ * {@code Object[]}. A record allocates the same few objects no matter how many fields it has.
+ *
+ * Lazy records are equal to {@link NetFlowV9Record records} with the same fields. The buffer must neither be released
+ * nor modified while the record is in use.
+ *
+ * Not thread safe.
+ */
+final class NetFlowV9LazyRecord extends NetFlowV9Record {
+    private static final Object NOT_DECODED = new Object();
+    private static final Object[] NO_OBJECTS = new Object[0];
+
+    private final NetFlowV9RecordDecoder decoder;
+    private final ByteBuf buffer;
+    private final int index;
+    private final long[] numbers;
+    private final Object[] objects;
+    // bits of the decoded slots of numbers, the first 64 slots use the field, further slots the array
+    private long decoded = 0;
+    @Nullable
+    private long[] moreDecoded;
+    private ImmutableMap<String, Object> fields;
+
+    NetFlowV9LazyRecord(NetFlowV9RecordDecoder decoder, ByteBuf buffer, int index) {
+        this.decoder = decoder;
+        this.buffer = buffer;
+        this.index = index;
+        this.numbers = new long[decoder.numericSlots()];
+        if (decoder.objectSlots() == 0) {
+            this.objects = NO_OBJECTS;
+        } else {
+            this.objects = new Object[decoder.objectSlots()];
+            Arrays.fill(objects, NOT_DECODED);
+        }
+    }
+
+    @Override
+    public ImmutableMap<String, Object> fields() {
+        if (fields == null) {
+            final ImmutableMap.Builder<String, Object> builder = ImmutableMap.builder();
+            forEachField(builder::put);
+            fields = builder.build();
+        }
+        return fields;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String key) {
+        final int field = decoder.fieldIndex(key);
+        return field < 0 ? null : value(field);
+    }
+
+    @Override
+    public long getLong(String key, long defaultValue) {
+        final int field = decoder.fieldIndex(key);
+        if (field < 0) {
+            return defaultValue;
+        }
+        if (decoder.isNumeric(field)) {
+            return number(field);
+        }
+        final Object value = object(field);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    @Override
+    public void forEachField(BiConsumer<String, Object> action) {
+        for (int field = 0; field < decoder.fieldCount(); field++) {
+            final Object value = value(field);
+            if (value != null) {
+                action.accept(decoder.key(field), value);
+            }
+        }
+    }
+
+    @Override
+    public void forEachMessageField(BiConsumer<String, Object> action) {
+        for (int field = 0; field < decoder.fieldCount(); field++) {
+            final Object value = value(field);
+            if (value != null) {
+                action.accept(decoder.messageField(field), value);
+            }
+        }
+    }
+
+    @Nullable
+    private Object value(int field) {
+        return decoder.isNumeric(field) ? decoder.box(field, number(field)) : object(field);
+    }
+
+    private long number(int field) {
+        final int slot = decoder.slot(field);
+        if (isDecoded(slot)) {
+            return numbers[slot];
+        }
+        final long value = decoder.decodeNumber(field, buffer, index);
+        numbers[slot] = value;
+        markDecoded(slot);
+        return value;
+    }
+
+    @Nullable
+    private Object object(int field) {
+        final int slot = decoder.slot(field);
+        Object value = objects[slot];
+        if (value == NOT_DECODED) {
+            value = decoder.decodeObject(field, buffer, index);
+            objects[slot] = value;
+        }
+        return value;
+    }
+
+    private boolean isDecoded(int slot) {
+        if (slot < Long.SIZE) {
+            return (decoded & 1L << slot) != 0;
+        }
+        return moreDecoded != null && (moreDecoded[slot / Long.SIZE - 1] & 1L << slot) != 0;
+    }
+
+    private void markDecoded(int slot) {
+        if (slot < Long.SIZE) {
+            decoded |= 1L << slot;
+        } else {
+            if (moreDecoded == null) {
+                moreDecoded = new long[(numbers.length - 1) / Long.SIZE];
+            }
+            moreDecoded[slot / Long.SIZE - 1] |= 1L << slot;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof NetFlowV9Record)) {
+            return false;
+        }
+        return fields().equals(((NetFlowV9Record) o).fields());
+    }
+
+    @Override
+    public int hashCode() {
+        // the same as the generated records
+        return 1000003 ^ fields().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "NetFlowV9Record{fields=" + fields() + "}";
+    }
+}
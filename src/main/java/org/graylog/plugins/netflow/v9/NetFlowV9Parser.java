@@ -23,6 +23,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import org.graylog.plugins.netflow.flows.EmptyTemplateException;
 import org.graylog.plugins.netflow.flows.InvalidFlowVersionException;
+import org.graylog.plugins.netflow.utils.ByteBufUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +31,7 @@ import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -37,12 +39,63 @@ import java.util.Set;
 
 public class NetFlowV9Parser {
     private static final Logger LOG = LoggerFactory.getLogger(NetFlowV9Parser.class);
+    private static final int HEADER_LENGTH = 20;
+
+    /**
+     * How the records of data flow sets are decoded.
+     */
+    public enum RecordDecoding {
+        /**
+         * Every field is decoded according to its field definition.
+         */
+        INTERPRETED,
+        /**
+         * Each template is compiled into a {@link NetFlowV9RecordDecoder decoder} specialized for its fields.
+         */
+        COMPILED,
+        /**
+         * Like {@link #COMPILED}, but the fields of data records are only decoded when they are accessed. The records
+         * reference the buffer of the packet, which must neither be released nor modified while they are in use.
+         * Option records are always decoded right away.
+         */
+        LAZY,
+        /**
+         * Records are decoded by the interpreter, the compiled decoder and lazily, differences are logged. The interpreted
+         * records are returned.
+         */
+        VERIFY
+    }
+
+    /**
+     * @return the record decoding of the given name, {@link RecordDecoding#INTERPRETED} if the name is empty or unknown
+     */
+    public static RecordDecoding recordDecoding(@Nullable String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return RecordDecoding.INTERPRETED;
+        }
+        try {
+            return RecordDecoding.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown NetFlow v9 record decoding {}, using {}", name, RecordDecoding.INTERPRETED);
+            return RecordDecoding.INTERPRETED;
+        }
+    }
 
     public static NetFlowV9Packet parsePacket(ByteBuf bb, NetFlowV9FieldTypeRegistry typeRegistry) {
         return parsePacket(bb, typeRegistry, Maps.newHashMap(), null);
     }
 
     public static NetFlowV9Packet parsePacket(ByteBuf bb, NetFlowV9FieldTypeRegistry typeRegistry, Map<Integer, NetFlowV9Template> cache, @Nullable NetFlowV9OptionTemplate optionTemplate) {
+        return parsePacket(bb, typeRegistry, cache, optionTemplate, RecordDecoding.INTERPRETED, null);
+    }
+
+    /**
+     * @param decoding how the records of data flow sets are decoded
+     * @param decoders the compiled decoders of the templates, only used if the records aren't interpreted
+     */
+    public static NetFlowV9Packet parsePacket(ByteBuf bb, NetFlowV9FieldTypeRegistry typeRegistry, Map<Integer, NetFlowV9Template> cache,
+                                              @Nullable NetFlowV9OptionTemplate optionTemplate, RecordDecoding decoding,
+                                              @Nullable NetFlowV9RecordDecoders decoders) {
         final int dataLength = bb.readableBytes();
         final NetFlowV9Header header = parseHeader(bb);
 
@@ -56,7 +109,10 @@ public class NetFlowV9Parser {
                 final List<NetFlowV9Template> templates = parseTemplates(bb, typeRegistry);
                 allTemplates.addAll(templates);
                 for (NetFlowV9Template t : templates) {
-                    cache.put(t.templateId(), t);
+                    // keep the known instance of a resent template, its compiled record decoder is looked up by the instance
+                    if (!t.equals(cache.get(t.templateId()))) {
+                        cache.put(t.templateId(), t);
+                    }
                 }
             } else if (flowSetId == 1) {
                 optTemplate = parseOptionTemplate(bb, typeRegistry);
@@ -65,7 +121,7 @@ public class NetFlowV9Parser {
                 if (cache.isEmpty() && optTemplate == null) {
                     throw new EmptyTemplateException("Unable to parse NetFlow 9 records without template. Discarding packet.");
                 }
-                records = parseRecords(bb, cache, optionTemplate);
+                records = parseRecords(bb, cache, optionTemplate, decoding, decoders);
             }
         }
 
@@ -159,6 +215,13 @@ public class NetFlowV9Parser {
      * Like above, but only retrieves the bytes and template ids
      */
     public static List<Map.Entry<Integer, byte[]>> parseTemplatesShallow(ByteBuf bb) {
+        return parseTemplatesShallow(bb, null);
+    }
+
+    /**
+     * Like {@link #parseTemplatesShallow(ByteBuf)}, but leaves out the templates which are already known.
+     */
+    public static List<Map.Entry<Integer, byte[]>> parseTemplatesShallow(ByteBuf bb, @Nullable KnownTemplates knownTemplates) {
         final ImmutableList.Builder<Map.Entry<Integer, byte[]>> templates = ImmutableList.builder();
         int len = bb.readUnsignedShort();
 
@@ -172,9 +235,12 @@ public class NetFlowV9Parser {
                 int fieldType = bb.readUnsignedShort();
                 int fieldLength = bb.readUnsignedShort();
             }
-            final byte[] bytes = ByteBufUtil.getBytes(bb, start, bb.readerIndex() - start);
-            final Map.Entry<Integer, byte[]> template = Maps.immutableEntry(templateId, bytes);
-            templates.add(template);
+            final int length = bb.readerIndex() - start;
+            if (knownTemplates == null || !knownTemplates.contains(templateId, false, ByteBufUtils.hash64(bb, start, length), length)) {
+                final byte[] bytes = ByteBufUtil.getBytes(bb, start, length);
+                final Map.Entry<Integer, byte[]> template = Maps.immutableEntry(templateId, bytes);
+                templates.add(template);
+            }
 
             p += 4 + fieldCount * 4;
         }
@@ -244,6 +310,14 @@ public class NetFlowV9Parser {
     }
 
     public static Map.Entry<Integer, byte[]> parseOptionTemplateShallow(ByteBuf bb) {
+        return parseOptionTemplateShallow(bb, null);
+    }
+
+    /**
+     * Like {@link #parseOptionTemplateShallow(ByteBuf)}, but returns {@code null} if the option template is already known.
+     */
+    @Nullable
+    public static Map.Entry<Integer, byte[]> parseOptionTemplateShallow(ByteBuf bb, @Nullable KnownTemplates knownTemplates) {
         final int start = bb.readerIndex();
         int length = bb.readUnsignedShort();
         final int templateId = bb.readUnsignedShort();
@@ -272,7 +346,11 @@ public class NetFlowV9Parser {
         // skip padding
         bb.readerIndex(endOfTemplate);
 
-        final byte[] bytes = ByteBufUtil.getBytes(bb, start, bb.readerIndex() - start);
+        final int templateLength = bb.readerIndex() - start;
+        if (knownTemplates != null && knownTemplates.contains(templateId, true, ByteBufUtils.hash64(bb, start, templateLength), templateLength)) {
+            return null;
+        }
+        final byte[] bytes = ByteBufUtil.getBytes(bb, start, templateLength);
         return Maps.immutableEntry(templateId, bytes);
     }
 
@@ -288,24 +366,57 @@ public class NetFlowV9Parser {
      * | padding          | Padding should be inserted to align the end of the FlowSet on a 32 bit boundary. Pay attention that the length field will include those padding bits.                                                                                                                                     |
      * </pre>
      */
-    public static List<NetFlowV9BaseRecord> parseRecords(ByteBuf bb, Map<Integer, NetFlowV9Template> cache, NetFlowV9OptionTemplate optionTemplate) {
-        List<NetFlowV9BaseRecord> records = new ArrayList<>();
+    public static List<NetFlowV9BaseRecord> parseRecords(ByteBuf bb, Map<Integer, NetFlowV9Template> cache, NetFlowV9OptionTemplate optionTemplate,
+                                                         RecordDecoding decoding, @Nullable NetFlowV9RecordDecoders decoders) {
         int flowSetId = bb.readUnsignedShort();
         int length = bb.readUnsignedShort();
         int end = bb.readerIndex() - 4 + length;
 
-        List<NetFlowV9FieldDef> defs;
+        final boolean isOptionTemplate = optionTemplate != null && optionTemplate.templateId() == flowSetId;
+        final NetFlowV9Template template = isOptionTemplate ? null : cache.get(flowSetId);
+        if (!isOptionTemplate && template == null) {
+            return Collections.emptyList();
+        }
 
-        boolean isOptionTemplate = optionTemplate != null && optionTemplate.templateId() == flowSetId;
-        if (isOptionTemplate) {
-            defs = optionTemplate.optionDefs();
-        } else {
-            NetFlowV9Template t = cache.get(flowSetId);
-            if (t == null) {
-                return Collections.emptyList();
+        if (decoding == RecordDecoding.INTERPRETED) {
+            return interpretRecords(bb, end, template, isOptionTemplate ? optionTemplate : null);
+        }
+        final NetFlowV9RecordDecoder decoder = isOptionTemplate ? decoders.decoder(optionTemplate) : decoders.decoder(template);
+        if (decoding != RecordDecoding.VERIFY) {
+            return decoder.decode(bb, end, decoding == RecordDecoding.LAZY);
+        }
+
+        final int start = bb.readerIndex();
+        final List<NetFlowV9BaseRecord> records = interpretRecords(bb, end, template, isOptionTemplate ? optionTemplate : null);
+        verify(decoder, bb, start, end, false, flowSetId, records);
+        verify(decoder, bb, start, end, true, flowSetId, records);
+        bb.readerIndex(end);
+        return records;
+    }
+
+    private static void verify(NetFlowV9RecordDecoder decoder, ByteBuf bb, int start, int end, boolean lazy, int flowSetId,
+                               List<NetFlowV9BaseRecord> records) {
+        final String name = lazy ? "Lazy" : "Compiled";
+        bb.readerIndex(start);
+        try {
+            // comparing forces lazy records to decode all of their fields
+            final List<NetFlowV9BaseRecord> decoded = decoder.decode(bb, end, lazy);
+            if (!decoded.equals(records)) {
+                LOG.warn("{} decoder of NetFlow v9 template {} decoded {} instead of {}", name, flowSetId, decoded, records);
             }
-            defs = t.definitions();
+        } catch (RuntimeException e) {
+            LOG.warn(name + " decoder of NetFlow v9 template " + flowSetId + " failed to decode " + records, e);
         }
+    }
+
+    /**
+     * Parses the records of a data flow set by interpreting the field definitions of the template for every field.
+     */
+    private static List<NetFlowV9BaseRecord> interpretRecords(ByteBuf bb, int end, @Nullable NetFlowV9Template template,
+                                                              @Nullable NetFlowV9OptionTemplate optionTemplate) {
+        List<NetFlowV9BaseRecord> records = new ArrayList<>();
+        boolean isOptionTemplate = optionTemplate != null;
+        List<NetFlowV9FieldDef> defs = isOptionTemplate ? optionTemplate.optionDefs() : template.definitions();
 
         // calculate record unit size
         int unitSize = 0;
@@ -316,9 +427,8 @@ public class NetFlowV9Parser {
         while (bb.readerIndex() < end && bb.readableBytes() >= unitSize) {
             final ImmutableMap.Builder<String, Object> fields = ImmutableMap.builder();
             for (NetFlowV9FieldDef def : defs) {
-                final String key = def.type().name().toLowerCase();
                 final Optional<Object> optValue = def.parse(bb);
-                optValue.ifPresent(value -> fields.put(key, value));
+                optValue.ifPresent(value -> fields.put(def.type().key(), value));
             }
 
             if (isOptionTemplate) {
@@ -357,7 +467,36 @@ public class NetFlowV9Parser {
     }
 
 
+    /**
+     * Checks whether the packet contains template or option template flow sets, without parsing or consuming it.
+     */
+    public static boolean containsTemplates(ByteBuf bb) {
+        final int end = bb.writerIndex();
+        int offset = bb.readerIndex() + HEADER_LENGTH;
+        while (offset + 4 <= end) {
+            final int flowSetId = bb.getUnsignedShort(offset);
+            if (flowSetId == 0 || flowSetId == 1) {
+                return true;
+            }
+            final int length = bb.getUnsignedShort(offset + 2);
+            if (length < 4) {
+                // corrupt flow set, the parser will reject the packet later on
+                return false;
+            }
+            offset += length;
+        }
+        return false;
+    }
+
     public static RawNetFlowV9Packet parsePacketShallow(ByteBuf bb) {
+        return parsePacketShallow(bb, null);
+    }
+
+    /**
+     * Like {@link #parsePacketShallow(ByteBuf)}, but only copies templates (and the option template) which are not
+     * known yet or have changed. Known templates are identified by their fingerprint, without allocating anything.
+     */
+    public static RawNetFlowV9Packet parsePacketShallow(ByteBuf bb, @Nullable KnownTemplates knownTemplates) {
         final ByteBuf buf = bb.duplicate();
 
         final int dataLength = buf.readableBytes();
@@ -370,12 +509,15 @@ public class NetFlowV9Parser {
             buf.markReaderIndex();
             int flowSetId = buf.readUnsignedShort();
             if (flowSetId == 0) {
-                final List<Map.Entry<Integer, byte[]>> templates = parseTemplatesShallow(buf);
+                final List<Map.Entry<Integer, byte[]>> templates = parseTemplatesShallow(buf, knownTemplates);
                 for (Map.Entry<Integer, byte[]> t : templates) {
                     allTemplates.put(t.getKey(), t.getValue());
                 }
             } else if (flowSetId == 1) {
-                optTemplate = parseOptionTemplateShallow(buf);
+                final Map.Entry<Integer, byte[]> optionTemplate = parseOptionTemplateShallow(buf, knownTemplates);
+                if (optionTemplate != null) {
+                    optTemplate = optionTemplate;
+                }
             } else {
                 buf.resetReaderIndex();
                 usedTemplates.add(parseRecordShallow(buf));
@@ -384,4 +526,12 @@ public class NetFlowV9Parser {
 
         return RawNetFlowV9Packet.create(header, dataLength, allTemplates, optTemplate, usedTemplates);
     }
+
+    /**
+     * The templates a caller of the shallow parser already has, identified by the 64 bit {@link ByteBufUtils#hash64 hash}
+     * and the length of the raw template bytes.
+     */
+    public interface KnownTemplates {
+        boolean contains(int templateId, boolean optionTemplate, long fingerprint, int length);
+    }
 }
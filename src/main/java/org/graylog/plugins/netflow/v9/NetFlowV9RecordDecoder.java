@@ -0,0 +1,580 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.v9;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decoder for the data records of one template, compiled from the template's field definitions.
+ *
+ * Every field is turned into a method handle which reads the field's value at its fixed offset from the start of the
+ * record and puts it into the record's field map under its precomputed key. The handles of all fields are chained into
+ * a single handle per template, so decoding a record doesn't dispatch on the value type and length of every field like
+ * {@link NetFlowV9FieldDef#parse(ByteBuf)} does. Once a template's handle is hot, the JVM compiles it into code specialized
+ * for exactly that template.
+ *
+ * The decoded records are the same as the ones of the interpreting parser, including the value types and fields which
+ * are skipped because their value type can't be decoded. This can be checked at runtime with
+ * {@link NetFlowV9Parser.RecordDecoding#VERIFY}.
+ *
+ * The decoder also keeps the key, offset and reader of every field, which {@link NetFlowV9LazyRecord lazy records} use
+ * to decode single fields on access. Numeric fields are read as primitive {@code long}s into a slot of the record's
+ * {@code long[]}, all other fields into a slot of its {@code Object[]}. Numeric values are only boxed, into the same type
+ * as the interpreting parser uses, when they are accessed as objects.
+ *
+ * Thread safe, a decoder is shared by all threads decoding records of its template.
+ */
+final class NetFlowV9RecordDecoder {
+    // (ImmutableMap.Builder fields, ByteBuf buffer, int recordIndex)void
+    private static final MethodType FIELDS_TYPE = MethodType.methodType(void.class, ImmutableMap.Builder.class, ByteBuf.class, int.class);
+    // (ByteBuf buffer, int index)Object
+    private static final MethodType READER_TYPE = MethodType.methodType(Object.class, ByteBuf.class, int.class);
+    // (ByteBuf buffer, int index)long
+    private static final MethodType NUMERIC_READER_TYPE = MethodType.methodType(long.class, ByteBuf.class, int.class);
+    // the types numeric values are boxed into
+    private static final byte OBJECT = 0;
+    private static final byte BYTE = 1;
+    private static final byte SHORT = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final MethodHandle NO_FIELDS;
+    private static final MethodHandle PUT;
+    private static final MethodHandle ADD;
+    // boxing handles by type
+    private static final MethodHandle[] BOX = new MethodHandle[LONG + 1];
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            NO_FIELDS = lookup.findStatic(NetFlowV9RecordDecoder.class, "noFields", FIELDS_TYPE);
+            PUT = lookup.findStatic(NetFlowV9RecordDecoder.class, "put",
+                    MethodType.methodType(void.class, ImmutableMap.Builder.class, String.class, Object.class));
+            ADD = lookup.findStatic(Integer.class, "sum", MethodType.methodType(int.class, int.class, int.class));
+            final MethodType boxType = MethodType.methodType(Object.class, long.class, byte.class);
+            final MethodHandle box = lookup.findStatic(NetFlowV9RecordDecoder.class, "box", boxType);
+            for (byte type = BYTE; type <= LONG; type++) {
+                BOX[type] = MethodHandles.insertArguments(box, 1, type);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandle fields;
+    // the decodable fields in the order of the template
+    private final String[] keys;
+    private final String[] messageFields;
+    private final int[] offsets;
+    // NUMERIC_READER_TYPE for numeric fields, READER_TYPE otherwise
+    private final MethodHandle[] readers;
+    private final byte[] types;
+    // index into the long[] of numeric fields or the Object[] of other fields of a lazy record
+    private final int[] slots;
+    private final int numericSlots;
+    private final int objectSlots;
+    // field indexes by key, null if keys occur more than once, records of such templates can't be decoded lazily
+    @Nullable
+    private final ImmutableMap<String, Integer> fieldIndexes;
+    // the interpreting parser only decodes records as long as this many bytes are left, even if the fields are longer
+    private final int unitSize;
+    private final int fieldsWidth;
+    @Nullable
+    private final int[] scopeTypes;
+    @Nullable
+    private final int[] scopeLengths;
+    private final int recordWidth;
+
+    private NetFlowV9RecordDecoder(MethodHandle fields, List<String> keys, List<String> messageFields, List<Integer> offsets,
+                                   List<MethodHandle> readers, List<Byte> types, int unitSize, int fieldsWidth,
+                                   @Nullable int[] scopeTypes, @Nullable int[] scopeLengths) {
+        this.fields = fields;
+        this.keys = keys.toArray(new String[0]);
+        this.messageFields = messageFields.toArray(new String[0]);
+        this.offsets = Ints.toArray(offsets);
+        this.readers = readers.toArray(new MethodHandle[0]);
+        this.types = Bytes.toArray(types);
+        this.slots = new int[this.types.length];
+        int numericSlots = 0;
+        int objectSlots = 0;
+        for (int i = 0; i < this.types.length; i++) {
+            slots[i] = this.types[i] == OBJECT ? objectSlots++ : numericSlots++;
+        }
+        this.numericSlots = numericSlots;
+        this.objectSlots = objectSlots;
+        this.fieldIndexes = fieldIndexes(this.keys);
+        this.unitSize = unitSize;
+        this.fieldsWidth = fieldsWidth;
+        this.scopeTypes = scopeTypes;
+        this.scopeLengths = scopeLengths;
+        int width = fieldsWidth;
+        if (scopeLengths != null) {
+            for (int scopeLength : scopeLengths) {
+                width += scopeLength;
+            }
+        }
+        this.recordWidth = width;
+    }
+
+    static NetFlowV9RecordDecoder compile(NetFlowV9Template template) {
+        return compile(template.definitions(), null);
+    }
+
+    static NetFlowV9RecordDecoder compile(NetFlowV9OptionTemplate optionTemplate) {
+        return compile(optionTemplate.optionDefs(), optionTemplate.scopeDefs());
+    }
+
+    private static NetFlowV9RecordDecoder compile(List<NetFlowV9FieldDef> defs, @Nullable List<NetFlowV9ScopeDef> scopeDefs) {
+        final List<MethodHandle> fieldHandles = new ArrayList<>(defs.size());
+        final List<String> keys = new ArrayList<>(defs.size());
+        final List<String> messageFields = new ArrayList<>(defs.size());
+        final List<Integer> offsets = new ArrayList<>(defs.size());
+        final List<MethodHandle> readers = new ArrayList<>(defs.size());
+        final List<Byte> types = new ArrayList<>(defs.size());
+        int unitSize = 0;
+        int offset = 0;
+        for (NetFlowV9FieldDef def : defs) {
+            unitSize += def.length();
+            final int length = def.length() != 0 ? def.length() : def.type().valueType().getDefaultLength();
+            final byte type = type(def.type().valueType(), length);
+            final MethodHandle reader = type == OBJECT ? reader(def.type().valueType(), length) : numericReader(def.type().valueType(), length);
+            if (reader == null) {
+                // not decodable, the field is skipped without reading anything
+                continue;
+            }
+
+            // (ByteBuf, int recordIndex) -> value at recordIndex + offset
+            final String key = def.type().key();
+            final MethodHandle boxedReader = type == OBJECT ? reader : MethodHandles.filterReturnValue(reader, BOX[type]);
+            final MethodHandle valueAtOffset = MethodHandles.filterArguments(boxedReader, 1, MethodHandles.insertArguments(ADD, 1, offset));
+            final MethodHandle putValue = MethodHandles.insertArguments(PUT, 1, key);
+            fieldHandles.add(MethodHandles.collectArguments(putValue, 1, valueAtOffset));
+            keys.add(key);
+            messageFields.add(def.type().messageField());
+            offsets.add(offset);
+            readers.add(reader);
+            types.add(type);
+            offset += width(def.type().valueType(), length);
+        }
+
+        // fold from the last field to the first, so the fields are put in the order of the template
+        MethodHandle handle = NO_FIELDS;
+        for (int i = fieldHandles.size() - 1; i >= 0; i--) {
+            handle = MethodHandles.foldArguments(handle, fieldHandles.get(i));
+        }
+
+        if (scopeDefs == null) {
+            return new NetFlowV9RecordDecoder(handle, keys, messageFields, offsets, readers, types, unitSize, offset, null, null);
+        }
+        final int[] scopeTypes = new int[scopeDefs.size()];
+        final int[] scopeLengths = new int[scopeDefs.size()];
+        for (int i = 0; i < scopeDefs.size(); i++) {
+            scopeTypes[i] = scopeDefs.get(i).type();
+            scopeLengths[i] = scopeDefs.get(i).length();
+        }
+        return new NetFlowV9RecordDecoder(handle, keys, messageFields, offsets, readers, types, unitSize, offset, scopeTypes, scopeLengths);
+    }
+
+    @Nullable
+    private static ImmutableMap<String, Integer> fieldIndexes(String[] keys) {
+        final Map<String, Integer> fieldIndexes = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (fieldIndexes.put(keys[i], i) != null) {
+                // the record's field map would reject the duplicate key when it is built
+                return null;
+            }
+        }
+        return ImmutableMap.copyOf(fieldIndexes);
+    }
+
+    /**
+     * Decodes the records from the reader index of the buffer up to the end of the data flow set and moves the reader
+     * index to its end.
+     *
+     * @param lazy whether to return {@link NetFlowV9LazyRecord lazy records} referencing the buffer, if the template allows
+     */
+    List<NetFlowV9BaseRecord> decode(ByteBuf bb, int end, boolean lazy) {
+        final boolean lazyRecords = lazy && scopeTypes == null && fieldIndexes != null;
+        final List<NetFlowV9BaseRecord> records = new ArrayList<>();
+        if (recordWidth == 0) {
+            // a template without any decodable fields, the interpreting parser would never get past the first record
+            bb.readerIndex(end);
+            return records;
+        }
+        final int writerIndex = bb.writerIndex();
+        int index = bb.readerIndex();
+        while (index < end && writerIndex - index >= unitSize) {
+            if (writerIndex - index < recordWidth) {
+                // the interpreting parser reads past the end of the buffer as well
+                throw new IndexOutOfBoundsException("Record of " + recordWidth + " bytes exceeds the flow set at index " + index);
+            }
+
+            if (lazyRecords) {
+                records.add(new NetFlowV9LazyRecord(this, bb, index));
+                index += recordWidth;
+                continue;
+            }
+
+            final ImmutableMap.Builder<String, Object> fieldValues = ImmutableMap.builder();
+            try {
+                fields.invokeExact((ImmutableMap.Builder) fieldValues, bb, index);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Unable to decode NetFlow v9 record", t);
+            }
+
+            if (scopeTypes == null) {
+                records.add(NetFlowV9Record.create(fieldValues.build()));
+            } else {
+                records.add(NetFlowV9OptionRecord.create(fieldValues.build(), scopes(bb, index + fieldsWidth)));
+            }
+            index += recordWidth;
+        }
+
+        bb.readerIndex(end);
+        return records;
+    }
+
+    int fieldCount() {
+        return keys.length;
+    }
+
+    String key(int field) {
+        return keys[field];
+    }
+
+    String messageField(int field) {
+        return messageFields[field];
+    }
+
+    /**
+     * @return the index of the field with the key, {@code -1} if the records don't have such a field
+     */
+    int fieldIndex(String key) {
+        final Integer field = fieldIndexes == null ? null : fieldIndexes.get(key);
+        return field == null ? -1 : field;
+    }
+
+    int numericSlots() {
+        return numericSlots;
+    }
+
+    int objectSlots() {
+        return objectSlots;
+    }
+
+    boolean isNumeric(int field) {
+        return types[field] != OBJECT;
+    }
+
+    /**
+     * @return the slot of the field in the {@code long[]} or {@code Object[]} of a record, depending on {@link #isNumeric(int)}
+     */
+    int slot(int field) {
+        return slots[field];
+    }
+
+    /**
+     * Decodes a single numeric field of the record starting at the given index.
+     */
+    long decodeNumber(int field, ByteBuf bb, int index) {
+        try {
+            return (long) readers[field].invokeExact(bb, index + offsets[field]);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to decode NetFlow v9 field " + keys[field], t);
+        }
+    }
+
+    /**
+     * Decodes a single field, which isn't numeric, of the record starting at the given index.
+     *
+     * @return the value or {@code null} if it can't be decoded
+     */
+    @Nullable
+    Object decodeObject(int field, ByteBuf bb, int index) {
+        try {
+            return (Object) readers[field].invokeExact(bb, index + offsets[field]);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to decode NetFlow v9 field " + keys[field], t);
+        }
+    }
+
+    /**
+     * @return the value of a numeric field boxed into the type the interpreting parser uses
+     */
+    Object box(int field, long value) {
+        return box(value, types[field]);
+    }
+
+    private static Object box(long value, byte type) {
+        switch (type) {
+            case BYTE:
+                return (byte) value;
+            case SHORT:
+                return (short) value;
+            case INTEGER:
+                return (int) value;
+            default:
+                return value;
+        }
+    }
+
+    private ImmutableMap<Integer, Object> scopes(ByteBuf bb, int index) {
+        final ImmutableMap.Builder<Integer, Object> scopes = ImmutableMap.builder();
+        for (int i = 0; i < scopeTypes.length; i++) {
+            long value = 0;
+            for (int j = 0; j < scopeLengths[i]; j++) {
+                value <<= 8;
+                value |= bb.getUnsignedByte(index++);
+            }
+            scopes.put(scopeTypes[i], value);
+        }
+        return scopes.build();
+    }
+
+    /**
+     * @return the type a value of the type and length is boxed into, {@link #OBJECT} if it isn't read as a number
+     */
+    private static byte type(NetFlowV9FieldType.ValueType valueType, int length) {
+        switch (valueType) {
+            case UINT8:
+            case UINT16:
+            case UINT24:
+            case UINT32:
+            case UINT64:
+                switch (length) {
+                    case 1:
+                        return SHORT;
+                    case 2:
+                    case 3:
+                        return INTEGER;
+                    case 4:
+                    case 8:
+                        return LONG;
+                    default:
+                        return OBJECT;
+                }
+            case INT8:
+                return BYTE;
+            case INT16:
+                return SHORT;
+            case INT24:
+            case INT32:
+                return INTEGER;
+            case INT64:
+                return LONG;
+            default:
+                return OBJECT;
+        }
+    }
+
+    /**
+     * @return the handle reading a numeric value of the type and length
+     */
+    private static MethodHandle numericReader(NetFlowV9FieldType.ValueType valueType, int length) {
+        switch (valueType) {
+            case INT8:
+                return findReader("int8", NUMERIC_READER_TYPE);
+            case INT16:
+                return findReader("int16", NUMERIC_READER_TYPE);
+            case INT24:
+                return findReader("int24", NUMERIC_READER_TYPE);
+            case INT32:
+                return findReader("int32", NUMERIC_READER_TYPE);
+            case INT64:
+                return findReader("int64", NUMERIC_READER_TYPE);
+            default:
+                switch (length) {
+                    case 1:
+                        return findReader("uint8", NUMERIC_READER_TYPE);
+                    case 2:
+                        return findReader("uint16", NUMERIC_READER_TYPE);
+                    case 3:
+                        return findReader("uint24", NUMERIC_READER_TYPE);
+                    case 4:
+                        return findReader("uint32", NUMERIC_READER_TYPE);
+                    default:
+                        return findReader("int64", NUMERIC_READER_TYPE);
+                }
+        }
+    }
+
+    /**
+     * @return the handle reading a value of the type and length which isn't numeric, {@code null} if the type can't be decoded
+     */
+    @Nullable
+    private static MethodHandle reader(NetFlowV9FieldType.ValueType valueType, int length) {
+        switch (valueType) {
+            case UINT8:
+            case UINT16:
+            case UINT24:
+            case UINT32:
+            case UINT64:
+                return findReader("bigInteger", length);
+            case IPV4:
+                return findReader("address", 4);
+            case IPV6:
+                return findReader("address", 16);
+            case MAC:
+                return findReader("mac");
+            case STRING:
+                return findReader("string", length);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the number of bytes the interpreting parser reads for a value of the type and length
+     */
+    private static int width(NetFlowV9FieldType.ValueType valueType, int length) {
+        switch (valueType) {
+            case UINT8:
+            case UINT16:
+            case UINT24:
+            case UINT32:
+            case UINT64:
+            case STRING:
+                return length;
+            case IPV4:
+            case IPV6:
+            case MAC:
+            case INT8:
+            case INT16:
+            case INT24:
+            case INT32:
+            case INT64:
+                return valueType.getDefaultLength();
+            default:
+                return 0;
+        }
+    }
+
+    private static MethodHandle findReader(String name) {
+        return findReader(name, READER_TYPE);
+    }
+
+    /**
+     * @return the handle of a reader which takes the length of the value as third argument, bound to the given length
+     */
+    private static MethodHandle findReader(String name, int length) {
+        return MethodHandles.insertArguments(findReader(name, READER_TYPE.appendParameterTypes(int.class)), 2, length);
+    }
+
+    private static MethodHandle findReader(String name, MethodType type) {
+        try {
+            return MethodHandles.lookup().findStatic(NetFlowV9RecordDecoder.class, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Missing NetFlow v9 field reader " + name, e);
+        }
+    }
+
+    private static void noFields(ImmutableMap.Builder<String, Object> fields, ByteBuf bb, int index) {
+    }
+
+    private static void put(ImmutableMap.Builder<String, Object> fields, String key, @Nullable Object value) {
+        if (value != null) {
+            fields.put(key, value);
+        }
+    }
+
+    // numeric values are boxed by box(long, byte), the other readers return the same types as NetFlowV9FieldDef#parse
+
+    private static long uint8(ByteBuf bb, int index) {
+        return bb.getUnsignedByte(index);
+    }
+
+    private static long uint16(ByteBuf bb, int index) {
+        return bb.getUnsignedShort(index);
+    }
+
+    private static long uint24(ByteBuf bb, int index) {
+        return bb.getUnsignedMedium(index);
+    }
+
+    private static long uint32(ByteBuf bb, int index) {
+        return bb.getUnsignedInt(index);
+    }
+
+    private static long int8(ByteBuf bb, int index) {
+        return bb.getByte(index);
+    }
+
+    private static long int16(ByteBuf bb, int index) {
+        return bb.getShort(index);
+    }
+
+    private static long int24(ByteBuf bb, int index) {
+        return bb.getMedium(index);
+    }
+
+    private static long int32(ByteBuf bb, int index) {
+        return bb.getInt(index);
+    }
+
+    private static long int64(ByteBuf bb, int index) {
+        return bb.getLong(index);
+    }
+
+    private static Object bigInteger(ByteBuf bb, int index, int length) {
+        final byte[] bytes = new byte[length];
+        bb.getBytes(index, bytes);
+        return new BigInteger(bytes);
+    }
+
+    @Nullable
+    private static Object address(ByteBuf bb, int index, int length) {
+        final byte[] bytes = new byte[length];
+        bb.getBytes(index, bytes);
+        try {
+            return InetAddress.getByAddress(bytes).getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static Object mac(ByteBuf bb, int index) {
+        return String.format(Locale.ROOT, "%02x:%02x:%02x:%02x:%02x:%02x", bb.getByte(index), bb.getByte(index + 1), bb.getByte(index + 2),
+                bb.getByte(index + 3), bb.getByte(index + 4), bb.getByte(index + 5));
+    }
+
+    private static Object string(ByteBuf bb, int index, int length) {
+        final byte[] bytes = new byte[length];
+        bb.getBytes(index, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.v9;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.function.Supplier;
+
+/**
+ * The compiled {@link NetFlowV9RecordDecoder decoders} of parsed templates, which are value objects and don't hold their
+ * decoders themselves.
+ *
+ * Templates are looked up by identity, so callers should reuse the instances of known templates. A decoder is dropped
+ * once its template isn't referenced anymore.
+ */
+public class NetFlowV9RecordDecoders {
+    // weak keys are compared by identity, hashing the definitions of a template for every flow set would be wasteful
+    private final Cache<Object, NetFlowV9RecordDecoder> decoders = CacheBuilder.newBuilder().weakKeys().build();
+
+    NetFlowV9RecordDecoder decoder(NetFlowV9Template template) {
+        return get(template, () -> NetFlowV9RecordDecoder.compile(template));
+    }
+
+    NetFlowV9RecordDecoder decoder(NetFlowV9OptionTemplate optionTemplate) {
+        return get(optionTemplate, () -> NetFlowV9RecordDecoder.compile(optionTemplate));
+    }
+
+    private NetFlowV9RecordDecoder get(Object template, Supplier<NetFlowV9RecordDecoder> compiler) {
+        final NetFlowV9RecordDecoder cached = decoders.getIfPresent(template);
+        if (cached != null) {
+            return cached;
+        }
+        // threads racing for the decoder compile it twice, either decoder can be used
+        final NetFlowV9RecordDecoder decoder = compiler.get();
+        decoders.put(template, decoder);
+        return decoder;
+    }
+}
@@ -41,5 +41,4 @@ public abstract class NetFlowV9Template {
                                            @JsonProperty("definitions") List<NetFlowV9FieldDef> definitions) {
         return new AutoValue_NetFlowV9Template(templateId, fieldCount, ImmutableList.copyOf(definitions));
     }
-
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import net.jpountz.lz4.LZ4Factory;
+import org.graylog.plugins.netflow.flows.FlowException;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class JournalCompressionTest {
+    private final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+
+    @Test
+    public void compressedEntriesDecompressToTheEntry() {
+        final byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 16);
+        }
+
+        final ByteBuf compressed = JournalCompression.compress(PooledByteBufAllocator.DEFAULT, Unpooled.wrappedBuffer(bytes));
+        try {
+            assertThat(compressed.readableBytes()).isLessThan(bytes.length / 4);
+            assertThat(compressed.readByte()).isEqualTo(NetFlowCodec.LZ4_MARKER);
+            assertThat(ByteBufUtil.getBytes(JournalCompression.decompress(compressed))).isEqualTo(bytes);
+        } finally {
+            compressed.release();
+        }
+    }
+
+    @Test
+    public void smallAndIncompressibleEntriesAreKept() {
+        final ByteBuf small = Unpooled.wrappedBuffer(new byte[JournalCompression.MIN_COMPRESSED_LENGTH - 1]);
+        assertThat(JournalCompression.compress(PooledByteBufAllocator.DEFAULT, small)).isSameAs(small);
+        assertThat(small.refCnt()).isEqualTo(1);
+
+        final byte[] random = new byte[4096];
+        new Random(42).nextBytes(random);
+        final ByteBuf incompressible = Unpooled.wrappedBuffer(random);
+        assertThat(JournalCompression.compress(PooledByteBufAllocator.DEFAULT, incompressible)).isSameAs(incompressible);
+        assertThat(incompressible.refCnt()).isEqualTo(1);
+    }
+
+    @Test
+    public void corruptEntriesAreRejected() {
+        final ByteBuf corrupt = Unpooled.buffer().writeInt(4096).writeBytes(new byte[]{(byte) 0xff, 1, 2, 3});
+        assertThatExceptionOfType(FlowException.class).isThrownBy(() -> JournalCompression.decompress(corrupt));
+
+        final ByteBuf tooLarge = Unpooled.buffer().writeInt(Integer.MAX_VALUE).writeBytes(new byte[8]);
+        assertThatExceptionOfType(FlowException.class).isThrownBy(() -> JournalCompression.decompress(tooLarge));
+    }
+
+    @Test
+    public void codecDecodesCompressedEntries() throws Exception {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1);
+        final NetFlowCodec codec = new NetFlowCodec(Configuration.EMPTY_CONFIGURATION, aggregator);
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        aggregator.addChunk(Unpooled.wrappedBuffer(templates), exporter).getMessage().release();
+        final ByteBuf entry = aggregator.addChunk(Unpooled.wrappedBuffer(data), exporter).getMessage();
+        final byte[] uncompressed = ByteBufUtil.getBytes(entry);
+        entry.release();
+
+        // compress unconditionally, the entry is too small to be compressed by the aggregator
+        final byte[] block = LZ4Factory.fastestInstance().fastCompressor().compress(uncompressed);
+        final byte[] compressed = ByteBuffer.allocate(1 + Integer.BYTES + block.length)
+                .put(NetFlowCodec.LZ4_MARKER)
+                .putInt(uncompressed.length)
+                .put(block)
+                .array();
+
+        final Collection<Message> expected = codec.decodeMessages(new RawMessage(uncompressed, exporter));
+        final Collection<Message> messages = codec.decodeMessages(new RawMessage(compressed, exporter));
+        assertThat(expected).hasSize(1);
+        assertThat(messages).hasSize(1);
+        final Message message = messages.iterator().next();
+        final Message expectedMessage = expected.iterator().next();
+        // the ids are random
+        assertThat(message.getFieldNames()).isEqualTo(expectedMessage.getFieldNames());
+        for (String field : expectedMessage.getFieldNames()) {
+            if (!Message.FIELD_ID.equals(field)) {
+                assertThat(message.getField(field)).isEqualTo(expectedMessage.getField(field));
+            }
+        }
+    }
+
+    @Test
+    public void aggregatorCompressesEntries() throws Exception {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1);
+        aggregator.setJournalCompression(true);
+        final byte[] packet = new byte[1024];
+        // NetFlow v5 header followed by zeros, which compress very well
+        packet[1] = 5;
+
+        final ByteBuf message = aggregator.addChunk(Unpooled.wrappedBuffer(packet), exporter).getMessage();
+        try {
+            assertThat(message.readByte()).isEqualTo(NetFlowCodec.LZ4_MARKER);
+            final ByteBuf entry = JournalCompression.decompress(message);
+            assertThat(entry.readByte()).isEqualTo(NetFlowCodec.PASSTHROUGH_MARKER);
+            assertThat(ByteBufUtil.getBytes(entry)).isEqualTo(packet);
+        } finally {
+            message.release();
+        }
+    }
+}
@@ -2,9 +2,14 @@ package org.graylog.plugins.netflow.codecs;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import org.graylog.plugins.netflow.flows.FlowException;
 import org.graylog2.plugin.Message;
 import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.journal.RawMessage;
 import org.junit.Before;
 import org.junit.Rule;
@@ -126,4 +131,41 @@ public class NetFlowCodecTest {
 
         assertThat(codec.decodeMessages(new RawMessage(b, source))).isNull();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void aggregatorReleasesBufferedPacketsOnceTemplatesArrive() throws Exception {
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final InetAddress exporter = InetAddress.getByName("10.0.0.1");
+
+        // every datagram comes with its own, equal address instance
+        assertThat(codecAggregator.addChunk(Unpooled.wrappedBuffer(data), new InetSocketAddress(exporter, 2055)).getMessage()).isNull();
+        assertThat(codecAggregator.bufferedPacketCount(exporter)).isEqualTo(1);
+
+        final CodecAggregator.Result result = codecAggregator.addChunk(Unpooled.wrappedBuffer(templates), new InetSocketAddress(exporter, 2055));
+        assertThat(result.getMessage()).isNotNull();
+        assertThat(codecAggregator.bufferedPacketCount(exporter)).isEqualTo(0);
+    }
+
+    @Test
+    public void passthroughEntryReferencesTheDatagramUntilReleased() throws Exception {
+        final byte[] bytes = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v5-1.dat"));
+        final ByteBuf datagram = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+        final InetSocketAddress source = new InetSocketAddress(InetAddress.getLocalHost(), 12345);
+
+        final CodecAggregator.Result result = codecAggregator.addChunk(datagram, source);
+        // the transport releases the datagram right after aggregating it, the entry keeps its bytes alive
+        datagram.release();
+        final ByteBuf entry = result.getMessage();
+        assertThat(entry).isInstanceOf(CompositeByteBuf.class);
+        assertThat(datagram.refCnt()).isEqualTo(1);
+
+        final Collection<Message> messages = codec.decodeMessages(new RawMessage(ByteBufUtil.getBytes(entry), source));
+        assertThat(messages)
+                .isNotEmpty()
+                .allSatisfy(message -> assertThat(message.getField("nf_version")).isEqualTo(5));
+
+        entry.release();
+        assertThat(datagram.refCnt()).isEqualTo(0);
+    }
+}
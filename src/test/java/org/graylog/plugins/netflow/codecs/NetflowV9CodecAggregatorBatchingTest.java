@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.pkts.Pcap;
+import io.pkts.packet.UDPPacket;
+import io.pkts.protocol.Protocol;
+import org.graylog.plugins.netflow.v9.NetFlowV9Packet;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetflowV9CodecAggregatorBatchingTest {
+    private final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+    private byte[] dataPacket;
+    private byte[] templatePacket;
+    private NetflowV9CodecAggregator aggregator;
+    private NetFlowCodec codec;
+
+    @Before
+    public void setUp() throws Exception {
+        // data flow set of template 257 without the template
+        dataPacket = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        templatePacket = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        aggregator = new NetflowV9CodecAggregator(1);
+        codec = new NetFlowCodec(Configuration.EMPTY_CONFIGURATION, aggregator);
+    }
+
+    @Test
+    public void packetsOfAnExporterAreCoalescedUntilTheBatchIsFlushed() throws Exception {
+        aggregator.setBatching(1, TimeUnit.MINUTES, NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES);
+
+        assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter)).isSameAs(NetflowV9CodecAggregator.BATCHED);
+        for (int i = 0; i < 3; i++) {
+            assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(dataPacket), exporter)).isSameAs(NetflowV9CodecAggregator.BATCHED);
+        }
+        // the window hasn't passed yet
+        assertThat(aggregator.flushBatches(false)).isEmpty();
+
+        final List<NetflowV9CodecAggregator.CompletedBatch> batches = aggregator.flushBatches(true);
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0).getExporter()).isEqualTo(exporter);
+        final List<NetFlowV9Packet> packets = decode(batches.get(0).getEntry());
+        assertThat(packets).hasSize(4);
+        assertThat(packets.subList(1, 4)).allSatisfy(packet -> assertThat(packet.records()).hasSize(1));
+        assertThat(aggregator.flushBatches(true)).isEmpty();
+    }
+
+    @Test
+    public void fullBatchIsCompletedRightAway() throws Exception {
+        aggregator.setBatching(1, TimeUnit.MINUTES, templatePacket.length + dataPacket.length);
+
+        assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter)).isSameAs(NetflowV9CodecAggregator.BATCHED);
+        final CodecAggregator.Result result = aggregator.addChunk(Unpooled.wrappedBuffer(dataPacket), exporter);
+
+        assertThat(result.getMessage()).isNotNull();
+        assertThat(decode(result.getMessage())).hasSize(2);
+        assertThat(aggregator.flushBatches(true)).isEmpty();
+    }
+
+    @Test
+    public void batchesAreFlushedOnceTheWindowHasPassed() throws Exception {
+        aggregator.setBatching(1, TimeUnit.NANOSECONDS, NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES);
+        aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter);
+        Thread.sleep(1);
+
+        final List<NetflowV9CodecAggregator.CompletedBatch> batches = aggregator.flushBatches(false);
+        assertThat(batches).hasSize(1);
+        batches.get(0).getEntry().release();
+    }
+
+    @Test
+    public void batchesOfManyExportersAreFlushedInTheOrderTheyWereStarted() throws Exception {
+        aggregator.setBatching(1, TimeUnit.MINUTES, NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES);
+        final List<InetSocketAddress> exporters = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            exporters.add(new InetSocketAddress("10.0.1." + i, 2055));
+        }
+        for (InetSocketAddress exporter : exporters) {
+            assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter)).isSameAs(NetflowV9CodecAggregator.BATCHED);
+        }
+        for (InetSocketAddress exporter : exporters) {
+            assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(dataPacket), exporter)).isSameAs(NetflowV9CodecAggregator.BATCHED);
+        }
+
+        final List<NetflowV9CodecAggregator.CompletedBatch> batches = aggregator.flushBatches(true);
+        assertThat(batches).extracting(NetflowV9CodecAggregator.CompletedBatch::getExporter).containsExactlyElementsOf(exporters);
+        for (NetflowV9CodecAggregator.CompletedBatch batch : batches) {
+            assertThat(decode(batch.getEntry())).hasSize(2);
+        }
+        assertThat(aggregator.flushBatches(true)).isEmpty();
+    }
+
+    @Test
+    public void bufferedPacketsAreJournaledWithTheirTemplates() throws Exception {
+        assertThat(aggregator.addChunk(Unpooled.wrappedBuffer(dataPacket), exporter).getMessage()).isNull();
+
+        // the template packet itself doesn't use template 257, the released data packet does
+        final CodecAggregator.Result result = aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter);
+        final List<NetFlowV9Packet> packets = decode(result.getMessage());
+        assertThat(packets).hasSize(2);
+        assertThat(packets).anySatisfy(packet -> assertThat(packet.records()).hasSize(1));
+    }
+
+    @Test
+    public void batchingDecodesTheSameRecords() throws Exception {
+        final List<NetFlowV9Packet> expected = decodePcap("netflow-data/nprobe-netflow9.pcap", new NetflowV9CodecAggregator(1));
+
+        aggregator.setBatching(1, TimeUnit.MINUTES, NetflowV9CodecAggregator.DEFAULT_MAX_BATCH_BYTES);
+        final List<NetFlowV9Packet> batched = decodePcap("netflow-data/nprobe-netflow9.pcap", aggregator);
+
+        assertThat(count(batched)).isEqualTo(count(expected));
+    }
+
+    private List<NetFlowV9Packet> decodePcap(String resourceName, NetflowV9CodecAggregator aggregator) throws Exception {
+        final List<ByteBuf> entries = new ArrayList<>();
+        try (InputStream inputStream = Resources.getResource(resourceName).openStream()) {
+            Pcap.openStream(inputStream).loop(packet -> {
+                if (packet.hasProtocol(Protocol.UDP)) {
+                    final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+                    final InetSocketAddress source = new InetSocketAddress(udp.getSourceIP(), udp.getSourcePort());
+                    final ByteBuf message = aggregator.addChunk(Unpooled.copiedBuffer(udp.getPayload().getArray()), source).getMessage();
+                    if (message != null && message.getByte(0) != NetFlowCodec.PASSTHROUGH_MARKER) {
+                        entries.add(message);
+                    }
+                }
+                return true;
+            });
+        }
+        for (NetflowV9CodecAggregator.CompletedBatch batch : aggregator.flushBatches(true)) {
+            entries.add(batch.getEntry());
+        }
+
+        final List<NetFlowV9Packet> packets = new ArrayList<>();
+        for (ByteBuf entry : entries) {
+            packets.addAll(decode(entry));
+        }
+        return packets;
+    }
+
+    private List<NetFlowV9Packet> decode(ByteBuf entry) throws Exception {
+        try {
+            assertThat(entry.readByte()).isEqualTo(NetFlowCodec.ORDERED_V9_MARKER);
+            return codec.decodeV9Packets(entry);
+        } finally {
+            entry.release();
+        }
+    }
+
+    private static int count(List<NetFlowV9Packet> packets) {
+        int records = 0;
+        for (NetFlowV9Packet packet : packets) {
+            records += packet.records().size();
+        }
+        return records;
+    }
+}
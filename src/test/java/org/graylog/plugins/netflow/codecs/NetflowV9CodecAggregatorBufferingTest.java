@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.google.common.io.Resources;
+import com.google.common.primitives.Bytes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetflowV9CodecAggregatorBufferingTest {
+    private byte[] dataPacket;
+    private byte[] templatePacket;
+    private InetAddress exporterA;
+    private InetAddress exporterB;
+    private int sequence = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        // data flow set of template 257 without the template
+        dataPacket = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        templatePacket = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        exporterA = InetAddress.getByName("10.0.0.1");
+        exporterB = InetAddress.getByName("10.0.0.2");
+    }
+
+    @Test
+    public void largestExporterIsEvictedWhenBudgetIsExhausted() {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 4 * dataPacket.length, 4 * dataPacket.length, TimeUnit.MINUTES.toNanos(1));
+
+        for (int i = 0; i < 4; i++) {
+            addChunk(aggregator, dataPacket, exporterA);
+        }
+        addChunk(aggregator, dataPacket, exporterB);
+
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(3);
+        assertThat(aggregator.bufferedPacketCount(exporterB)).isEqualTo(1);
+        assertThat(evictions(aggregator, "budget")).isEqualTo(1L);
+        assertThat(gauge(aggregator, "bufferedPackets")).isEqualTo(4L);
+        assertThat(gauge(aggregator, "bufferedBytes")).isEqualTo(4L * dataPacket.length);
+    }
+
+    @Test
+    public void budgetIsSharedFairlyAcrossShards() throws Exception {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(8, 4 * dataPacket.length, 4 * dataPacket.length, TimeUnit.MINUTES.toNanos(1));
+        final InetAddress[] others = {exporterB, InetAddress.getByName("10.0.0.3"), InetAddress.getByName("10.0.0.4")};
+
+        // a single exporter may use the whole budget, it isn't divided by the number of shards
+        for (int i = 0; i < 4; i++) {
+            addChunk(aggregator, dataPacket, exporterA);
+        }
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(4);
+
+        for (InetAddress other : others) {
+            addChunk(aggregator, dataPacket, other);
+        }
+
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(1);
+        for (InetAddress other : others) {
+            assertThat(aggregator.bufferedPacketCount(other)).isEqualTo(1);
+        }
+        assertThat(evictions(aggregator, "budget")).isEqualTo(3L);
+        assertThat(gauge(aggregator, "bufferedBytes")).isEqualTo(4L * dataPacket.length);
+    }
+
+    @Test
+    public void exporterCannotBufferMoreThanItsLimit() {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 10 * dataPacket.length, 2 * dataPacket.length, TimeUnit.MINUTES.toNanos(1));
+
+        for (int i = 0; i < 3; i++) {
+            addChunk(aggregator, dataPacket, exporterA);
+        }
+
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(2);
+        assertThat(evictions(aggregator, "exporter_limit")).isEqualTo(1L);
+        assertThat(evictions(aggregator, "budget")).isEqualTo(0L);
+    }
+
+    @Test
+    public void expiredPacketsAreNotReleased() {
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 10 * dataPacket.length, 10 * dataPacket.length, 0L);
+
+        addChunk(aggregator, dataPacket, exporterA);
+        addChunk(aggregator, templatePacket, exporterA);
+
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(0);
+        assertThat(evictions(aggregator, "expired")).isEqualTo(1L);
+    }
+
+    @Test
+    public void releasedPacketsAreNotOverwrittenByBufferedPacket() {
+        final byte[] first = packet(new int[0], 256);
+        final byte[] second = packet(new int[0], 256);
+        final byte[] waiting = packet(new int[0], 258);
+        // the template of the buffered packets and data of another unknown template, which has to be buffered as well
+        final byte[] current = packet(new int[]{256}, 257);
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 1024, first.length + second.length + waiting.length, TimeUnit.MINUTES.toNanos(1));
+
+        addChunk(aggregator, first, exporterA);
+        addChunk(aggregator, second, exporterA);
+        addChunk(aggregator, waiting, exporterA);
+        // the released packets free the start of the ring, which is where the current packet is buffered
+        final ByteBuf message = addChunk(aggregator, current, exporterA).getMessage();
+
+        assertThat(message).isNotNull();
+        final byte[] entry = ByteBufUtil.getBytes(message);
+        message.release();
+        assertThat(Bytes.indexOf(entry, first)).isNotNegative();
+        assertThat(Bytes.indexOf(entry, second)).isGreaterThan(Bytes.indexOf(entry, first));
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(2);
+    }
+
+    @Test
+    public void packetsWaitingForSeveralTemplatesAreReleasedIntactInArrivalOrder() {
+        final byte[] first = packet(new int[0], 256, 257);
+        final byte[] second = packet(new int[0], 256);
+        final byte[] waiting = packet(new int[0], 258);
+        final byte[] current = packet(new int[]{257, 256}, 259);
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 1024, first.length + second.length + waiting.length, TimeUnit.MINUTES.toNanos(1));
+
+        addChunk(aggregator, first, exporterA);
+        addChunk(aggregator, second, exporterA);
+        addChunk(aggregator, waiting, exporterA);
+        final ByteBuf message = addChunk(aggregator, current, exporterA).getMessage();
+
+        assertThat(message).isNotNull();
+        final byte[] entry = ByteBufUtil.getBytes(message);
+        message.release();
+        // the first packet is waiting in the queues of both templates, but is only released once
+        assertThat(Bytes.indexOf(entry, first)).isNotNegative();
+        assertThat(Bytes.indexOf(entry, second)).isGreaterThan(Bytes.indexOf(entry, first));
+        assertThat(Bytes.indexOf(entry, waiting)).isNegative();
+        assertThat(aggregator.bufferedPacketCount(exporterA)).isEqualTo(2);
+    }
+
+    private static CodecAggregator.Result addChunk(NetflowV9CodecAggregator aggregator, byte[] packet, InetAddress exporter) {
+        return aggregator.addChunk(Unpooled.wrappedBuffer(packet), new InetSocketAddress(exporter, 2055));
+    }
+
+    /**
+     * Builds a NetFlow v9 packet with a template flow set of the given templates, followed by a data flow set for each of
+     * the data templates. Every template has a single IPv4 source address field and the records carry distinct addresses.
+     */
+    private byte[] packet(int[] templateIds, int... dataTemplateIds) {
+        final ByteBuf buf = Unpooled.buffer();
+        buf.writeShort(9);
+        buf.writeShort(templateIds.length + dataTemplateIds.length);
+        buf.writeInt(0);
+        buf.writeInt(0);
+        buf.writeInt(++sequence);
+        buf.writeInt(0);
+        if (templateIds.length > 0) {
+            buf.writeShort(0);
+            buf.writeShort(4 + 8 * templateIds.length);
+            for (int templateId : templateIds) {
+                buf.writeShort(templateId);
+                buf.writeShort(1);
+                // IPV4_SRC_ADDR
+                buf.writeShort(8);
+                buf.writeShort(4);
+            }
+        }
+        for (int templateId : dataTemplateIds) {
+            buf.writeShort(templateId);
+            buf.writeShort(8);
+            buf.writeInt(0x0a000000 + sequence);
+        }
+        return ByteBufUtil.getBytes(buf);
+    }
+
+    private static long evictions(NetflowV9CodecAggregator aggregator, String reason) {
+        final Map<String, Metric> metrics = aggregator.getMetricSet().getMetrics();
+        return ((Meter) metrics.get("bufferEvictions." + reason)).getCount();
+    }
+
+    private static Object gauge(NetflowV9CodecAggregator aggregator, String name) {
+        return ((Gauge<?>) aggregator.getMetricSet().getMetrics().get(name)).getValue();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.codahale.metrics.Meter;
+import com.google.common.io.Resources;
+import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.utils.ByteBufUtils;
+import org.graylog.plugins.netflow.v9.NetFlowV9Parser;
+import org.graylog.plugins.netflow.v9.RawNetFlowV9Packet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetflowV9CodecAggregatorTemplateChangeTest {
+    // templates 257 (at offset 24) and 258 (at offset 100), an option template and a data flow set of template 259
+    private byte[] templatePacket;
+    private final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+    private final List<String> changes = new ArrayList<>();
+    private NetflowV9CodecAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        templatePacket = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        aggregator = new NetflowV9CodecAggregator(1);
+        aggregator.addTemplateChangeListener((SocketAddress address, long sourceId, int templateId, long previousFingerprint, long fingerprint, int version) -> {
+            assertThat(previousFingerprint).isNotEqualTo(fingerprint);
+            changes.add(address + "/" + sourceId + "/" + templateId + "/v" + version);
+        });
+    }
+
+    @Test
+    public void resentTemplatesAreNotChanges() {
+        for (int i = 0; i < 3; i++) {
+            aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter);
+        }
+
+        assertThat(changes).isEmpty();
+        assertThat(((Meter) aggregator.getMetricSet().getMetrics().get("templateChanges")).getCount()).isZero();
+    }
+
+    @Test
+    public void redefinedTemplateIsReportedWithNewVersion() {
+        aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter);
+
+        // change the type of the first field of template 257
+        final byte[] redefined = templatePacket.clone();
+        redefined[29] ^= 1;
+        aggregator.addChunk(Unpooled.wrappedBuffer(redefined), exporter);
+        aggregator.addChunk(Unpooled.wrappedBuffer(redefined), exporter);
+        aggregator.addChunk(Unpooled.wrappedBuffer(templatePacket), exporter);
+
+        assertThat(changes).containsExactly(exporter + "/106/257/v2", exporter + "/106/257/v3");
+        assertThat(((Meter) aggregator.getMetricSet().getMetrics().get("templateChanges")).getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shallowParserSkipsKnownTemplates() {
+        final long fingerprint = ByteBufUtils.hash64(Unpooled.wrappedBuffer(templatePacket), 24, 76);
+        final RawNetFlowV9Packet packet = NetFlowV9Parser.parsePacketShallow(Unpooled.wrappedBuffer(templatePacket),
+                (templateId, optionTemplate, templateFingerprint, length) -> templateId == 257 && !optionTemplate && templateFingerprint == fingerprint && length == 76);
+
+        assertThat(packet.templates()).containsOnlyKeys(258);
+        assertThat(packet.optionTemplate()).isNotNull();
+        assertThat(packet.usedTemplates()).containsExactly(259);
+    }
+}
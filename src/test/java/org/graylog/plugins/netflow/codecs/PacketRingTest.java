@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PacketRingTest {
+    private final PacketRing ring = new PacketRing(PooledByteBufAllocator.DEFAULT, 100);
+
+    @After
+    public void tearDown() {
+        ring.release();
+    }
+
+    @Test
+    public void rejectsPacketsWhenFull() {
+        assertThat(ring.add(packet(60, 1), ImmutableSet.of(1))).isTrue();
+        assertThat(ring.add(packet(40, 2), ImmutableSet.of(2))).isTrue();
+        assertThat(ring.add(packet(1, 3), ImmutableSet.of(3))).isFalse();
+
+        assertThat(ring.size()).isEqualTo(2);
+        assertThat(ring.bytes()).isEqualTo(100L);
+        assertThat(ring.capacity()).isEqualTo(100);
+    }
+
+    @Test
+    public void packetsWrapAroundTheEndOfTheRing() {
+        ring.add(packet(60, 1), ImmutableSet.of(1));
+        ring.add(packet(30, 2), ImmutableSet.of(2));
+        assertThat(ring.removeOldest()).isEqualTo(60);
+
+        // starts at index 90 and continues at the start of the ring
+        final byte[] wrapping = ByteBufUtil.getBytes(packet(50, 3));
+        assertThat(ring.add(Unpooled.wrappedBuffer(wrapping), ImmutableSet.of(3))).isTrue();
+
+        final List<byte[]> removed = removeAll(ImmutableSet.of(2, 3));
+        assertThat(removed).hasSize(2);
+        assertThat(removed.get(0)).isEqualTo(ByteBufUtil.getBytes(packet(30, 2)));
+        assertThat(removed.get(1)).isEqualTo(wrapping);
+        assertThat(ring.isEmpty()).isTrue();
+        assertThat(ring.bytes()).isZero();
+    }
+
+    @Test
+    public void packetsCanBeRemovedOutOfOrder() {
+        ring.add(packet(10, 1), ImmutableSet.of(1));
+        ring.add(packet(20, 2), ImmutableSet.of(2));
+        ring.add(packet(30, 1), ImmutableSet.of(1, 3));
+
+        final List<byte[]> removed = removeAll(ImmutableSet.of(2));
+        assertThat(removed).containsExactly(ByteBufUtil.getBytes(packet(20, 2)));
+        assertThat(ring.size()).isEqualTo(2);
+        assertThat(ring.bytes()).isEqualTo(40L);
+
+        // the hole is only reused once the packets before it are gone
+        assertThat(ring.add(packet(50, 4), ImmutableSet.of(4))).isFalse();
+        ring.removeOldest();
+        assertThat(ring.add(packet(50, 4), ImmutableSet.of(4))).isTrue();
+        assertThat(removeAll(ImmutableSet.of(1, 3, 4))).hasSize(2);
+    }
+
+    @Test
+    public void growsAndKeepsPacketsWhileGrowing() {
+        final PacketRing large = new PacketRing(PooledByteBufAllocator.DEFAULT, 64 * 1024);
+        try {
+            final List<byte[]> added = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final byte[] bytes = ByteBufUtil.getBytes(packet(1000, i));
+                added.add(bytes);
+                assertThat(large.add(Unpooled.wrappedBuffer(bytes), ImmutableSet.of(i))).isTrue();
+                if (i % 3 == 0) {
+                    large.removeOldest();
+                    added.remove(0);
+                }
+            }
+            assertThat(large.capacity()).isGreaterThan(8 * 1024).isLessThanOrEqualTo(64 * 1024);
+
+            final List<byte[]> removed = new ArrayList<>();
+            large.removeIf(usedTemplates -> true, buf -> {
+                removed.add(ByteBufUtil.getBytes(buf));
+                buf.release();
+            });
+            assertThat(removed).containsExactlyElementsOf(added);
+        } finally {
+            large.release();
+        }
+    }
+
+    @Test
+    public void removedPacketsOutliveTheRing() {
+        ring.add(packet(10, 7), ImmutableSet.of(7));
+        final List<ByteBuf> removed = new ArrayList<>();
+        ring.removeIf(usedTemplates -> true, removed::add);
+        ring.release();
+
+        assertThat(ByteBufUtil.getBytes(removed.get(0))).isEqualTo(ByteBufUtil.getBytes(packet(10, 7)));
+        assertThat(removed.get(0).release()).isTrue();
+    }
+
+    @Test
+    public void arrivingTemplatesOnlyReleasePacketsWaitingForThem() {
+        final Set<Integer> knownTemplates = new HashSet<>();
+        ring.add(packet(10, 1), ImmutableSet.of(1, 2), ImmutableList.of(1, 2));
+        ring.add(packet(10, 2), ImmutableSet.of(2), ImmutableList.of(2));
+        // template 3 was known when the packet was buffered
+        ring.add(packet(10, 3), ImmutableSet.of(3, 4), ImmutableList.of(4));
+        knownTemplates.add(3);
+
+        knownTemplates.add(2);
+        List<byte[]> removed = removeSatisfied(ImmutableList.of(2), knownTemplates);
+        assertThat(removed).containsExactly(ByteBufUtil.getBytes(packet(10, 2)));
+
+        knownTemplates.add(1);
+        knownTemplates.add(4);
+        // released in the order the packets have been added
+        removed = removeSatisfied(ImmutableList.of(4, 1), knownTemplates);
+        assertThat(removed).containsExactly(ByteBufUtil.getBytes(packet(10, 1)), ByteBufUtil.getBytes(packet(10, 3)));
+        assertThat(ring.isEmpty()).isTrue();
+        assertThat(ring.bytes()).isZero();
+    }
+
+    @Test
+    public void packetsWaitForTemplatesEvictedSinceTheyWereAdded() {
+        final Set<Integer> knownTemplates = new HashSet<>();
+        ring.add(packet(10, 1), ImmutableSet.of(1, 2), ImmutableList.of(2));
+
+        // template 1 has been evicted in the meantime
+        knownTemplates.add(2);
+        assertThat(removeSatisfied(ImmutableList.of(2), knownTemplates)).isEmpty();
+        assertThat(ring.size()).isEqualTo(1);
+
+        knownTemplates.add(1);
+        assertThat(removeSatisfied(ImmutableList.of(1), knownTemplates)).hasSize(1);
+        assertThat(ring.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void evictedPacketsAreNotReleased() {
+        final PacketRing large = new PacketRing(PooledByteBufAllocator.DEFAULT, 64 * 1024);
+        try {
+            // enough evicted packets to compact the index
+            for (int i = 0; i < 200; i++) {
+                large.add(packet(10, i), ImmutableSet.of(i % 2), ImmutableList.of(i % 2));
+            }
+            for (int i = 0; i < 150; i++) {
+                large.removeOldest();
+            }
+
+            final List<byte[]> removed = new ArrayList<>();
+            large.removeSatisfied(ImmutableList.of(0, 1), templateId -> true, (buf, usedTemplates) -> {
+                removed.add(ByteBufUtil.getBytes(buf));
+                buf.release();
+            });
+            assertThat(removed).hasSize(50);
+            assertThat(removed.get(0)).isEqualTo(ByteBufUtil.getBytes(packet(10, 150)));
+            assertThat(large.isEmpty()).isTrue();
+        } finally {
+            large.release();
+        }
+    }
+
+    private List<byte[]> removeSatisfied(List<Integer> arrivedTemplates, Set<Integer> knownTemplates) {
+        final List<byte[]> removed = new ArrayList<>();
+        ring.removeSatisfied(arrivedTemplates, knownTemplates::contains, (buf, usedTemplates) -> {
+            removed.add(ByteBufUtil.getBytes(buf));
+            buf.release();
+        });
+        return removed;
+    }
+
+    private List<byte[]> removeAll(Set<Integer> availableTemplates) {
+        final List<byte[]> removed = new ArrayList<>();
+        ring.removeIf(availableTemplates::containsAll, buf -> {
+            removed.add(ByteBufUtil.getBytes(buf));
+            buf.release();
+        });
+        return removed;
+    }
+
+    private static ByteBuf packet(int length, int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed * 31 + i);
+        }
+        return Unpooled.wrappedBuffer(bytes);
+    }
+}
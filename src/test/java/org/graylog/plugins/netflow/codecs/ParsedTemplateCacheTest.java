@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.v9.NetFlowV9FieldDef;
+import org.graylog.plugins.netflow.v9.NetFlowV9Packet;
+import org.graylog.plugins.netflow.v9.NetFlowV9Template;
+import org.graylog2.plugin.configuration.Configuration;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ParsedTemplateCacheTest {
+    private final ParsedTemplateCache cache = new ParsedTemplateCache(100);
+
+    @Test
+    public void templatesAreParsedOncePerFingerprintAndDefinitions() {
+        final AtomicInteger parsed = new AtomicInteger();
+        final NetFlowV9Template template = NetFlowV9Template.create(256, 0, ImmutableList.<NetFlowV9FieldDef>of());
+
+        assertThat(cache.template("", 42L, () -> count(parsed, template))).isSameAs(template);
+        assertThat(cache.template("", 42L, () -> count(parsed, template))).isSameAs(template);
+        assertThat(parsed).hasValue(1);
+
+        // other fingerprints and other field definitions are separate entries
+        cache.template("", 43L, () -> count(parsed, template));
+        cache.template("/etc/graylog/netflow9.yml@1", 42L, () -> count(parsed, template));
+        assertThat(parsed).hasValue(3);
+        assertThat(cache.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void codecsShareParsedTemplates() throws Exception {
+        final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1);
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        aggregator.addChunk(Unpooled.wrappedBuffer(templates), exporter).getMessage().release();
+        final ByteBuf entry = aggregator.addChunk(Unpooled.wrappedBuffer(data), exporter).getMessage();
+
+        try {
+            final List<NetFlowV9Packet> first = decode(entry.duplicate());
+            final long cachedTemplates = cache.size();
+            assertThat(cachedTemplates).isGreaterThan(0);
+
+            final List<NetFlowV9Packet> second = decode(entry.duplicate());
+            assertThat(cache.size()).isEqualTo(cachedTemplates);
+            assertThat(second).hasSize(1);
+            assertThat(second.get(0).records()).isEqualTo(first.get(0).records());
+        } finally {
+            entry.release();
+        }
+    }
+
+    private List<NetFlowV9Packet> decode(ByteBuf entry) throws Exception {
+        // every message is decoded by its own codec instance
+        final NetFlowCodec codec = new NetFlowCodec(Configuration.EMPTY_CONFIGURATION, new NetflowV9CodecAggregator(1), null, cache);
+        assertThat(entry.readByte()).isEqualTo(NetFlowCodec.ORDERED_V9_MARKER);
+        return codec.decodeV9Packets(entry);
+    }
+
+    private static NetFlowV9Template count(AtomicInteger parsed, NetFlowV9Template template) {
+        parsed.incrementAndGet();
+        return template;
+    }
+}
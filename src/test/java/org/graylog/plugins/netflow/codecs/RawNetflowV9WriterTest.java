@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator.TemplateBytes;
+import org.graylog.plugins.netflow.v9.NetFlowV9Journal;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RawNetflowV9WriterTest {
+    @Test
+    public void writesSameBytesAsProtobufBuilder() {
+        final TemplateBytes template = new TemplateBytes(256, bytes(76, 1), false);
+        // long enough to need a two byte length prefix
+        final TemplateBytes otherTemplate = new TemplateBytes(300, bytes(200, 2), false);
+        final TemplateBytes optionTemplate = new TemplateBytes(257, bytes(24, 3), true);
+        final ByteBuf packet = Unpooled.wrappedBuffer(bytes(1400, 4));
+        // a packet wrapping around the end of a ring consists of two components
+        final ByteBuf compositePacket = Unpooled.wrappedBuffer(Unpooled.directBuffer().writeBytes(bytes(30, 5)), Unpooled.wrappedBuffer(bytes(20, 6)));
+
+        final ByteBuf written = RawNetflowV9Writer.write(PooledByteBufAllocator.DEFAULT,
+                ImmutableList.of(template, optionTemplate, otherTemplate), ImmutableList.of(packet, compositePacket), false);
+        try {
+            final byte[] expected = NetFlowV9Journal.RawNetflowV9.newBuilder()
+                    .putTemplates(256, ByteString.copyFrom(template.getBytes()))
+                    .putTemplates(300, ByteString.copyFrom(otherTemplate.getBytes()))
+                    .putOptionTemplate(1, ByteString.copyFrom(optionTemplate.getBytes()))
+                    .addPackets(ByteString.copyFrom(ByteBufUtil.getBytes(packet)))
+                    .addPackets(ByteString.copyFrom(ByteBufUtil.getBytes(compositePacket)))
+                    .build()
+                    .toByteArray();
+
+            assertThat(written.readByte()).isEqualTo(NetFlowCodec.ORDERED_V9_MARKER);
+            assertThat(ByteBufUtil.getBytes(written)).isEqualTo(expected);
+            // the packets themselves are left untouched
+            assertThat(packet.readableBytes()).isEqualTo(1400);
+            assertThat(compositePacket.readableBytes()).isEqualTo(50);
+        } finally {
+            written.release();
+            compositePacket.release();
+        }
+    }
+
+    @Test
+    public void writesEntriesTheCodecReadsBack() throws Exception {
+        final byte[] packetBytes = bytes(100, 7);
+        final ByteBuf written = RawNetflowV9Writer.write(PooledByteBufAllocator.DEFAULT,
+                ImmutableList.of(new TemplateBytes(256, bytes(76, 1), false)), ImmutableList.of(Unpooled.wrappedBuffer(packetBytes)), false);
+        try {
+            written.skipBytes(1);
+            final NetFlowV9Journal.RawNetflowV9 parsed = NetFlowV9Journal.RawNetflowV9.parseFrom(ByteBufUtil.getBytes(written));
+
+            assertThat(parsed.getTemplatesMap()).containsOnlyKeys(256);
+            assertThat(parsed.getOptionTemplateMap()).isEmpty();
+            final List<ByteString> packets = parsed.getPacketsList();
+            assertThat(packets).hasSize(1);
+            assertThat(packets.get(0).toByteArray()).isEqualTo(packetBytes);
+        } finally {
+            written.release();
+        }
+    }
+
+    @Test
+    public void writesFingerprintsAsTemplateReferences() throws Exception {
+        final TemplateBytes template = new TemplateBytes(256, bytes(76, 1), false);
+        final TemplateBytes optionTemplate = new TemplateBytes(257, bytes(24, 3), true);
+        final ByteBuf written = RawNetflowV9Writer.write(PooledByteBufAllocator.DEFAULT,
+                ImmutableList.of(template, optionTemplate), ImmutableList.of(Unpooled.wrappedBuffer(bytes(100, 7))), true);
+        try {
+            assertThat(written.readByte()).isEqualTo(NetFlowCodec.TEMPLATE_REFERENCE_V9_MARKER);
+            final NetFlowV9Journal.RawNetflowV9 parsed = NetFlowV9Journal.RawNetflowV9.parseFrom(ByteBufUtil.getBytes(written));
+
+            assertThat(parsed.getTemplatesMap().get(256).asReadOnlyByteBuffer().getLong()).isEqualTo(template.getFingerprint());
+            assertThat(parsed.getOptionTemplateMap().get(1).asReadOnlyByteBuffer().getLong()).isEqualTo(optionTemplate.getFingerprint());
+            assertThat(parsed.getPacketsCount()).isEqualTo(1);
+        } finally {
+            written.release();
+        }
+    }
+
+    @Test
+    public void incrementallyWrittenEntriesParseLikeWrittenEntries() throws Exception {
+        final TemplateBytes template = new TemplateBytes(256, bytes(76, 1), false);
+        final ByteBuf entry = RawNetflowV9Writer.start(PooledByteBufAllocator.DEFAULT, 16);
+        try {
+            // more than the initial capacity, the entry grows
+            RawNetflowV9Writer.appendPacket(entry, Unpooled.wrappedBuffer(bytes(100, 7)));
+            RawNetflowV9Writer.appendPacket(entry, Unpooled.wrappedBuffer(bytes(200, 8)));
+            RawNetflowV9Writer.finish(entry, ImmutableList.of(template), false);
+
+            assertThat(entry.readByte()).isEqualTo(NetFlowCodec.ORDERED_V9_MARKER);
+            final NetFlowV9Journal.RawNetflowV9 parsed = NetFlowV9Journal.RawNetflowV9.parseFrom(ByteBufUtil.getBytes(entry));
+            assertThat(parsed.getTemplatesMap().get(256).toByteArray()).isEqualTo(template.getBytes());
+            assertThat(parsed.getPacketsList()).extracting(ByteString::toByteArray).containsExactly(bytes(100, 7), bytes(200, 8));
+        } finally {
+            entry.release();
+        }
+    }
+
+    private static byte[] bytes(int length, int value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
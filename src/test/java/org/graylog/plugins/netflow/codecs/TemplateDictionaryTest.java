@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.v9.NetFlowV9Packet;
+import org.graylog2.plugin.configuration.Configuration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TemplateDictionaryTest {
+    private static final long RETENTION = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final AtomicLong clock = new AtomicLong(1_000_000L);
+
+    @Test
+    public void templatesSurviveReopening() throws Exception {
+        final Path path = temporaryFolder.getRoot().toPath().resolve("netflow").resolve(TemplateDictionary.FILE_NAME);
+        final TemplateDictionary dictionary = new TemplateDictionary(path, RETENTION, clock::get);
+        assertThat(dictionary.add(1L, false, new byte[]{1, 2, 3})).isTrue();
+        assertThat(dictionary.add(2L, true, new byte[]{4, 5})).isTrue();
+
+        final TemplateDictionary reopened = new TemplateDictionary(path, RETENTION, clock::get);
+        assertThat(reopened.lookup(1L)).containsExactly(1, 2, 3);
+        assertThat(reopened.lookup(2L)).containsExactly(4, 5);
+        assertThat(reopened.lookup(3L)).isNull();
+    }
+
+    @Test
+    public void differentTemplateWithSameFingerprintIsRejected() throws Exception {
+        final TemplateDictionary dictionary = new TemplateDictionary(temporaryFolder.newFile().toPath(), RETENTION, clock::get);
+        assertThat(dictionary.add(1L, false, new byte[]{1, 2, 3})).isTrue();
+
+        assertThat(dictionary.add(1L, false, new byte[]{1, 2, 4})).isFalse();
+        assertThat(dictionary.add(1L, true, new byte[]{1, 2, 3})).isFalse();
+        assertThat(dictionary.lookup(1L)).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void referencedTemplatesAreOnlyRewrittenAfterHalfTheRetention() throws Exception {
+        final Path path = temporaryFolder.newFile().toPath();
+        final TemplateDictionary dictionary = new TemplateDictionary(path, RETENTION, clock::get);
+        dictionary.add(1L, false, new byte[]{1, 2, 3});
+        dictionary.add(2L, false, new byte[]{4});
+
+        clock.addAndGet(RETENTION / 2 - 1);
+        dictionary.add(1L, false, new byte[]{1, 2, 3});
+        assertThat(dictionary.records()).isEqualTo(2);
+
+        clock.addAndGet(1);
+        dictionary.add(1L, false, new byte[]{1, 2, 3});
+        assertThat(dictionary.records()).isEqualTo(3);
+
+        // the template which hasn't been referenced anymore expires, the other one is kept
+        clock.addAndGet(RETENTION / 2);
+        final TemplateDictionary reopened = new TemplateDictionary(path, RETENTION, clock::get);
+        assertThat(reopened.lookup(1L)).containsExactly(1, 2, 3);
+        assertThat(reopened.lookup(2L)).isNull();
+        assertThat(reopened.records()).isEqualTo(1);
+    }
+
+    @Test
+    public void unreadableFileDisablesReferences() throws Exception {
+        final Path path = temporaryFolder.newFile().toPath();
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        final TemplateDictionary dictionary = new TemplateDictionary(path, RETENTION, clock::get);
+        assertThat(dictionary.add(1L, false, new byte[]{1, 2, 3})).isFalse();
+    }
+
+    @Test
+    public void referencingEntriesDecodeLikeEmbeddingEntries() throws Exception {
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+        final TemplateDictionary dictionary = new TemplateDictionary(temporaryFolder.newFile().toPath(), RETENTION, clock::get);
+
+        final NetflowV9CodecAggregator embedding = new NetflowV9CodecAggregator(1);
+        final NetflowV9CodecAggregator referencing = new NetflowV9CodecAggregator(1, 1024 * 1024, 1024 * 1024,
+                TimeUnit.MINUTES.toNanos(1), null, null, dictionary);
+        final NetFlowCodec codec = new NetFlowCodec(Configuration.EMPTY_CONFIGURATION, embedding, dictionary);
+
+        for (byte[] packet : new byte[][]{templates, data}) {
+            final ByteBuf embedded = embedding.addChunk(Unpooled.wrappedBuffer(packet), exporter).getMessage();
+            final ByteBuf referenced = referencing.addChunk(Unpooled.wrappedBuffer(packet), exporter).getMessage();
+            try {
+                assertThat(embedded.readByte()).isEqualTo(NetFlowCodec.ORDERED_V9_MARKER);
+                assertThat(referenced.readByte()).isEqualTo(NetFlowCodec.TEMPLATE_REFERENCE_V9_MARKER);
+                assertThat(referenced.readableBytes()).isLessThan(embedded.readableBytes());
+
+                final List<NetFlowV9Packet> expected = codec.decodeV9Packets(embedded, false);
+                assertThat(codec.decodeV9Packets(referenced, true)).isEqualTo(expected);
+            } finally {
+                embedded.release();
+                referenced.release();
+            }
+        }
+    }
+}
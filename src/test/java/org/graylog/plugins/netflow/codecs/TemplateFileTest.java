@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TemplateFileTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+    private final InetSocketAddress ipv6Exporter = new InetSocketAddress("2001:db8::1", 9995);
+
+    @Test
+    public void templatesSurviveReopening() throws Exception {
+        final Path path = temporaryFolder.getRoot().toPath().resolve("netflow").resolve(TemplateFile.FILE_NAME);
+        final TemplateFile templateFile = new TemplateFile(path, 10);
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 3});
+        append(templateFile, ipv6Exporter, 4294967295L, 257, true, new byte[]{4, 5});
+
+        final List<StoredTemplate> templates = new TemplateFile(path, 10).templates();
+        assertThat(templates).hasSize(2);
+        assertThat(templates.get(0).getExporter()).isEqualTo(exporter);
+        assertThat(templates.get(0).getSourceId()).isEqualTo(1L);
+        assertThat(templates.get(0).getTemplateId()).isEqualTo(256);
+        assertThat(templates.get(0).isOptionTemplate()).isFalse();
+        assertThat(templates.get(0).getBytes()).containsExactly(1, 2, 3);
+        assertThat(templates.get(1).getExporter()).isEqualTo(ipv6Exporter);
+        assertThat(templates.get(1).getSourceId()).isEqualTo(4294967295L);
+        assertThat(templates.get(1).isOptionTemplate()).isTrue();
+        assertThat(templates.get(1).getBytes()).containsExactly(4, 5);
+    }
+
+    @Test
+    public void unchangedTemplatesAreNotWrittenAgain() throws Exception {
+        final TemplateFile templateFile = new TemplateFile(temporaryFolder.newFile().toPath(), 10);
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 3});
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 3});
+        assertThat(templateFile.records()).isEqualTo(1);
+
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 4});
+        assertThat(templateFile.records()).isEqualTo(2);
+        assertThat(templateFile.templates()).hasSize(1);
+    }
+
+    @Test
+    public void replacedTemplatesAreCompactedOnOpen() throws Exception {
+        final Path path = temporaryFolder.newFile().toPath();
+        final TemplateFile templateFile = new TemplateFile(path, 2);
+        for (int i = 0; i < 10; i++) {
+            append(templateFile, exporter, 1, 256 + i % 3, false, new byte[]{(byte) i});
+        }
+
+        final TemplateFile reopened = new TemplateFile(path, 2);
+        assertThat(reopened.records()).isEqualTo(2);
+        assertThat(reopened.templates()).extracting(StoredTemplate::getTemplateId).containsExactly(258, 256);
+        assertThat(reopened.templates()).extracting(template -> template.getBytes()[0]).containsExactly((byte) 8, (byte) 9);
+    }
+
+    @Test
+    public void corruptTailIsIgnored() throws Exception {
+        final Path path = temporaryFolder.newFile().toPath();
+        final TemplateFile templateFile = new TemplateFile(path, 10);
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 3});
+        // header (4 bytes) + first record (4 + 2 + 4 + 8 + 3 bytes), then a record with a bogus address length
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 20, 0, 7}), 25);
+        }
+
+        final TemplateFile reopened = new TemplateFile(path, 10);
+        assertThat(reopened.templates()).hasSize(1);
+        append(reopened, exporter, 1, 257, false, new byte[]{4});
+        assertThat(new TemplateFile(path, 10).templates()).hasSize(2);
+    }
+
+    @Test
+    public void unreadableFileDisablesPersistence() throws Exception {
+        final Path path = temporaryFolder.newFile().toPath();
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        final TemplateFile templateFile = new TemplateFile(path, 10);
+        append(templateFile, exporter, 1, 256, false, new byte[]{1, 2, 3});
+        assertThat(templateFile.templates()).isEmpty();
+    }
+
+    @Test
+    public void aggregatorDecodesDataRightAfterRestart() throws Exception {
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final Path path = temporaryFolder.newFile().toPath();
+
+        final NetflowV9CodecAggregator aggregator = new NetflowV9CodecAggregator(1, 1024 * 1024, 1024 * 1024, TimeUnit.MINUTES.toNanos(1), new TemplateFile(path, 10));
+        aggregator.addChunk(Unpooled.wrappedBuffer(templates), exporter);
+
+        final NetflowV9CodecAggregator restarted = new NetflowV9CodecAggregator(1, 1024 * 1024, 1024 * 1024, TimeUnit.MINUTES.toNanos(1), new TemplateFile(path, 10));
+        restarted.loadPersistedTemplates();
+        assertThat(restarted.addChunk(Unpooled.wrappedBuffer(data), exporter).getMessage()).isNotNull();
+        assertThat(restarted.bufferedPacketCount(exporter.getAddress())).isZero();
+    }
+
+    private static void append(TemplateFile templateFile, InetSocketAddress exporter, long sourceId, int templateId, boolean optionTemplate, byte[] bytes) {
+        templateFile.append(new StoredTemplate(exporter, sourceId, templateId, optionTemplate, bytes));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TemplateStoreTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InetSocketAddress exporter = new InetSocketAddress("10.0.0.1", 2055);
+
+    @Test
+    public void sharedFileStoreSeesTemplatesOfOtherNodes() throws Exception {
+        final Path directory = temporaryFolder.getRoot().toPath();
+        final SharedFileTemplateStore node1 = new SharedFileTemplateStore(directory, "node1");
+        final SharedFileTemplateStore node2 = new SharedFileTemplateStore(directory, "node2");
+
+        assertThat(node2.lookup(exporter, 1, 256)).isNull();
+        node1.publish(new StoredTemplate(exporter, 1, 256, false, new byte[]{1, 2, 3}));
+
+        // lookups only check the other files once the refresh interval has passed
+        Thread.sleep(20);
+        final StoredTemplate template = node2.lookup(exporter, 1, 256);
+        assertThat(template).isNotNull();
+        assertThat(template.getBytes()).containsExactly(1, 2, 3);
+        assertThat(node1.lookup(exporter, 1, 257)).isNull();
+    }
+
+    @Test
+    public void sharedFileStoreFollowsCompactedFiles() throws Exception {
+        final Path directory = temporaryFolder.getRoot().toPath();
+        final SharedFileTemplateStore node1 = new SharedFileTemplateStore(directory, "node1");
+        final SharedFileTemplateStore node2 = new SharedFileTemplateStore(directory, "node2");
+        node1.publish(new StoredTemplate(exporter, 1, 256, false, new byte[]{1}));
+        assertThat(node2.lookup(exporter, 1, 256)).isNotNull();
+
+        // replacing the same template over and over makes the file compact itself instead of growing
+        for (int i = 0; i < 3000; i++) {
+            node1.publish(new StoredTemplate(exporter, 1, 257, false, new byte[1000 + i % 2]));
+        }
+        node1.publish(new StoredTemplate(exporter, 1, 258, false, new byte[]{2}));
+
+        Thread.sleep(20);
+        assertThat(node2.lookup(exporter, 1, 258)).isNotNull();
+    }
+
+    @Test
+    public void aggregatorUsesTemplatesLearnedByOtherAggregators() throws Exception {
+        final byte[] data = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-2.dat"));
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final TemplateStore templateStore = new InProcessTemplateStore(100);
+        final NetflowV9CodecAggregator aggregator1 = new NetflowV9CodecAggregator(1, 1024 * 1024, 1024 * 1024, TimeUnit.MINUTES.toNanos(1), null, templateStore);
+        final NetflowV9CodecAggregator aggregator2 = new NetflowV9CodecAggregator(1, 1024 * 1024, 1024 * 1024, TimeUnit.MINUTES.toNanos(1), null, templateStore);
+
+        aggregator1.addChunk(Unpooled.wrappedBuffer(templates), exporter);
+        assertThat(templateStore.lookup(exporter, 106, 257)).isNotNull();
+
+        assertThat(aggregator2.addChunk(Unpooled.wrappedBuffer(data), exporter).getMessage()).isNotNull();
+        assertThat(aggregator2.bufferedPacketCount(exporter.getAddress())).isZero();
+    }
+}
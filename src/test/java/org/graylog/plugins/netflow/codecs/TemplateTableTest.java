@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.codecs;
+
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator.TemplateBytes;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TemplateTableTest {
+    @Test
+    public void distinguishesExportersByAddressPortAndSourceId() {
+        final TemplateTable table = new TemplateTable(10);
+        final long[] v4 = bits(new InetSocketAddress("10.0.0.1", 2055));
+        final long[] other = bits(new InetSocketAddress("2001:db8::1", 2055));
+
+        table.put(v4[0], v4[1], TemplateTable.id(TemplateTable.exporterId(new InetSocketAddress("10.0.0.1", 2055), 1), 256), template(256));
+
+        assertThat(table.get(v4[0], v4[1], TemplateTable.id(TemplateTable.exporterId(new InetSocketAddress("10.0.0.1", 2055), 1), 256))).isNotNull();
+        assertThat(table.get(v4[0], v4[1], TemplateTable.id(TemplateTable.exporterId(new InetSocketAddress("10.0.0.1", 2056), 1), 256))).isNull();
+        assertThat(table.get(v4[0], v4[1], TemplateTable.id(TemplateTable.exporterId(new InetSocketAddress("10.0.0.1", 2055), 2), 256))).isNull();
+        assertThat(table.get(other[0], other[1], TemplateTable.id(TemplateTable.exporterId(new InetSocketAddress("10.0.0.1", 2055), 1), 256))).isNull();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedTemplate() {
+        final TemplateTable table = new TemplateTable(2);
+        assertThat(table.put(0, 1, 256, template(256))).isNull();
+        assertThat(table.put(0, 1, 257, template(257))).isNull();
+        // touch 256, so 257 is the eldest one
+        assertThat(table.get(0, 1, 256)).isNotNull();
+
+        final TemplateBytes evicted = table.put(0, 1, 258, template(258));
+        assertThat(evicted).isNotNull();
+        assertThat(evicted.getTemplateId()).isEqualTo(257);
+        assertThat(table.size()).isEqualTo(2);
+        assertThat(table.contains(0, 1, 256)).isTrue();
+        assertThat(table.contains(0, 1, 257)).isFalse();
+        assertThat(table.contains(0, 1, 258)).isTrue();
+    }
+
+    @Test
+    public void sharesLimitWithOtherTables() {
+        final AtomicInteger totalSize = new AtomicInteger();
+        final TemplateTable first = new TemplateTable(3, totalSize);
+        final TemplateTable second = new TemplateTable(3, totalSize);
+        assertThat(first.put(0, 1, 256, template(256))).isNull();
+        assertThat(first.put(0, 1, 257, template(257))).isNull();
+        // the only template of a table is never evicted
+        assertThat(second.put(0, 2, 256, template(256))).isNull();
+        assertThat(second.put(0, 2, 257, template(257))).isNotNull();
+        assertThat(totalSize.get()).isEqualTo(3);
+
+        final TemplateBytes evicted = first.put(0, 1, 258, template(258));
+        assertThat(evicted).isNotNull();
+        assertThat(evicted.getTemplateId()).isEqualTo(256);
+        assertThat(first.size()).isEqualTo(2);
+        assertThat(totalSize.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void behavesLikeAccessOrderedLinkedHashMap() {
+        final int maxSize = 50;
+        final TemplateTable table = new TemplateTable(maxSize);
+        final Map<Integer, TemplateBytes> reference = new LinkedHashMap<Integer, TemplateBytes>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, TemplateBytes> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            final int templateId = random.nextInt(200);
+            if (random.nextBoolean()) {
+                final TemplateBytes template = template(templateId);
+                table.put(0, templateId % 7, templateId, template);
+                reference.put(templateId, template);
+            } else {
+                assertThat(table.get(0, templateId % 7, templateId)).isSameAs(reference.get(templateId));
+            }
+            assertThat(table.size()).isEqualTo(reference.size());
+        }
+    }
+
+    private static long[] bits(InetSocketAddress address) {
+        final long[] bits = new long[2];
+        TemplateTable.addressBits(address, bits);
+        return bits;
+    }
+
+    private static TemplateBytes template(int templateId) {
+        return new TemplateBytes(templateId, new byte[]{1, 2, 3}, false);
+    }
+}
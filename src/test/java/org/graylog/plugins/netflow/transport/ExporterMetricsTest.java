@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.graylog.plugins.netflow.codecs.NetflowV9CodecAggregator;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ExporterMetricsTest {
+    private MetricRegistry metricRegistry;
+    private NetflowV9CodecAggregator aggregator;
+    private ExporterMetrics exporterMetrics;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        aggregator = new NetflowV9CodecAggregator();
+        exporterMetrics = new ExporterMetrics(metricRegistry, () -> aggregator, 1);
+    }
+
+    @Test
+    public void recordsPacketsOfTrackedExporter() throws Exception {
+        final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+        final ByteBuf packet = packet("netflow-data/netflow-v5-1.dat");
+
+        exporterMetrics.record(sender, packet, aggregator.addChunk(packet, sender), 1000L);
+
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.packets").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.bytes").getCount()).isEqualTo(packet.readableBytes());
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.records").getCount()).isEqualTo(packet.getUnsignedShort(2));
+        assertThat(metricRegistry.timer("exporters.10.0.0.1.aggregationTime").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("exporters.other.packets").getCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void accountsUntrackedExportersToOther() throws Exception {
+        final ByteBuf packet = packet("netflow-data/netflow-v5-1.dat");
+        final CodecAggregator.Result result = new CodecAggregator.Result(null, true);
+
+        exporterMetrics.record(new InetSocketAddress("10.0.0.1", 2055), packet, result, 1000L);
+        exporterMetrics.record(new InetSocketAddress("10.0.0.2", 2055), packet, result, 1000L);
+        exporterMetrics.record(null, packet, result, 1000L);
+
+        assertThat(exporterMetrics.trackedExporterCount()).isEqualTo(1);
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.packets").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("exporters.other.packets").getCount()).isEqualTo(2L);
+        assertThat(metricRegistry.getMeters()).doesNotContainKey("exporters.10.0.0.2.packets");
+    }
+
+    @Test
+    public void busierExporterReplacesQuietestTrackedExporter() throws Exception {
+        final ByteBuf packet = packet("netflow-data/netflow-v5-1.dat");
+        final CodecAggregator.Result result = new CodecAggregator.Result(null, true);
+
+        exporterMetrics.record(new InetSocketAddress("10.0.0.1", 2055), packet, result, 1000L);
+        for (int i = 0; i < 5; i++) {
+            exporterMetrics.record(new InetSocketAddress("10.0.0.2", 2055), packet, result, 1000L);
+        }
+        exporterMetrics.rebalance();
+        exporterMetrics.record(new InetSocketAddress("10.0.0.2", 2055), packet, result, 1000L);
+
+        assertThat(exporterMetrics.trackedExporterCount()).isEqualTo(1);
+        assertThat(metricRegistry.getMeters()).doesNotContainKey("exporters.10.0.0.1.packets");
+        assertThat(metricRegistry.meter("exporters.10.0.0.2.packets").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("exporters.other.packets").getCount()).isEqualTo(5L);
+    }
+
+    @Test
+    public void newExporterDoesNotReplaceBusierTrackedExporter() throws Exception {
+        final ByteBuf packet = packet("netflow-data/netflow-v5-1.dat");
+        final CodecAggregator.Result result = new CodecAggregator.Result(null, true);
+
+        for (int i = 0; i < 5; i++) {
+            exporterMetrics.record(new InetSocketAddress("10.0.0.1", 2055), packet, result, 1000L);
+        }
+        exporterMetrics.record(new InetSocketAddress("10.0.0.2", 2055), packet, result, 1000L);
+        exporterMetrics.rebalance();
+
+        assertThat(exporterMetrics.trackedExporterCount()).isEqualTo(1);
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.packets").getCount()).isEqualTo(5L);
+        assertThat(metricRegistry.getMeters()).doesNotContainKey("exporters.10.0.0.2.packets");
+    }
+
+    @Test
+    public void busierUntrackedExporterReplacesQuietestCandidate() throws Exception {
+        final ByteBuf packet = packet("netflow-data/netflow-v5-1.dat");
+        final CodecAggregator.Result result = new CodecAggregator.Result(null, true);
+
+        exporterMetrics.record(new InetSocketAddress("10.0.0.1", 2055), packet, result, 1000L);
+        exporterMetrics.record(new InetSocketAddress("10.0.0.1", 2055), packet, result, 1000L);
+        // takes the only candidate slot first, but is quieter than the exporter after it
+        exporterMetrics.record(new InetSocketAddress("10.0.0.2", 2055), packet, result, 1000L);
+        for (int i = 0; i < 3; i++) {
+            exporterMetrics.record(new InetSocketAddress("10.0.0.3", 2055), packet, result, 1000L);
+        }
+        exporterMetrics.rebalance();
+
+        assertThat(exporterMetrics.trackedExporterCount()).isEqualTo(1);
+        assertThat(metricRegistry.getMeters()).doesNotContainKeys("exporters.10.0.0.1.packets", "exporters.10.0.0.2.packets");
+        assertThat(metricRegistry.getMeters()).containsKey("exporters.10.0.0.3.packets");
+    }
+
+    @Test
+    public void countsTemplateMissesAndBufferedPackets() throws Exception {
+        final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+        final ByteBuf packet = packet("netflow-data/netflow-v9-2-2.dat");
+
+        exporterMetrics.record(sender, packet, aggregator.addChunk(packet, sender), 1000L);
+
+        assertThat(metricRegistry.meter("exporters.10.0.0.1.templateMisses").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.getGauges().get("exporters.10.0.0.1.bufferedPackets").getValue()).isEqualTo(1);
+    }
+
+    private ByteBuf packet(String resourceName) throws IOException {
+        return Unpooled.wrappedBuffer(Resources.toByteArray(Resources.getResource(resourceName)));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KernelDropMonitorTest {
+    private static final List<String> PROC_NET_UDP = ImmutableList.of(
+            "   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops",
+            "  123: 00000000:0807 00000000:0000 07 00000000:00000000 00:00000000 00000000  1000        0 40001 2 ffff8a0c4e1c3000 17",
+            "  123: 00000000:0807 00000000:0000 07 00000000:00034500 00:00000000 00000000  1000        0 40002 2 ffff8a0c4e1c3400 25",
+            "  456: 0100007F:0035 00000000:0000 07 00000000:00000000 00:00000000 00000000   101        0 12345 2 ffff8a0c4e1c3800 3");
+
+    @Test
+    public void parseDropsSumsUpSocketsWithInodes() {
+        assertThat(KernelDropMonitor.parseDrops(PROC_NET_UDP, ImmutableSet.of(40001L))).isEqualTo(17L);
+        assertThat(KernelDropMonitor.parseDrops(PROC_NET_UDP, ImmutableSet.of(40001L, 40002L))).isEqualTo(42L);
+        assertThat(KernelDropMonitor.parseDrops(PROC_NET_UDP, ImmutableSet.of(12345L))).isEqualTo(3L);
+    }
+
+    @Test
+    public void parseDropsIgnoresOtherSocketsAndMalformedLines() {
+        final List<String> lines = ImmutableList.<String>builder()
+                .addAll(PROC_NET_UDP)
+                .add("  789: 00000000:0807")
+                .build();
+        assertThat(KernelDropMonitor.parseDrops(lines, ImmutableSet.of(99999L))).isEqualTo(0L);
+        assertThat(KernelDropMonitor.parseDrops(lines, ImmutableSet.of(40002L))).isEqualTo(25L);
+    }
+
+    @Test
+    public void socketsOnPortsOnlyYieldsSocketsOfThisProcess() {
+        // 0x0807 = 2055, the socket with inode 40002 belongs to another process
+        assertThat(KernelDropMonitor.socketsOnPorts(PROC_NET_UDP, ImmutableSet.of(2055), ImmutableSet.of(40001L, 12345L)))
+                .containsExactly(40001L);
+        assertThat(KernelDropMonitor.socketsOnPorts(PROC_NET_UDP, ImmutableSet.of(53), ImmutableSet.of(40001L))).isEmpty();
+    }
+
+    @Test
+    public void socketInodeIsReadFromDescriptorLink() {
+        assertThat(KernelDropMonitor.socketInode("socket:[40001]")).isEqualTo(40001L);
+        assertThat(KernelDropMonitor.socketInode("/var/lib/graylog-server/journal/messagejournal-0/00000000000000000000.log")).isEqualTo(-1L);
+    }
+}
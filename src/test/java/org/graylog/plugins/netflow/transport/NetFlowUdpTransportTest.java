@@ -15,6 +15,7 @@
  */
 package org.graylog.plugins.netflow.transport;
 
+import com.google.common.collect.ImmutableMap;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -23,6 +24,7 @@ import org.graylog2.inputs.transports.NettyTransportConfiguration;
 import org.graylog2.inputs.transports.netty.EventLoopGroupFactory;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.util.ThroughputCounter;
 import org.junit.After;
@@ -69,4 +71,27 @@ public class NetFlowUdpTransportTest {
         final ChannelHandler channelHandler = handlers.get("codec-aggregator").call();
         assertThat(channelHandler).isInstanceOf(NetflowMessageAggregationHandler.class);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void configContainsReceiveSocketsField() {
+        final ConfigurationRequest configurationRequest = new NetFlowUdpTransport.Config().getRequestedConfiguration();
+        assertThat(configurationRequest.containsField(NetFlowUdpTransport.CK_RECEIVE_SOCKETS)).isTrue();
+    }
+
+    @Test
+    public void getChildChannelHandlersContainsBatchAggregatorIfBatchingIsEnabled() throws Exception {
+        final Configuration configuration = new Configuration(ImmutableMap.of(NetFlowUdpTransport.CK_RECEIVE_BATCH_SIZE, 32));
+        final NettyTransportConfiguration nettyTransportConfiguration = new NettyTransportConfiguration("nio", "jdk", 1);
+        final NetFlowUdpTransport batchingTransport = new NetFlowUdpTransport(
+                configuration,
+                eventLoopGroupFactory,
+                nettyTransportConfiguration,
+                new ThroughputCounter(eventLoopGroup),
+                new LocalMetricRegistry());
+        batchingTransport.setMessageAggregator(new NetflowV9CodecAggregator());
+
+        final LinkedHashMap<String, Callable<? extends ChannelHandler>> handlers = batchingTransport.getChannelHandlers(mock(MessageInput.class));
+        final ChannelHandler channelHandler = handlers.get("codec-aggregator").call();
+        assertThat(channelHandler).isInstanceOf(NetflowBatchAggregationHandler.class);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetflowLoadShedderTest {
+    private final InetSocketAddress sender = new InetSocketAddress("10.0.0.1", 2055);
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void doesNotShedWithoutOverload() throws Exception {
+        final NetflowLoadShedder shedder = new NetflowLoadShedder(NetflowLoadShedder.Mode.EXPORTER, 100, 10, TimeUnit.MILLISECONDS, metricRegistry);
+        final NetflowLoadShedder.Detector detector = shedder.newDetector();
+
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender)).isFalse();
+        assertThat(metricRegistry.meter("shedPackets").getCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void shedsDataPacketsButKeepsTemplatesDuringOverload() throws Exception {
+        final NetflowLoadShedder shedder = new NetflowLoadShedder(NetflowLoadShedder.Mode.EXPORTER, 100, 10, TimeUnit.MILLISECONDS, metricRegistry);
+        final NetflowLoadShedder.Detector detector = overloaded(shedder);
+
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender)).isTrue();
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v9-2-2.dat"), sender)).isTrue();
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v9-2-1.dat"), sender)).isFalse();
+        assertThat(metricRegistry.meter("shedPackets").getCount()).isEqualTo(2L);
+        assertThat(metricRegistry.getGauges().get("overloadedChannels").getValue()).isEqualTo(1);
+
+        detector.close();
+        assertThat(metricRegistry.getGauges().get("overloadedChannels").getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void exporterModeIsDeterministic() throws Exception {
+        final NetflowLoadShedder shedder = new NetflowLoadShedder(NetflowLoadShedder.Mode.EXPORTER, 50, 10, TimeUnit.MILLISECONDS, metricRegistry);
+        final NetflowLoadShedder.Detector detector = overloaded(shedder);
+
+        final boolean first = detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender);
+        for (int i = 0; i < 10; i++) {
+            assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-2.dat"), sender)).isEqualTo(first);
+        }
+    }
+
+    @Test
+    public void recoversWhileAllDataPacketsAreShed() throws Exception {
+        final NetflowLoadShedder shedder = new NetflowLoadShedder(NetflowLoadShedder.Mode.SAMPLE, 100, 10, TimeUnit.MILLISECONDS, metricRegistry);
+        final NetflowLoadShedder.Detector detector = overloaded(shedder);
+        final long start = System.nanoTime();
+
+        // no messages are forwarded while every data packet is dropped, only time passes
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender, start)).isTrue();
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender, start + TimeUnit.MILLISECONDS.toNanos(100))).isTrue();
+        assertThat(detector.shouldShed(packet("netflow-data/netflow-v5-1.dat"), sender, start + TimeUnit.SECONDS.toNanos(10))).isFalse();
+        assertThat(metricRegistry.getGauges().get("overloadedChannels").getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void unknownModeDisablesShedding() {
+        assertThat(NetflowLoadShedder.Mode.fromString(null)).isEqualTo(NetflowLoadShedder.Mode.DISABLED);
+        assertThat(NetflowLoadShedder.Mode.fromString(" exporter ")).isEqualTo(NetflowLoadShedder.Mode.EXPORTER);
+        assertThat(NetflowLoadShedder.Mode.fromString("bogus")).isEqualTo(NetflowLoadShedder.Mode.DISABLED);
+    }
+
+    private NetflowLoadShedder.Detector overloaded(NetflowLoadShedder shedder) {
+        final NetflowLoadShedder.Detector detector = shedder.newDetector();
+        for (int i = 0; i < 1000; i++) {
+            detector.recordForwardTime(TimeUnit.SECONDS.toNanos(1));
+        }
+        return detector;
+    }
+
+    private ByteBuf packet(String resourceName) throws IOException {
+        return Unpooled.wrappedBuffer(Resources.toByteArray(Resources.getResource(resourceName)));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.transport;
+
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBufUtil;
+import io.pkts.Pcap;
+import io.pkts.packet.UDPPacket;
+import io.pkts.protocol.Protocol;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PcapReaderTest {
+    @Test
+    public void readsSameDatagramsAsPkts() throws Exception {
+        for (String resourceName : new String[]{"netflow-data/netflow5.pcap", "netflow-data/netflow9.pcap", "netflow-data/nprobe-netflow9.pcap", "netflow-data/pmacctd-netflow9.pcap"}) {
+            final List<byte[]> expected = readWithPkts(resourceName);
+
+            final List<byte[]> actual = new ArrayList<>();
+            try (PcapReader reader = new PcapReader(resourcePath(resourceName))) {
+                PcapReader.Packet packet;
+                while ((packet = reader.next()) != null) {
+                    actual.add(ByteBufUtil.getBytes(packet.getPayload()));
+                }
+            }
+
+            assertThat(actual).as(resourceName).hasSameSizeAs(expected);
+            for (int i = 0; i < expected.size(); i++) {
+                assertThat(actual.get(i)).as(resourceName + " packet " + i).isEqualTo(expected.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void readsSenderAndTimestamps() throws Exception {
+        try (PcapReader reader = new PcapReader(resourcePath("netflow-data/netflow5.pcap"))) {
+            long lastTimestamp = 0;
+            PcapReader.Packet packet;
+            while ((packet = reader.next()) != null) {
+                final InetSocketAddress sender = packet.getSender();
+                assertThat(sender.getAddress()).isNotNull();
+                assertThat(sender.getPort()).isPositive();
+                assertThat(packet.getTimestampNanos()).isGreaterThanOrEqualTo(lastTimestamp);
+                lastTimestamp = packet.getTimestampNanos();
+            }
+            assertThat(lastTimestamp).isPositive();
+        }
+    }
+
+    private static List<byte[]> readWithPkts(String resourceName) throws Exception {
+        final List<byte[]> payloads = new ArrayList<>();
+        try (InputStream inputStream = Resources.getResource(resourceName).openStream()) {
+            final Pcap pcap = Pcap.openStream(inputStream);
+            pcap.loop(packet -> {
+                if (packet.hasProtocol(Protocol.UDP)) {
+                    final UDPPacket udp = (UDPPacket) packet.getPacket(Protocol.UDP);
+                    payloads.add(udp.getPayload().getArray());
+                }
+                return true;
+            });
+        }
+        return payloads;
+    }
+
+    private static Path resourcePath(String resourceName) throws Exception {
+        return Paths.get(Resources.getResource(resourceName).toURI());
+    }
+}
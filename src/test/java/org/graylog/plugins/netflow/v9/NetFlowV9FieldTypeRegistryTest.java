@@ -32,4 +32,16 @@ public class NetFlowV9FieldTypeRegistryTest {
                 .containsEntry(1, NetFlowV9FieldType.create(1, NetFlowV9FieldType.ValueType.UINT32, "in_bytes"));
     }
 
+    @Test
+    public void keysAndMessageFieldsAreInterned() throws Exception {
+        final NetFlowV9FieldTypeRegistry typeRegistry = NetFlowV9FieldTypeRegistry.create();
+        final NetFlowV9FieldType fieldType = typeRegistry.get(1);
+        final NetFlowV9FieldType otherFieldType = NetFlowV9FieldType.create(1, NetFlowV9FieldType.ValueType.UINT32, "IN_BYTES");
+
+        assertThat(fieldType.key()).isEqualTo("in_bytes").isSameAs(otherFieldType.key());
+        assertThat(fieldType.messageField()).isEqualTo("nf_in_bytes")
+                .isSameAs(otherFieldType.messageField())
+                .isSameAs(NetFlowV9FieldType.messageField(new String("in_bytes")));
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Graylog Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.graylog.plugins.netflow.v9;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Resources;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NetFlowV9RecordDecoderTest {
+    @Test
+    public void decodesAllValueTypesLikeTheInterpretingParser() {
+        final List<NetFlowV9FieldDef> defs = new ArrayList<>();
+        int id = 1;
+        for (NetFlowV9FieldType.ValueType valueType : NetFlowV9FieldType.ValueType.values()) {
+            defs.add(field(id++, valueType, valueType.getDefaultLength()));
+        }
+        // unsigned numbers with unusual lengths and fields without a length
+        defs.add(field(id++, NetFlowV9FieldType.ValueType.UINT16, 4));
+        defs.add(field(id++, NetFlowV9FieldType.ValueType.UINT32, 16));
+        defs.add(field(id++, NetFlowV9FieldType.ValueType.UINT8, 0));
+        defs.add(field(id++, NetFlowV9FieldType.ValueType.STRING, 5));
+        defs.add(field(id, NetFlowV9FieldType.ValueType.VARINT, 2));
+        final NetFlowV9Template template = NetFlowV9Template.create(256, defs.size(), defs);
+
+        final ByteBuf flowSet = flowSet(256, 500);
+        final List<NetFlowV9BaseRecord> interpreted = parseRecords(NetFlowV9Parser.RecordDecoding.INTERPRETED, flowSet.duplicate(), template, null);
+        final List<NetFlowV9BaseRecord> compiled = parseRecords(NetFlowV9Parser.RecordDecoding.COMPILED, flowSet.duplicate(), template, null);
+        final List<NetFlowV9BaseRecord> lazy = parseRecords(NetFlowV9Parser.RecordDecoding.LAZY, flowSet.duplicate(), template, null);
+
+        assertThat(interpreted).isNotEmpty();
+        assertThat(compiled).isEqualTo(interpreted);
+        assertThat(lazy).isEqualTo(interpreted);
+        for (int i = 0; i < interpreted.size(); i++) {
+            for (Map.Entry<String, Object> field : interpreted.get(i).fields().entrySet()) {
+                // boxed into the same types
+                assertThat(lazy.get(i).get(field.getKey())).isExactlyInstanceOf(field.getValue().getClass());
+            }
+        }
+    }
+
+    @Test
+    public void lazyRecordsKeepNumbersOfManyFields() {
+        final List<NetFlowV9FieldDef> defs = new ArrayList<>();
+        for (int id = 1; id <= 150; id++) {
+            defs.add(field(id, NetFlowV9FieldType.ValueType.UINT16, 2));
+        }
+        defs.add(field(151, NetFlowV9FieldType.ValueType.IPV4, 4));
+        defs.add(field(152, NetFlowV9FieldType.ValueType.UINT64, 16));
+        final NetFlowV9Template template = NetFlowV9Template.create(256, defs.size(), defs);
+        final ByteBuf flowSet = flowSet(256, 2 * (150 * 2 + 4 + 16));
+        final List<NetFlowV9BaseRecord> interpreted = parseRecords(NetFlowV9Parser.RecordDecoding.INTERPRETED, flowSet.duplicate(), template, null);
+        final List<NetFlowV9BaseRecord> lazy = parseRecords(NetFlowV9Parser.RecordDecoding.LAZY, flowSet.duplicate(), template, null);
+
+        final NetFlowV9BaseRecord record = lazy.get(1);
+        final Map<String, Object> fields = interpreted.get(1).fields();
+        for (int id = 150; id >= 1; id--) {
+            assertThat(record.getLong("field_" + id, -1L)).isEqualTo(((Integer) fields.get("field_" + id)).longValue());
+        }
+        assertThat(record.getLong("field_151", -1L)).isEqualTo(-1L);
+        assertThat(record.getLong("field_152", -1L)).isEqualTo(((BigInteger) fields.get("field_152")).longValue());
+        assertThat(record.getLong("field_153", -1L)).isEqualTo(-1L);
+        assertThat(lazy).isEqualTo(interpreted);
+    }
+
+    @Test
+    public void lazyRecordsDecodeFieldsOnAccess() {
+        final NetFlowV9Template template = NetFlowV9Template.create(256, 3, ImmutableList.of(
+                field(1, NetFlowV9FieldType.ValueType.UINT32, 4),
+                field(2, NetFlowV9FieldType.ValueType.IPV4, 4),
+                field(3, NetFlowV9FieldType.ValueType.UINT16, 2)));
+        final ByteBuf flowSet = flowSet(256, 3 * 10);
+        final List<NetFlowV9BaseRecord> interpreted = parseRecords(NetFlowV9Parser.RecordDecoding.INTERPRETED, flowSet.duplicate(), template, null);
+        final List<NetFlowV9BaseRecord> lazy = parseRecords(NetFlowV9Parser.RecordDecoding.LAZY, flowSet.duplicate(), template, null);
+
+        assertThat(lazy).hasSize(3).allSatisfy(record -> assertThat(record).isInstanceOf(NetFlowV9LazyRecord.class));
+        for (int i = 0; i < lazy.size(); i++) {
+            final NetFlowV9BaseRecord record = lazy.get(i);
+            final Map<String, Object> fields = interpreted.get(i).fields();
+            assertThat(record.get("field_3")).isEqualTo(fields.get("field_3"));
+            assertThat(record.get("field_4")).isNull();
+
+            final Map<String, Object> iterated = new LinkedHashMap<>();
+            record.forEachField(iterated::put);
+            assertThat(iterated.entrySet()).containsExactlyElementsOf(fields.entrySet());
+
+            assertThat(record).isEqualTo(interpreted.get(i));
+            assertThat(interpreted.get(i)).isEqualTo(record);
+            assertThat(record.hashCode()).isEqualTo(interpreted.get(i).hashCode());
+        }
+
+        final Map<String, Object> messageFields = new LinkedHashMap<>();
+        lazy.get(0).forEachMessageField(messageFields::put);
+        final Map<String, Object> eagerMessageFields = new LinkedHashMap<>();
+        interpreted.get(0).forEachMessageField(eagerMessageFields::put);
+        assertThat(messageFields).containsOnlyKeys("nf_field_1", "nf_field_2", "nf_field_3").isEqualTo(eagerMessageFields);
+
+        // fields which haven't been accessed yet are decoded from the buffer
+        final NetFlowV9BaseRecord untouched = parseRecords(NetFlowV9Parser.RecordDecoding.LAZY, flowSet.duplicate(), template, null).get(0);
+        flowSet.setInt(4, 42);
+        assertThat(untouched.get("field_1")).isEqualTo(42L);
+        flowSet.setInt(4, 43);
+        assertThat(untouched.get("field_1")).isEqualTo(42L);
+    }
+
+    @Test
+    public void decodesOptionRecordsLikeTheInterpretingParser() {
+        final NetFlowV9OptionTemplate optionTemplate = NetFlowV9OptionTemplate.create(300,
+                ImmutableList.of(NetFlowV9ScopeDef.create(NetFlowV9ScopeDef.SYSTEM, 4), NetFlowV9ScopeDef.create(NetFlowV9ScopeDef.INTERFACE, 2)),
+                ImmutableList.of(field(1, NetFlowV9FieldType.ValueType.UINT32, 4), field(2, NetFlowV9FieldType.ValueType.IPV4, 4)));
+
+        final ByteBuf flowSet = flowSet(300, 5 * 14);
+        final List<NetFlowV9BaseRecord> interpreted = parseRecords(NetFlowV9Parser.RecordDecoding.INTERPRETED, flowSet.duplicate(), null, optionTemplate);
+        final List<NetFlowV9BaseRecord> compiled = parseRecords(NetFlowV9Parser.RecordDecoding.COMPILED, flowSet.duplicate(), null, optionTemplate);
+
+        assertThat(interpreted).isNotEmpty().allSatisfy(record -> assertThat(record).isInstanceOf(NetFlowV9OptionRecord.class));
+        assertThat(compiled).isEqualTo(interpreted);
+    }
+
+    @Test
+    public void decodesCapturedPacketsLikeTheInterpretingParser() throws Exception {
+        for (NetFlowV9Parser.RecordDecoding decoding : NetFlowV9Parser.RecordDecoding.values()) {
+            assertThat(parseCapturedPackets(decoding)).isEqualTo(parseCapturedPackets(NetFlowV9Parser.RecordDecoding.INTERPRETED));
+        }
+    }
+
+    @Test
+    public void resentTemplatesKeepTheirDecoder() throws Exception {
+        final NetFlowV9FieldTypeRegistry typeRegistry = NetFlowV9FieldTypeRegistry.create();
+        final byte[] templates = Resources.toByteArray(Resources.getResource("netflow-data/netflow-v9-2-1.dat"));
+        final Map<Integer, NetFlowV9Template> cache = Maps.newHashMap();
+
+        NetFlowV9Parser.parsePacket(Unpooled.wrappedBuffer(templates), typeRegistry, cache, null);
+        final NetFlowV9Template template = cache.get(257);
+        NetFlowV9Parser.parsePacket(Unpooled.wrappedBuffer(templates), typeRegistry, cache, null);
+
+        assertThat(cache.get(257)).isSameAs(template);
+    }
+
+    @Test
+    public void decodersAreCompiledOncePerTemplateInstance() {
+        final List<NetFlowV9FieldDef> defs = Collections.singletonList(field(1, NetFlowV9FieldType.ValueType.UINT32, 4));
+        final NetFlowV9Template template = NetFlowV9Template.create(256, defs.size(), defs);
+        final NetFlowV9RecordDecoders decoders = new NetFlowV9RecordDecoders();
+
+        assertThat(decoders.decoder(template)).isSameAs(decoders.decoder(template));
+        assertThat(decoders.decoder(NetFlowV9Template.create(256, defs.size(), defs))).isNotSameAs(decoders.decoder(template));
+    }
+
+    @Test
+    public void parsesRecordDecodingNames() {
+        assertThat(NetFlowV9Parser.recordDecoding(null)).isEqualTo(NetFlowV9Parser.RecordDecoding.INTERPRETED);
+        assertThat(NetFlowV9Parser.recordDecoding(" verify ")).isEqualTo(NetFlowV9Parser.RecordDecoding.VERIFY);
+        assertThat(NetFlowV9Parser.recordDecoding("bogus")).isEqualTo(NetFlowV9Parser.RecordDecoding.INTERPRETED);
+    }
+
+    private List<List<NetFlowV9BaseRecord>> parseCapturedPackets(NetFlowV9Parser.RecordDecoding decoding) throws Exception {
+        final NetFlowV9FieldTypeRegistry typeRegistry = NetFlowV9FieldTypeRegistry.create();
+        final Map<Integer, NetFlowV9Template> cache = Maps.newHashMap();
+        final NetFlowV9RecordDecoders decoders = new NetFlowV9RecordDecoders();
+        final List<List<NetFlowV9BaseRecord>> records = new ArrayList<>();
+        for (String packet : ImmutableList.of("netflow-v9-2-1.dat", "netflow-v9-2-2.dat", "netflow-v9-2-3.dat")) {
+            final byte[] bytes = Resources.toByteArray(Resources.getResource("netflow-data/" + packet));
+            records.add(NetFlowV9Parser.parsePacket(Unpooled.wrappedBuffer(bytes), typeRegistry, cache, null, decoding, decoders).records());
+        }
+        return records;
+    }
+
+    private static List<NetFlowV9BaseRecord> parseRecords(NetFlowV9Parser.RecordDecoding decoding, ByteBuf flowSet,
+                                                          NetFlowV9Template template, NetFlowV9OptionTemplate optionTemplate) {
+        final Map<Integer, NetFlowV9Template> cache = template == null ? Collections.emptyMap() : Collections.singletonMap(template.templateId(), template);
+        final List<NetFlowV9BaseRecord> records = NetFlowV9Parser.parseRecords(flowSet, cache, optionTemplate, decoding, new NetFlowV9RecordDecoders());
+        assertThat(flowSet.isReadable()).isFalse();
+        return records;
+    }
+
+    private static ByteBuf flowSet(int flowSetId, int dataLength) {
+        final byte[] data = new byte[dataLength];
+        new Random(flowSetId).nextBytes(data);
+        return Unpooled.buffer()
+                .writeShort(flowSetId)
+                .writeShort(4 + dataLength)
+                .writeBytes(data);
+    }
+
+    private static NetFlowV9FieldDef field(int id, NetFlowV9FieldType.ValueType valueType, int length) {
+        return NetFlowV9FieldDef.create(NetFlowV9FieldType.create(id, valueType, "field_" + id), length);
+    }
+}